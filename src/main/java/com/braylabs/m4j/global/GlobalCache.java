@@ -0,0 +1,252 @@
+package com.braylabs.m4j.global;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded LRU cache of global node values, shared by everything using the same GlobalStore.
+ *
+ * Entries are keyed by global name + encoded subscripts (see MVarKeyType) and weighed by their
+ * approximate size in bytes.  The cache is split into segments (each an access ordered
+ * LinkedHashMap) to reduce lock contention.  Absent nodes are cached too, so isDefined() on
+ * a missing node does not hit the store either.
+ *
+ * Writers must call invalidate() after changing the store.  To avoid caching a value that was
+ * read before a concurrent write, readers take a stamp() before reading from the store and pass
+ * it to put(), which is ignored if the segment was written to in the meantime.
+ */
+public class GlobalCache {
+
+	/** Returned by get() when the node is not in the cache */
+	public static final Object MISS = new Object();
+
+	private static final int ENTRY_OVERHEAD = 96;
+
+	private final Segment[] segments;
+	private final long maxBytes;
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong evictions = new AtomicLong();
+
+	public GlobalCache(long maxBytes) {
+		this(maxBytes, 16);
+	}
+
+	public GlobalCache(long maxBytes, int segmentCount) {
+		if (maxBytes <= 0) throw new IllegalArgumentException("Cache size must be > 0");
+		this.maxBytes = maxBytes;
+		this.segments = new Segment[Math.max(1, segmentCount)];
+		for (int i=0; i < this.segments.length; i++) {
+			this.segments[i] = new Segment(Math.max(1, maxBytes / this.segments.length));
+		}
+	}
+
+	private Segment segment(Key key) {
+		int h = key.hash ^ (key.hash >>> 16);
+		return this.segments[(h & 0x7FFFFFFF) % this.segments.length];
+	}
+
+	/** @return the cached value (null if the node is known not to exist) or MISS */
+	public Object get(String global, byte[] key) {
+		Key k = new Key(global, key);
+		Segment seg = segment(k);
+		Entry e;
+		synchronized (seg) {
+			e = seg.get(k);
+		}
+		if (e == null) {
+			this.misses.incrementAndGet();
+			return MISS;
+		}
+		this.hits.incrementAndGet();
+		return e.value;
+	}
+
+	/** Take before reading a value from the store that will be put() in the cache */
+	public long stamp(String global, byte[] key) {
+		Segment seg = segment(new Key(global, key));
+		synchronized (seg) {
+			return seg.writes;
+		}
+	}
+
+	/** Caches a value read from the store, unless the segment was written to since the stamp was taken */
+	public void put(String global, byte[] key, Object value, long stamp) {
+		Key k = new Key(global, key);
+		Segment seg = segment(k);
+		synchronized (seg) {
+			if (seg.writes != stamp) return;
+			Entry e = new Entry(value, weigh(k, value));
+			Entry old = seg.put(k, e);
+			if (old != null) seg.bytes -= old.weight;
+			seg.bytes += e.weight;
+			seg.evict();
+		}
+	}
+
+	/** Drops a single node */
+	public void invalidate(String global, byte[] key) {
+		Key k = new Key(global, key);
+		Segment seg = segment(k);
+		synchronized (seg) {
+			seg.writes++;
+			Entry old = seg.remove(k);
+			if (old != null) seg.bytes -= old.weight;
+		}
+	}
+
+	/** Drops all nodes of a global (ie after it is killed) */
+	public void invalidate(String global) {
+		for (Segment seg : this.segments) {
+			synchronized (seg) {
+				seg.writes++;
+				Iterator<Map.Entry<Key, Entry>> itr = seg.entrySet().iterator();
+				while (itr.hasNext()) {
+					Map.Entry<Key, Entry> e = itr.next();
+					if (e.getKey().global.equals(global)) {
+						seg.bytes -= e.getValue().weight;
+						itr.remove();
+					}
+				}
+			}
+		}
+	}
+
+	public void clear() {
+		for (Segment seg : this.segments) {
+			synchronized (seg) {
+				seg.writes++;
+				seg.clear();
+				seg.bytes = 0;
+			}
+		}
+	}
+
+	private static int weigh(Key key, Object value) {
+		int ret = ENTRY_OVERHEAD + key.global.length() * 2 + key.key.length;
+		if (value instanceof String) {
+			ret += 40 + ((String) value).length() * 2;
+		} else if (value != null) {
+			ret += 16;
+		}
+		return ret;
+	}
+
+	// metrics ----------------------------------------------------------------
+
+	public long getHits() {
+		return this.hits.get();
+	}
+
+	public long getMisses() {
+		return this.misses.get();
+	}
+
+	public long getEvictions() {
+		return this.evictions.get();
+	}
+
+	public double getHitRatio() {
+		long hits = getHits(), total = hits + getMisses();
+		return (total == 0) ? 0 : (double) hits / total;
+	}
+
+	/** Number of cached nodes */
+	public int size() {
+		int ret = 0;
+		for (Segment seg : this.segments) {
+			synchronized (seg) {
+				ret += seg.size();
+			}
+		}
+		return ret;
+	}
+
+	/** Approximate size of the cached nodes */
+	public long getBytes() {
+		long ret = 0;
+		for (Segment seg : this.segments) {
+			synchronized (seg) {
+				ret += seg.bytes;
+			}
+		}
+		return ret;
+	}
+
+	public long getMaxBytes() {
+		return this.maxBytes;
+	}
+
+	public void resetStats() {
+		this.hits.set(0);
+		this.misses.set(0);
+		this.evictions.set(0);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("GlobalCache[nodes=%d, bytes=%d/%d, hits=%d, misses=%d, hitRatio=%.2f, evictions=%d]",
+				size(), getBytes(), getMaxBytes(), getHits(), getMisses(), getHitRatio(), getEvictions());
+	}
+
+	// internals --------------------------------------------------------------
+
+	private static final class Key {
+		final String global;
+		final byte[] key;
+		final int hash;
+
+		Key(String global, byte[] key) {
+			this.global = global;
+			this.key = key;
+			this.hash = global.hashCode() * 31 + Arrays.hashCode(key);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Key)) return false;
+			Key o = (Key) obj;
+			return this.hash == o.hash && this.global.equals(o.global) && Arrays.equals(this.key, o.key);
+		}
+	}
+
+	private static final class Entry {
+		final Object value;
+		final int weight;
+
+		Entry(Object value, int weight) {
+			this.value = value;
+			this.weight = weight;
+		}
+	}
+
+	/** Access ordered map, guarded by synchronizing on itself */
+	private final class Segment extends LinkedHashMap<Key, Entry> {
+		private static final long serialVersionUID = 1L;
+		final long maxBytes;
+		long bytes;
+		long writes;
+
+		Segment(long maxBytes) {
+			super(64, 0.75f, true);
+			this.maxBytes = maxBytes;
+		}
+
+		void evict() {
+			Iterator<Entry> itr = values().iterator();
+			while (this.bytes > this.maxBytes && itr.hasNext()) {
+				this.bytes -= itr.next().weight;
+				itr.remove();
+				evictions.incrementAndGet();
+			}
+		}
+	}
+}
@@ -0,0 +1,366 @@
+package com.braylabs.m4j.global;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.h2.mvstore.MVStore;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.MVar.MVarKey;
+import com.braylabs.m4j.parser.MParserUtils;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
+
+/**
+ * Streams a global (or any subtree of it) out as ZWR, GOF or JSON Lines.
+ *
+ * Nodes are written as they are iterated so memory use does not depend on the size of the global.
+ * With more than one thread the keyspace is split into contiguous ranges (see MVar.splitKeys()),
+ * the first range is written straight to the output and the others are spooled to temp files
+ * which are appended in order once all ranges are done.
+ */
+public class GlobalExport {
+
+	public enum Format { ZWR, GOF, JSON }
+
+	private static final JsonFactory JSON = new JsonFactory();
+
+	private Format format;
+	private Charset charset = Charset.forName("UTF-8");
+	private int threads = 1;
+	private String description = "M4J Export";
+
+	public GlobalExport(Format format) {
+		this.format = format;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+	}
+
+	/** First header line for ZWR/GOF output */
+	public void setDescription(String description) {
+		this.description = description;
+	}
+
+	public long export(MVar var, File file) throws IOException {
+		try (FileOutputStream fos = new FileOutputStream(file)) {
+			return export(fos.getChannel(), var);
+		}
+	}
+
+	/** Exports each of the vars (and their descendants) to the channel, returns the number of nodes written */
+	public long export(WritableByteChannel out, MVar... vars) throws IOException {
+		long count = 0;
+		Writer writer = newWriter(out);
+		writeHeader(writer);
+		writer.flush();
+		for (MVar var : vars) {
+			count += exportVar(var, out);
+		}
+		return count;
+	}
+
+	private long exportVar(MVar var, WritableByteChannel out) throws IOException {
+		List<MVarKey> splits = (this.threads > 1) ? var.splitKeys(this.threads) : new ArrayList<MVarKey>();
+		if (splits.isEmpty()) {
+			return new Range(var, null, null, out).call();
+		}
+
+		// range 0 goes straight to the output, the rest are spooled to temp files
+		List<File> spools = new ArrayList<>();
+		List<Future<Long>> results = new ArrayList<>();
+		ExecutorService exec = Executors.newFixedThreadPool(splits.size() + 1);
+		try {
+			results.add(exec.submit(new Range(var, null, splits.get(0), out)));
+			for (int i=0; i < splits.size(); i++) {
+				MVarKey to = (i+1 < splits.size()) ? splits.get(i+1) : null;
+				File spool = File.createTempFile("m4jexport", ".tmp");
+				spool.deleteOnExit();
+				spools.add(spool);
+				results.add(exec.submit(new Range(var, splits.get(i), to, spool)));
+			}
+
+			long count = 0;
+			for (Future<Long> result : results) {
+				count += result.get();
+			}
+
+			for (File spool : spools) {
+				try (RandomAccessFile raf = new RandomAccessFile(spool, "r")) {
+					FileChannel in = raf.getChannel();
+					long pos = 0, size = in.size();
+					while (pos < size) {
+						pos += in.transferTo(pos, size - pos, out);
+					}
+				}
+			}
+			return count;
+		} catch (InterruptedException e) {
+			throw new IOException("Export interrupted", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException("Export of " + var.getName() + " failed", e.getCause());
+		} finally {
+			exec.shutdownNow();
+			for (File spool : spools) {
+				spool.delete();
+			}
+		}
+	}
+
+	private Writer newWriter(WritableByteChannel out) {
+		return new BufferedWriter(Channels.newWriter(out, this.charset.newEncoder(), 8192), 1 << 16);
+	}
+
+	private void writeHeader(Writer writer) throws IOException {
+		if (this.format == Format.JSON) return;
+		writer.write(this.description);
+		writer.write("\n");
+		String date = new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss").format(new Date());
+		writer.write((this.format == Format.ZWR) ? date + " ZWR\n" : date + "\n");
+	}
+
+	/** Writes the nodes in [from, to) of a var */
+	private class Range implements Callable<Long> {
+		private MVar var;
+		private MVarKey from, to;
+		private WritableByteChannel out;
+		private File spool;
+
+		public Range(MVar var, MVarKey from, MVarKey to, WritableByteChannel out) {
+			this.var = var;
+			this.from = from;
+			this.to = to;
+			this.out = out;
+		}
+
+		public Range(MVar var, MVarKey from, MVarKey to, File spool) {
+			this(var, from, to, (WritableByteChannel) null);
+			this.spool = spool;
+		}
+
+		@Override
+		public Long call() throws IOException {
+			if (this.spool == null) {
+				return write(this.out);
+			}
+			try (FileOutputStream fos = new FileOutputStream(this.spool)) {
+				return write(fos.getChannel());
+			}
+		}
+
+		private long write(WritableByteChannel channel) throws IOException {
+			long count = 0;
+			Writer writer = newWriter(channel);
+			JsonGenerator gen = null;
+			if (format == Format.JSON) {
+				gen = JSON.createJsonGenerator(writer);
+				gen.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+			}
+
+			// the node itself belongs to the first range
+			if (this.from == null && this.var.isDefined()) {
+				writeNode(writer, gen, this.var.getName(), this.var.path, this.var.val());
+				count++;
+			}
+
+			Iterator<MVarKey> itr = this.var.iterator(this.from, this.to);
+			while (itr.hasNext()) {
+				MVarKey key = itr.next();
+				Object val = this.var.doGetValue(key);
+				if (val != null) {
+					writeNode(writer, gen, this.var.getName(), key, val);
+					count++;
+				}
+			}
+
+			if (gen != null) {
+				if (count > 0) gen.writeRaw('\n');
+				gen.flush();
+			}
+			writer.flush();
+			return count;
+		}
+	}
+
+	private void writeNode(Writer writer, JsonGenerator gen, String name, MVarKey key, Object val) throws IOException {
+		if (this.format == Format.JSON) {
+			Object[] subs = new Object[key.size()];
+			for (int i=0; i < subs.length; i++) {
+				subs[i] = key.get(i);
+			}
+			writeJSON(gen, name, subs, val);
+			return;
+		}
+
+		writer.write(name);
+		if (key.size() > 0) {
+			writer.write('(');
+			for (int i=0; i < key.size(); i++) {
+				if (i > 0) writer.write(',');
+				writer.write(formatLiteral(key.get(i)));
+			}
+			writer.write(')');
+		}
+		if (this.format == Format.GOF) {
+			writer.write('\n');
+			writer.write(String.valueOf(val));
+		} else {
+			writer.write('=');
+			writer.write(formatLiteral(val));
+		}
+		writer.write('\n');
+	}
+
+	// formatting -------------------------------------------------------------
+
+	/** Writes a node as a single JSON object: {"name":"^X","subs":[1,"a"],"value":"foo"} */
+	public static void writeJSON(JsonGenerator gen, String name, Object[] subs, Object val) throws IOException {
+		gen.writeStartObject();
+		gen.writeStringField("name", name);
+		gen.writeArrayFieldStart("subs");
+		for (Object sub : subs) {
+			writeJSONValue(gen, sub);
+		}
+		gen.writeEndArray();
+		gen.writeFieldName("value");
+		writeJSONValue(gen, val);
+		gen.writeEndObject();
+	}
+
+	private static void writeJSONValue(JsonGenerator gen, Object val) throws IOException {
+		if (val instanceof Integer || val instanceof Long) {
+			gen.writeNumber(((Number) val).longValue());
+		} else if (val instanceof Number) {
+			gen.writeNumber(new BigDecimal(val.toString()));
+		} else {
+			gen.writeString(String.valueOf(val));
+		}
+	}
+
+	/** Formats a subscript/value as a M literal: canonic numbers as-is, strings quoted with $C() for control characters */
+	public static String formatLiteral(Object val) {
+		if (val instanceof Integer || val instanceof Long) {
+			return val.toString();
+		} else if (val instanceof Number) {
+			return formatNumber((Number) val);
+		}
+
+		String str = String.valueOf(val);
+		if (MParserUtils.isCanonicNumber(str)) return str;
+
+		StringBuilder sb = new StringBuilder();
+		boolean quoted = false;
+		for (int i=0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c < 32 || c == 127) {
+				if (quoted) sb.append('"');
+				if (sb.length() > 0) sb.append('_');
+				sb.append("$C(").append((int) c);
+				while (i+1 < str.length() && (str.charAt(i+1) < 32 || str.charAt(i+1) == 127)) {
+					sb.append(',').append((int) str.charAt(++i));
+				}
+				sb.append(')');
+				quoted = false;
+			} else {
+				if (!quoted) {
+					if (sb.length() > 0) sb.append('_');
+					sb.append('"');
+					quoted = true;
+				}
+				if (c == '"') sb.append('"');
+				sb.append(c);
+			}
+		}
+		if (quoted) sb.append('"');
+		return (sb.length() == 0) ? "\"\"" : sb.toString();
+	}
+
+	/** Canonic form of a number: no trailing zeros, no leading zero before the decimal point */
+	private static String formatNumber(Number num) {
+		String ret = new BigDecimal(num.toString()).stripTrailingZeros().toPlainString();
+		if (ret.startsWith("0.")) return ret.substring(1);
+		if (ret.startsWith("-0.")) return "-" + ret.substring(2);
+		return ret;
+	}
+
+	// command line -----------------------------------------------------------
+
+	public static void main(String[] args) throws Exception {
+		File storeFile = null, outFile = null;
+		Format format = Format.ZWR;
+		int threads = 1;
+		Charset charset = Charset.forName("UTF-8");
+		List<String> names = new ArrayList<>();
+		for (int i=0; i < args.length; i++) {
+			String arg = args[i];
+			if ("-STORE".equalsIgnoreCase(arg)) {
+				storeFile = new File(args[++i]);
+			} else if ("-OUT".equalsIgnoreCase(arg)) {
+				outFile = new File(args[++i]);
+			} else if ("-FORMAT".equalsIgnoreCase(arg)) {
+				format = Format.valueOf(args[++i].toUpperCase());
+			} else if ("-THREADS".equalsIgnoreCase(arg)) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("-CHARSET".equalsIgnoreCase(arg)) {
+				charset = Charset.forName(args[++i]);
+			} else {
+				names.add(arg.startsWith("^") ? arg : "^" + arg);
+			}
+		}
+
+		if (storeFile == null || outFile == null) {
+			System.err.println("Usage: GlobalExport -store <FILE> -out <FILE> [-format ZWR|GOF|JSON] [-threads <n>] [-charset <name>] [GLOBAL...]");
+			return;
+		}
+
+		MVStore mvstore = new MVStore.Builder().fileName(storeFile.getAbsolutePath()).cacheSize(20).open();
+		MVGlobalStore store = new MVGlobalStore(mvstore);
+		try (FileOutputStream fos = new FileOutputStream(outFile)) {
+			// default to all globals
+			if (names.isEmpty()) {
+				Iterator<String> itr = store.list();
+				while (itr.hasNext()) names.add(itr.next());
+			}
+
+			List<MVar> vars = new ArrayList<>();
+			for (String name : names) {
+				vars.add(store.get(name));
+			}
+
+			GlobalExport exp = new GlobalExport(format);
+			exp.setThreads(threads);
+			exp.setCharset(charset);
+			long start = System.currentTimeMillis();
+			long count = exp.export(fos.getChannel(), vars.toArray(new MVar[vars.size()]));
+			System.out.printf("Exported %,d nodes in %.1fs%n", count, (System.currentTimeMillis() - start) / 1000d);
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,416 @@
+package com.braylabs.m4j.global;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import org.h2.mvstore.MVStore;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore.CommitPolicy;
+import com.braylabs.m4j.global.MVar.MVarKey;
+import com.braylabs.m4j.global.MVar.MVarKeyType;
+import com.braylabs.m4j.parser.MParserUtils;
+
+/**
+ * Bulk loader for global exports in GOF (%GO: alternating reference and value lines) or
+ * ZWR (^REF=value lines) format.
+ *
+ * The file is read in chunks of records by the calling thread, each chunk is parsed on a pool of
+ * threads and a single writer thread sorts each parsed chunk by key and inserts it into the
+ * GlobalStore (committing once per chunk for MVGlobalStore).  Chunks are written in file order so
+ * later values for the same node still win.  Memory is bounded by the number of chunks in flight.
+ */
+public class GlobalImport {
+
+	public enum Format { GOF, ZWR }
+
+	private GlobalStore store;
+	private int threads = Runtime.getRuntime().availableProcessors();
+	private int batchSize = 10000;
+	private long limit = Long.MAX_VALUE;
+	private PrintStream progress;
+	private long progressMillis = 5000;
+
+	// stats
+	private volatile long nodes;
+	private volatile long bytes;
+	private long startTime;
+
+	public GlobalImport(GlobalStore store) {
+		this.store = store;
+	}
+
+	public void setThreads(int threads) {
+		this.threads = Math.max(1, threads);
+	}
+
+	/** Number of records parsed, sorted and committed together */
+	public void setBatchSize(int batchSize) {
+		this.batchSize = Math.max(1, batchSize);
+	}
+
+	/** Maximum number of nodes to import */
+	public void setLimit(long limit) {
+		this.limit = limit;
+	}
+
+	/** Where to report progress/throughput (null for none) */
+	public void setProgress(PrintStream progress, long intervalMillis) {
+		this.progress = progress;
+		this.progressMillis = intervalMillis;
+	}
+
+	public long getNodeCount() {
+		return this.nodes;
+	}
+
+	/** Imports the file, format is determined by the file extension (.zwr) defaulting to GOF */
+	public long load(File f, Charset charset) throws IOException {
+		Format fmt = f.getName().toLowerCase().endsWith(".zwr") ? Format.ZWR : Format.GOF;
+		try (FileInputStream fis = new FileInputStream(f)) {
+			Reader reader = new InputStreamReader(fis, charset);
+			return load(reader, fmt, fis.getChannel());
+		}
+	}
+
+	public long load(Reader reader, Format fmt) throws IOException {
+		return load(reader, fmt, null);
+	}
+
+	private long load(Reader in, final Format fmt, FileChannel channel) throws IOException {
+		BufferedReader reader = new BufferedReader(in, 1 << 20);
+		this.nodes = this.bytes = 0;
+		this.startTime = System.currentTimeMillis();
+
+		// explicit commits while loading, restore the original policy when done
+		CommitPolicy oldPolicy = null;
+		int oldPolicyValue = 0;
+		if (this.store instanceof MVGlobalStore) {
+			oldPolicy = ((MVGlobalStore) this.store).getCommitPolicy();
+			oldPolicyValue = ((MVGlobalStore) this.store).getCommitPolicyValue();
+			((MVGlobalStore) this.store).setCommitPolicy(CommitPolicy.EXPLICIT, 0);
+		}
+
+		ExecutorService parsers = Executors.newFixedThreadPool(this.threads);
+		BlockingQueue<Future<List<Node>>> queue = new ArrayBlockingQueue<>(this.threads * 2);
+		Writer writer = new Writer(queue);
+		Thread writerThread = new Thread(writer, "M4J-IMPORT-WRITER");
+		writerThread.start();
+
+		boolean ended = false;
+		try {
+			long count = 0;
+			String line = reader.readLine();
+			List<String[]> batch = new ArrayList<>(this.batchSize);
+			while (line != null && count < this.limit && writer.error == null) {
+				// skip headers/blank lines, every record starts with a global reference
+				if (line.startsWith("^")) {
+					String value = (fmt == Format.GOF) ? reader.readLine() : null;
+					batch.add(new String[] {line, value});
+					count++;
+				}
+
+				if (batch.size() >= this.batchSize) {
+					queue.put(parsers.submit(new Parser(batch, fmt)));
+					batch = new ArrayList<>(this.batchSize);
+					if (channel != null) this.bytes = channel.position();
+				}
+				line = reader.readLine();
+			}
+			if (!batch.isEmpty()) queue.put(parsers.submit(new Parser(batch, fmt)));
+
+			// signal the writer that we are done and wait for it
+			queue.put(endMarker());
+			ended = true;
+			writerThread.join();
+			if (channel != null) this.bytes = channel.position();
+		} catch (InterruptedException e) {
+			writerThread.interrupt();
+			throw new IOException("Import interrupted", e);
+		} finally {
+			// reading failed, the writer still has to get the end marker or it waits for more forever
+			if (!ended) stopWriter(queue, writerThread);
+			parsers.shutdownNow();
+			this.store.commit();
+			if (oldPolicy != null) {
+				((MVGlobalStore) this.store).setCommitPolicy(oldPolicy, oldPolicyValue);
+			}
+		}
+
+		if (writer.error != null) {
+			throw new IOException("Import failed after " + this.nodes + " nodes", writer.error);
+		}
+		report("Done");
+		return this.nodes;
+	}
+
+	private static Future<List<Node>> endMarker() {
+		FutureTask<List<Node>> ret = new FutureTask<>(new Parser(null, null));
+		ret.run();
+		return ret;
+	}
+
+	/** Ends the writer thread after a failure, without hiding the exception that caused it */
+	private static void stopWriter(BlockingQueue<Future<List<Node>>> queue, Thread writerThread) {
+		try {
+			queue.put(endMarker());
+			writerThread.join();
+		} catch (InterruptedException e) {
+			writerThread.interrupt();
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private void report(String prefix) {
+		if (this.progress == null) return;
+		long elapsed = Math.max(1, System.currentTimeMillis() - this.startTime);
+		this.progress.printf("%s: %,d nodes, %,d bytes in %.1fs (%,d nodes/sec, %,d KB/sec)%n", prefix,
+				this.nodes, this.bytes, elapsed / 1000d, this.nodes * 1000 / elapsed, this.bytes * 1000 / 1024 / elapsed);
+	}
+
+	// pipeline ---------------------------------------------------------------
+
+	static class Node {
+		String global;
+		MVarKey key;
+		String value;
+	}
+
+	private static final Comparator<Node> NODE_ORDER = new Comparator<Node>() {
+		@Override
+		public int compare(Node o1, Node o2) {
+			int ret = o1.global.compareTo(o2.global);
+			if (ret != 0) return ret;
+			return MVarKeyType.compare(o1.key.getEncoded(), o2.key.getEncoded());
+		}
+	};
+
+	/** Parses a batch of raw records into nodes (sorted by key) */
+	private static class Parser implements Callable<List<Node>> {
+		private List<String[]> records;
+		private Format fmt;
+
+		public Parser(List<String[]> records, Format fmt) {
+			this.records = records;
+			this.fmt = fmt;
+		}
+
+		@Override
+		public List<Node> call() throws Exception {
+			if (this.records == null) return null; // end marker
+
+			List<Node> ret = new ArrayList<>(this.records.size());
+			for (String[] rec : this.records) {
+				Node node = new Node();
+				int[] pos = new int[] {0};
+				String ref = rec[0];
+				parseRef(ref, pos, node);
+
+				if (this.fmt == Format.GOF) {
+					node.value = (rec[1] == null) ? "" : rec[1];
+				} else {
+					if (pos[0] >= ref.length() || ref.charAt(pos[0]) != '=') {
+						throw new IllegalArgumentException("Expected '=' at position " + pos[0] + ": " + ref);
+					}
+					pos[0]++;
+					node.value = parseExpr(ref, pos);
+				}
+				ret.add(node);
+			}
+
+			// stable sort, so duplicate nodes stay in file order
+			Collections.sort(ret, NODE_ORDER);
+			return ret;
+		}
+	}
+
+	/** Writes parsed batches in the order they were read */
+	private class Writer implements Runnable {
+		private BlockingQueue<Future<List<Node>>> queue;
+		private Map<String, MVar> globals = new HashMap<>();
+		private volatile Throwable error;
+		private long lastReport = System.currentTimeMillis();
+
+		public Writer(BlockingQueue<Future<List<Node>>> queue) {
+			this.queue = queue;
+		}
+
+		@Override
+		public void run() {
+			try {
+				List<Node> batch;
+				while ((batch = this.queue.take().get()) != null) {
+					for (Node node : batch) {
+						MVar global = this.globals.get(node.global);
+						if (global == null) {
+							this.globals.put(node.global, global = store.get(node.global));
+						}
+						global.doSetValue(node.key, node.value);
+					}
+					store.commit();
+					nodes += batch.size();
+
+					if (System.currentTimeMillis() - this.lastReport > progressMillis) {
+						this.lastReport = System.currentTimeMillis();
+						report("Imported");
+					}
+				}
+			} catch (ExecutionException e) {
+				this.error = e.getCause();
+			} catch (Throwable t) {
+				this.error = t;
+			}
+
+			// keep draining until the end marker so the reader never blocks on a full queue
+			while (this.error != null) {
+				try {
+					if (this.queue.take().get() == null) break;
+				} catch (ExecutionException e) {
+					// ignore, already failed
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+		}
+	}
+
+	// parsing ----------------------------------------------------------------
+
+	/** parses ^NAME(sub1,sub2,...) starting at pos[0], leaves pos[0] just past the reference */
+	static void parseRef(String line, int[] pos, Node node) {
+		int i = pos[0];
+		if (line.charAt(i) == '^') i++;
+		String name = MParserUtils.parseRoutineName(line.substring(i));
+		if (name == null) {
+			throw new IllegalArgumentException("Invalid global reference: " + line);
+		}
+		i += name.length();
+		node.global = "^" + name;
+
+		List<Comparable> subs = new ArrayList<>();
+		if (i < line.length() && line.charAt(i) == '(') {
+			pos[0] = i + 1;
+			while (true) {
+				subs.add(parseExpr(line, pos));
+				char c = (pos[0] < line.length()) ? line.charAt(pos[0]) : 0;
+				pos[0]++;
+				if (c == ')') break;
+				if (c != ',') throw new IllegalArgumentException("Invalid global reference: " + line);
+			}
+		} else {
+			pos[0] = i;
+		}
+		node.key = MVarKey.valueOf(subs.toArray(new Comparable[subs.size()]));
+	}
+
+	/**
+	 * parses a (ZWR style) literal expression: "string", number or $C(n,...) terms, concatenated with _
+	 * stops at the first , ) or end of line outside of a string
+	 */
+	static String parseExpr(String line, int[] pos) {
+		StringBuilder sb = new StringBuilder();
+		int i = pos[0], len = line.length();
+		while (i < len) {
+			char c = line.charAt(i);
+			if (c == '"') {
+				// quoted string, "" is an escaped quote
+				for (i++; i < len; i++) {
+					c = line.charAt(i);
+					if (c == '"' && i+1 < len && line.charAt(i+1) == '"') {
+						sb.append('"'); i++;
+					} else if (c == '"') {
+						i++; break;
+					} else {
+						sb.append(c);
+					}
+				}
+			} else if (c == '$' && line.startsWith("$C(", i)) {
+				int end = line.indexOf(')', i);
+				for (String code : line.substring(i+3, end).split(",")) {
+					sb.append((char) Integer.parseInt(code.trim()));
+				}
+				i = end + 1;
+			} else if (c == '_') {
+				i++; // concatenation
+			} else if (c == ',' || c == ')') {
+				break;
+			} else {
+				// unquoted number
+				int start = i;
+				while (i < len && line.charAt(i) != ',' && line.charAt(i) != ')' && line.charAt(i) != '_') i++;
+				sb.append(line, start, i);
+			}
+		}
+		pos[0] = i;
+		return sb.toString();
+	}
+
+	// command line -----------------------------------------------------------
+
+	public static void main(String[] args) throws Exception {
+		long limit = Long.MAX_VALUE;
+		int threads = Runtime.getRuntime().availableProcessors();
+		int batch = 10000;
+		Charset charset = Charset.forName("UTF-8");
+		File file = null;
+		File storeFile = null;
+		for (int i=0; i < args.length; i++) {
+			String arg = args[i];
+			if ("-LIMIT".equalsIgnoreCase(arg)) {
+				limit = Long.parseLong(args[++i]);
+			} else if ("-STORE".equalsIgnoreCase(arg)) {
+				storeFile = new File(args[++i]);
+			} else if ("-THREADS".equalsIgnoreCase(arg)) {
+				threads = Integer.parseInt(args[++i]);
+			} else if ("-BATCH".equalsIgnoreCase(arg)) {
+				batch = Integer.parseInt(args[++i]);
+			} else if ("-CHARSET".equalsIgnoreCase(arg)) {
+				charset = Charset.forName(args[++i]);
+			} else if (file == null) {
+				File f = new File(args[i]);
+				if (f.exists()) {
+					file = f;
+				}
+			}
+		}
+
+		if (storeFile == null || file == null) {
+			System.err.println("Usage: GlobalImport -store <FILE> [-limit <nodes>] [-threads <n>] [-batch <n>] [-charset <name>] FILE(.gof|.zwr)");
+			return;
+		}
+
+		MVStore mvstore = new MVStore.Builder().fileName(storeFile.getAbsolutePath()).cacheSize(20).open();
+		MVGlobalStore store = new MVGlobalStore(mvstore);
+		try {
+			GlobalImport imp = new GlobalImport(store);
+			imp.setLimit(limit);
+			imp.setThreads(threads);
+			imp.setBatchSize(batch);
+			imp.setProgress(System.out, 5000);
+			imp.load(file, charset);
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -2,24 +2,46 @@ package com.braylabs.m4j.global;
 
 import java.io.Closeable;
 import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
+import com.braylabs.m4j.global.MVar.MVarKey;
+import com.braylabs.m4j.global.MVar.MVarKeyType;
 import com.intersys.globals.Connection;
 import com.intersys.globals.ConnectionContext;
 import com.intersys.globals.GlobalsDirectory;
 
 /**
  * Wrapper around various types of global storage
- * TODO: Add transaction hooks
  * TODO: How to support multiple namespaces
- * TODO: How to support mapping globals to different storage engines/partitions?
  */
 public abstract class GlobalStore implements Closeable {
+	
+	private GlobalCache cache;
 
 	public abstract void kill(String name);
 	@Override
@@ -28,7 +50,63 @@ public abstract class GlobalStore implements Closeable {
 	public abstract MVar get(String name);
 	public abstract Iterator<String> list();
 	
-	/** Uses the cacheextreem.jar JNI direct memory connection into InterSystems Cache */
+	/** Make any pending changes durable, stores that write-through (like Cache) can ignore this */
+	public void commit() {
+		// no-op by default
+	}
+	
+	// transactions (TSTART/TCOMMIT/TROLLBACK), scoped to the calling thread ------------
+	
+	/* 
+	 * By default only the levels are tracked (so $TLEVEL is right), TROLLBACK does not undo any 
+	 * changes: stores that are not journaled (memory, process-private) or can't be (Cache) can take
+	 * part in a transaction that spans several stores without failing it.
+	 */
+	private ThreadLocal<int[]> tlevel = new ThreadLocal<int[]>() {
+		@Override
+		protected int[] initialValue() {
+			return new int[1];
+		}
+	};
+	
+	/** Starts a (nested) transaction, returns the new $TLEVEL */
+	public int startTransaction() {
+		return ++this.tlevel.get()[0];
+	}
+	
+	/** Ends the innermost transaction, the outermost one makes all its changes durable. Returns the new $TLEVEL */
+	public int commitTransaction() {
+		int[] level = this.tlevel.get();
+		if (level[0] == 0) throw new IllegalStateException("TCOMMIT without TSTART");
+		return --level[0];
+	}
+	
+	/** Undoes the changes of the innermost levels (all of them if levels <= 0), returns the new $TLEVEL */
+	public int rollbackTransaction(int levels) {
+		int[] level = this.tlevel.get();
+		level[0] = (levels <= 0) ? 0 : Math.max(0, level[0] - levels);
+		return level[0];
+	}
+	
+	/** $TLEVEL of the calling thread */
+	public int getTransactionLevel() {
+		return this.tlevel.get()[0];
+	}
+	
+	/** Node read cache shared by all users of this store, null if caching is disabled */
+	public GlobalCache getCache() {
+		return this.cache;
+	}
+	
+	/** Enables the node read cache (null to disable), only supported by MVGlobalStore for now */
+	public void setCache(GlobalCache cache) {
+		this.cache = cache;
+	}
+	
+	/** 
+	 * Uses the cacheextreem.jar JNI direct memory connection into InterSystems Cache.  Transactions 
+	 * only track $TLEVEL, TROLLBACK does not undo changes made here.
+	 */
 	public static class CacheGlobalStore extends GlobalStore {
 		
 		private String namespace;
@@ -86,9 +164,44 @@ public abstract class GlobalStore implements Closeable {
 	}
 	
 	public static class MVGlobalStore extends GlobalStore {
+		
+		/**
+		 * Determines when writes (SET/KILL) made via {@link MVar.MVStoreMVar} are committed to the MVStore.
+		 * 
+		 * Note that with EVERY_WRITE a MVStore commit marks a new version, the actual file write happens 
+		 * in the MVStore background writer (within its write delay).  The other policies write the 
+		 * version out when they commit, since MVStore can only roll back to a version it has written: 
+		 * uncommitted changes (even those it wrote out early because its write buffer filled up) are 
+		 * rolled back on close() in EXPLICIT mode and when the store is re-opened after a crash.
+		 */
+		public enum CommitPolicy {
+			/** Commit after every write (default).  Slowest, only the write in progress can be lost. */
+			EVERY_WRITE,
+			/** Commit after every N writes.  Up to N-1 writes can be lost. */
+			BATCH,
+			/** Commit from a background thread every N milliseconds.  Up to N ms of writes can be lost. */
+			INTERVAL,
+			/** Only commit when {@link GlobalStore#commit()} is called (ie TCOMMIT).  
+			 * Everything since the last commit is lost on a crash AND on close(). */
+			EXPLICIT,
+			/** Only commit when the store is closed or the JVM shuts down normally.  
+			 * Everything since startup is lost on a crash. */
+			ON_EXIT;
+		}
+
+		/** Map holding the undo records of open transactions (not a global) */
+		static final String UNDO_MAP = "m4j.undo";
 
 		private MVStore store;
 		private MVMap<String, String> metamap;
+		private MVMap<Long, Object[]> undo;
+		private AtomicLong undoSeq = new AtomicLong();
+		private ThreadLocal<Transaction> tx = new ThreadLocal<>();
+		private CommitPolicy policy = CommitPolicy.EVERY_WRITE;
+		private int policyValue;
+		private AtomicInteger pending = new AtomicInteger();
+		private ScheduledExecutorService committer;
+		private Thread shutdownHook;
 
 		/** Initializes default store in temporary directory */
 		public MVGlobalStore() {
@@ -104,21 +217,268 @@ public abstract class GlobalStore implements Closeable {
 		     	this.store = new MVStore.Builder().fileName(tmpfile.getAbsolutePath()).cacheSize(20).open();
 			}
 			this.metamap = this.store.getMetaMap();
+			
+			// transactions that were open when the store was last closed (or crashed) never committed
+			if (this.metamap.containsKey("name." + UNDO_MAP)) recover();
+		}
+		
+		public MVGlobalStore(MVStore store, CommitPolicy policy, int value) {
+			this(store);
+			setCommitPolicy(policy, value);
+		}
+		
+		public MVStore getStore() {
+			return this.store;
+		}
+		
+		public CommitPolicy getCommitPolicy() {
+			return this.policy;
+		}
+		
+		public int getCommitPolicyValue() {
+			return this.policyValue;
+		}
+		
+		/**
+		 * Change the commit policy, any pending writes are committed first.
+		 * @param value the number of writes for BATCH, number of milliseconds for INTERVAL, ignored otherwise
+		 */
+		public synchronized void setCommitPolicy(CommitPolicy policy, int value) {
+			if ((policy == CommitPolicy.BATCH || policy == CommitPolicy.INTERVAL) && value <= 0) {
+				throw new IllegalArgumentException("Commit policy " + policy + " requires a value > 0");
+			}
+			commit();
+			stopCommitter();
+			this.policy = policy;
+			this.policyValue = value;
+			
+			if (policy == CommitPolicy.INTERVAL) {
+				this.committer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "M4J-GLOBALS-COMMIT");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+				this.committer.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						commit();
+					}
+				}, value, value, TimeUnit.MILLISECONDS);
+			} else if (policy == CommitPolicy.ON_EXIT && this.shutdownHook == null) {
+				this.shutdownHook = new Thread("M4J-GLOBALS-SHUTDOWN") {
+					@Override
+					public void run() {
+						close();
+					}
+				};
+				Runtime.getRuntime().addShutdownHook(this.shutdownHook);
+			}
+		}
+		
+		/** Called by MVStoreMVar after each write, commits if the policy says its time */
+		void afterWrite() {
+			if (inTransaction()) {
+				// deferred until the outermost TCOMMIT
+				this.pending.incrementAndGet();
+				return;
+			}
+			switch (this.policy) {
+				case EVERY_WRITE: 
+					this.store.commit(); 
+					break;
+				case BATCH:
+					if (this.pending.incrementAndGet() >= this.policyValue) commit();
+					break;
+				default:
+					// committed later by the background thread, commit() or close()
+					this.pending.incrementAndGet();
+			}
+		}
+		
+		@Override
+		public void commit() {
+			if (this.pending.getAndSet(0) > 0 && !this.store.isClosed()) {
+				this.store.store();
+			}
+		}
+		
+		private void stopCommitter() {
+			if (this.committer != null) {
+				this.committer.shutdown();
+				this.committer = null;
+			}
 		}
 		
 		@Override
 		public void kill(String name) {
-			this.store.openMap(name).removeMap();
+			if (inTransaction()) {
+				// keep the map, so each node can be restored on TROLLBACK
+				((MVar.MVStoreMVar) get(name)).clear();
+				afterWrite();
+				return;
+			}
+			MVMap<?, ?> map = MVar.MVStoreMVar.openMap(this.store, name);
+			synchronized (this.store) {
+				map.removeMap();
+			}
+			if (getCache() != null) getCache().invalidate(name);
 		}
 
 		@Override
-		public void close() {
+		public synchronized void close() {
+			if (this.store.isClosed()) return;
+			stopCommitter();
+			
+			// uncommitted changes are intentionally discarded (rolled back by MVStore) in EXPLICIT mode
+			if (this.policy != CommitPolicy.EXPLICIT) commit();
 			this.store.close();
 		}
 
 		@Override
 		public MVar get(String name) {
-			return new MVar.MVStoreMVar(this.store, name);
+			return new MVar.MVStoreMVar(this, name);
+		}
+		
+		// transactions -----------------------------------------------------------
+		
+		/*
+		 * Modeled on MVStore's TransactionStore (which can't be used directly, it stores every value 
+		 * wrapped with its version info): writes go straight to the global maps, but before a node 
+		 * is first changed by a transaction level its old value is put in the undo map.  TROLLBACK 
+		 * puts the old values back and the outermost TCOMMIT drops the undo records and commits once.
+		 * The undo map is committed along with everything else, so anything that is left in it when 
+		 * the store is opened belonged to a transaction that never committed, and is rolled back.
+		 * 
+		 * Like Cache/GT.M (without TSTART:SERIAL), changes are visible to other processes before 
+		 * TCOMMIT, use LOCK to isolate them.
+		 */
+		
+		/** TSTART state of one thread */
+		private static class Transaction {
+			int level;
+			/** keys of this transactions undo records, in order */
+			final List<Long> undoKeys = new ArrayList<>();
+			/** undoKeys.size() when each level started */
+			final List<Integer> savepoints = new ArrayList<>();
+			/** nodes that already have an undo record in the current level */
+			final Map<String, Set<ByteBuffer>> touched = new HashMap<>();
+			
+			boolean touch(String name, byte[] key) {
+				Set<ByteBuffer> keys = this.touched.get(name);
+				if (keys == null) this.touched.put(name, keys = new HashSet<>());
+				return keys.add(ByteBuffer.wrap(key));
+			}
+		}
+		
+		boolean inTransaction() {
+			return this.tx.get() != null;
+		}
+		
+		private MVMap<Long, Object[]> undoMap() {
+			synchronized (this.store) {
+				if (this.undo == null) {
+					this.undo = this.store.openMap(UNDO_MAP);
+					Long last = this.undo.lastKey();
+					if (last != null) this.undoSeq.set(last);
+				}
+				return this.undo;
+			}
+		}
+		
+		/** Called by MVStoreMVar (holding the maps monitor) before it changes a node */
+		void logUndo(String name, MVarKey key, Serializable old) {
+			Transaction t = this.tx.get();
+			if (t == null || !t.touch(name, key.getEncoded())) return;
+			
+			long id = this.undoSeq.incrementAndGet();
+			MVMap<Long, Object[]> undo = undoMap();
+			synchronized (undo) {
+				undo.put(id, new Object[] {name, key.getEncoded(), old});
+			}
+			t.undoKeys.add(id);
+		}
+		
+		@Override
+		public int startTransaction() {
+			Transaction t = this.tx.get();
+			if (t == null) {
+				undoMap();
+				this.tx.set(t = new Transaction());
+			}
+			t.savepoints.add(t.undoKeys.size());
+			t.touched.clear();
+			return ++t.level;
+		}
+		
+		@Override
+		public int commitTransaction() {
+			Transaction t = this.tx.get();
+			if (t == null) throw new IllegalStateException("TCOMMIT without TSTART");
+			t.savepoints.remove(t.savepoints.size()-1);
+			t.touched.clear();
+			if (--t.level > 0) return t.level;
+			
+			// outermost, keep the changes
+			this.tx.remove();
+			synchronized (this.undo) {
+				for (Long id : t.undoKeys) this.undo.remove(id);
+			}
+			this.pending.incrementAndGet();
+			commit();
+			return 0;
+		}
+		
+		@Override
+		public int rollbackTransaction(int levels) {
+			Transaction t = this.tx.get();
+			if (t == null) return 0;
+			int keep = (levels <= 0) ? 0 : Math.max(0, t.level - levels);
+			int from = t.savepoints.get(keep);
+			
+			// newest first, so a node touched by several levels ends up with its oldest value
+			List<Long> ids = t.undoKeys.subList(from, t.undoKeys.size());
+			for (int i=ids.size()-1; i >= 0; i--) {
+				Object[] rec;
+				synchronized (this.undo) {
+					rec = this.undo.remove(ids.get(i));
+				}
+				if (rec != null) restore(rec);
+			}
+			ids.clear();
+			t.savepoints.subList(keep, t.savepoints.size()).clear();
+			t.touched.clear();
+			t.level = keep;
+			
+			if (keep == 0) {
+				this.tx.remove();
+				this.pending.incrementAndGet();
+				commit();
+			}
+			return keep;
+		}
+		
+		@Override
+		public int getTransactionLevel() {
+			Transaction t = this.tx.get();
+			return (t == null) ? 0 : t.level;
+		}
+		
+		private void restore(Object[] rec) {
+			MVar.MVStoreMVar mvar = (MVar.MVStoreMVar) get((String) rec[0]);
+			mvar.restore(MVarKey.fromEncoded((byte[]) rec[1]), (Serializable) rec[2]);
+		}
+		
+		/** Rolls back whatever was left in the undo map */
+		private void recover() {
+			MVMap<Long, Object[]> undo = undoMap();
+			for (Long id = undo.lastKey(); id != null; id = undo.lowerKey(id)) {
+				restore(undo.get(id));
+			}
+			undo.clear();
+			this.store.commit();
 		}
 
 		@Override
@@ -128,7 +488,9 @@ public abstract class GlobalStore implements Closeable {
 			while (itr.hasNext()) {
 				String key = itr.next();
 				if (key.startsWith("name.")) {
-					ret.add(key.replace("name.", "^"));
+					String name = key.substring(5);
+					if (name.equals(UNDO_MAP)) continue;
+					ret.add(name.startsWith("^") ? name : "^" + name);
 				} else {
 					break; // quit once we get through the name. values
 				}
@@ -138,4 +500,656 @@ public abstract class GlobalStore implements Closeable {
 		}
 		
 	}
+	
+	/**
+	 * Globals that only live in memory (scratch globals like ^TMP and ^UTILITY), each one a 
+	 * ConcurrentMVar so processes can share them without locking.
+	 * 
+	 * Like CACHETEMP, these are not journaled: transaction levels are tracked (for $TLEVEL) 
+	 * but TROLLBACK does not undo changes made here.
+	 */
+	public static class MemoryGlobalStore extends GlobalStore {
+		private ConcurrentMap<String, MVar.ConcurrentMVar> globals = new ConcurrentHashMap<>();
+		
+		@Override
+		public MVar get(String name) {
+			MVar.ConcurrentMVar ret = this.globals.get(name);
+			if (ret == null) {
+				MVar.ConcurrentMVar global = new MVar.ConcurrentMVar(name);
+				ret = this.globals.putIfAbsent(name, global);
+				if (ret == null) ret = global;
+			}
+			return ret;
+		}
+
+		@Override
+		public void kill(String name) {
+			// cleared, not removed, the runtime may hold on to the MVar
+			MVar.ConcurrentMVar global = this.globals.get(name);
+			if (global != null) global.clear();
+		}
+
+		@Override
+		public Iterator<String> list() {
+			Set<String> ret = new TreeSet<>();
+			for (Map.Entry<String, MVar.ConcurrentMVar> e : this.globals.entrySet()) {
+				MVar global = e.getValue();
+				if (global.isDefined() || global.hasDescendents()) {
+					String name = e.getKey();
+					ret.add(name.startsWith("^") ? name : "^" + name);
+				}
+			}
+			return ret.iterator();
+		}
+
+		@Override
+		public void close() {
+			this.globals.clear();
+		}
+	}
+	
+	/**
+	 * Process-private globals (^||X) of a single process, not thread safe.
+	 * 
+	 * They start out in a MemoryGlobalStore and are moved to a temporary MVStore file once they 
+	 * grow past maxMemory (approximately, overwritten and unset nodes are still counted).  The file 
+	 * is never committed (MVStore writes its pages out when its write buffer fills up), close() just 
+	 * drops it instead of KILLing every node.  Like in other M implementations they are not part of 
+	 * transactions, TROLLBACK does not undo changes made here.
+	 */
+	public static class PrivateGlobalStore extends GlobalStore {
+		public static final long DEFAULT_MAX_MEMORY = 16 << 20;
+		private static final int NODE_OVERHEAD = 64;
+		
+		private final long maxMemory;
+		private long memory;
+		private GlobalStore current = new MemoryGlobalStore();
+		private File file;
+		private Map<String, PrivateMVar> globals = new HashMap<>();
+		private Map<String, MVar> roots = new HashMap<>();
+		
+		public PrivateGlobalStore() {
+			this(DEFAULT_MAX_MEMORY);
+		}
+		
+		public PrivateGlobalStore(long maxMemory) {
+			this.maxMemory = maxMemory;
+		}
+		
+		/** True once the globals have been moved to a temp file */
+		public boolean isSpilled() {
+			return this.file != null;
+		}
+		
+		/** Approximate size of the globals in bytes */
+		public long getMemory() {
+			return this.memory;
+		}
+		
+		@Override
+		public MVar get(String name) {
+			PrivateMVar ret = this.globals.get(name);
+			if (ret == null) this.globals.put(name, ret = new PrivateMVar(name, this));
+			return ret;
+		}
+		
+		/** the backing global of the current store */
+		private MVar root(String name) {
+			MVar ret = this.roots.get(name);
+			if (ret == null) this.roots.put(name, ret = this.current.get(name));
+			return ret;
+		}
+		
+		/** count the write, spill to disk if that makes it too big */
+		private void written(PrivateMVar global, MVarKey key, Object val) {
+			int bytes = NODE_OVERHEAD + key.getEncoded().length + ((val instanceof String) ? ((String) val).length() * 2 : 16);
+			global.bytes += bytes;
+			this.memory += bytes;
+			if (this.memory > this.maxMemory && !isSpilled()) spill();
+		}
+		
+		private void spill() {
+			MVGlobalStore target;
+			try {
+				this.file = File.createTempFile("M4J.private", ".data");
+				this.file.deleteOnExit();
+				target = new MVGlobalStore(new MVStore.Builder().fileName(this.file.getAbsolutePath()).cacheSize(4).open(), 
+						MVGlobalStore.CommitPolicy.EXPLICIT, 0);
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to spill process-private globals to disk", e);
+			}
+			
+			for (String name : this.globals.keySet()) {
+				MVar from = root(name), to = target.get(name);
+				if (from.isDefined()) to.set(from.val());
+				Iterator<MVarKey> itr = from.iterator();
+				while (itr.hasNext()) {
+					MVarKey key = itr.next();
+					to.doSetValue(key, from.doGetValue(key));
+				}
+			}
+			this.current.close();
+			this.current = target;
+			this.roots.clear();
+		}
+
+		@Override
+		public void kill(String name) {
+			this.current.kill(name);
+			this.roots.remove(name); // MVGlobalStore drops the map
+			PrivateMVar global = this.globals.get(name);
+			if (global != null) {
+				this.memory -= global.bytes;
+				global.bytes = 0;
+			}
+		}
+
+		@Override
+		public Iterator<String> list() {
+			return this.current.list();
+		}
+
+		/** Drops all the globals (and the temp file) */
+		@Override
+		public void close() {
+			if (this.current instanceof MVGlobalStore) {
+				((MVGlobalStore) this.current).getStore().closeImmediately();
+			} else {
+				this.current.close();
+			}
+			if (this.file != null) this.file.delete();
+			this.current = new MemoryGlobalStore();
+			this.file = null;
+			this.memory = 0;
+			this.globals.clear();
+			this.roots.clear();
+		}
+		
+		/** Forwards to the global in the current store, which changes when spilling */
+		private static class PrivateMVar extends MVar {
+			private final PrivateGlobalStore store;
+			private long bytes;
+			
+			PrivateMVar(String name, PrivateGlobalStore store) {
+				super(name);
+				this.store = store;
+			}
+			
+			private PrivateMVar(PrivateMVar root, MVarKey path) {
+				super(root, path);
+				this.store = root.store;
+			}
+			
+			private MVar target() {
+				return this.store.root(getName());
+			}
+			
+			private MVar node() {
+				return target().get(this.path);
+			}
+			
+			@Override
+			public Object doGetValue(MVarKey key) {
+				return target().doGetValue(key);
+			}
+
+			@Override
+			public Object doSetValue(MVarKey key, Object val) {
+				Object ret = target().doSetValue(key, val);
+				this.store.written((PrivateMVar) this.root, key, val);
+				return ret;
+			}
+			
+			@Override
+			public Number increment(Number inc) {
+				Number ret = node().increment(inc);
+				this.store.written((PrivateMVar) this.root, this.path, ret);
+				return ret;
+			}
+
+			@Override
+			public Object unset() {
+				return node().unset();
+			}
+			
+			@Override
+			public void kill() {
+				if (this.path.size() == 0) {
+					this.store.kill(getName());
+				} else {
+					node().kill();
+				}
+			}
+
+			@Override
+			public boolean isDefined() {
+				return node().isDefined();
+			}
+
+			@Override
+			public boolean hasDescendents() {
+				return node().hasDescendents();
+			}
+
+			@Override
+			public MVar get(MVarKey key) {
+				return new PrivateMVar((PrivateMVar) this.root, key);
+			}
+
+			@Override
+			public MVarKey nextKey() {
+				return node().nextKey();
+			}
+
+			@Override
+			public MVarKey prevKey() {
+				return node().prevKey();
+			}
+
+			@Override
+			protected Iterator<MVarKey> iterator() {
+				return node().iterator();
+			}
+			
+			@Override
+			protected Iterator<MVarKey> iterator(MVarKey from, MVarKey to) {
+				return node().iterator(from, to);
+			}
+			
+			@Override
+			protected Iterator<MVarKey> reverseIterator(MVarKey before) {
+				return node().reverseIterator(before);
+			}
+		}
+	}
+	
+	/**
+	 * Maps globals to other stores (ie temp globals to memory, an archive global to its own file on 
+	 * another disk), everything not mapped goes to the default store.  Mappings are by name 
+	 * (TMP or TMP* for a prefix) and optionally by a range of the first subscript, ie ORD(2000:2010) 
+	 * puts ^ORD(2000) up to (but not including) ^ORD(2010) in its own store.  The first mapping 
+	 * that matches wins.
+	 * 
+	 * Transactions are started/committed on every store, but each store commits on its own
+	 * (there is no two-phase commit across stores).
+	 */
+	public static class RoutingGlobalStore extends GlobalStore {
+		
+		private GlobalStore defaultStore;
+		private List<Mapping> mappings = new CopyOnWriteArrayList<>();
+		private Set<GlobalStore> stores = new LinkedHashSet<>();
+		private ConcurrentMap<String, Route> routes = new ConcurrentHashMap<>();
+		
+		public RoutingGlobalStore(GlobalStore defaultStore) {
+			this.defaultStore = defaultStore;
+			this.stores.add(defaultStore);
+		}
+		
+		private static class Mapping {
+			final String name;
+			final boolean prefix;
+			final byte[] from, to;
+			final GlobalStore store;
+			
+			Mapping(String name, boolean prefix, byte[] from, byte[] to, GlobalStore store) {
+				this.name = name;
+				this.prefix = prefix;
+				this.from = from;
+				this.to = to;
+				this.store = store;
+			}
+			
+			boolean matches(String name) {
+				return this.prefix ? name.startsWith(this.name) : name.equals(this.name);
+			}
+			
+			boolean isRange() {
+				return this.from != null || this.to != null;
+			}
+			
+			/** @param sub the encoded first subscript */
+			boolean contains(byte[] sub) {
+				return (this.from == null || MVarKeyType.compare(sub, this.from) >= 0) && 
+						(this.to == null || MVarKeyType.compare(sub, this.to) < 0);
+			}
+		}
+		
+		/** Where the nodes of one global live */
+		private static class Route {
+			final GlobalStore base;
+			final List<Mapping> ranges;
+			
+			Route(GlobalStore base, List<Mapping> ranges) {
+				this.base = base;
+				this.ranges = ranges;
+			}
+		}
+		
+		private static String stripCaret(String name) {
+			return name.startsWith("^") ? name.substring(1) : name;
+		}
+		
+		/**
+		 * Map by a spec like TMP, ^TMP*, ORD(2000:2010), ORD(:"M") or ORD("M":).  Range bounds are 
+		 * subscript values (quoted or not), [from, to) with an empty bound meaning unbounded.
+		 */
+		public void map(String spec, GlobalStore store) {
+			spec = spec.trim();
+			int idx = spec.indexOf('(');
+			if (idx < 0) {
+				map(spec, null, null, store);
+				return;
+			}
+			if (!spec.endsWith(")")) throw new IllegalArgumentException("Invalid global mapping: " + spec);
+			String range = spec.substring(idx + 1, spec.length() - 1);
+			
+			// find the : that is not inside quotes
+			int colon = -1;
+			boolean quoted = false;
+			for (int i=0; i < range.length() && colon < 0; i++) {
+				char c = range.charAt(i);
+				if (c == '"') quoted = !quoted;
+				else if (c == ':' && !quoted) colon = i;
+			}
+			if (colon < 0) throw new IllegalArgumentException("Invalid global mapping, expected (from:to): " + spec);
+			map(spec.substring(0, idx), parseBound(range.substring(0, colon)), parseBound(range.substring(colon + 1)), store);
+		}
+		
+		private static String parseBound(String str) {
+			str = str.trim();
+			if (str.isEmpty()) return null;
+			if (str.length() > 1 && str.startsWith("\"") && str.endsWith("\"")) {
+				str = str.substring(1, str.length() - 1).replace("\"\"", "\"");
+			}
+			return str;
+		}
+		
+		/**
+		 * Map a global (name ending with * for a prefix) or a range [from, to) of its first 
+		 * subscript (null meaning unbounded) to a store.
+		 */
+		public void map(String name, Comparable from, Comparable to, GlobalStore store) {
+			name = stripCaret(name.trim());
+			boolean prefix = name.endsWith("*");
+			if (prefix) name = name.substring(0, name.length() - 1);
+			if (prefix && (from != null || to != null)) {
+				throw new IllegalArgumentException("Subscript ranges can only be mapped for a single global: " + name);
+			}
+			
+			byte[] lo = (from == null) ? null : MVarKeyType.encode(from);
+			byte[] hi = (to == null) ? null : MVarKeyType.encode(to);
+			synchronized (this.stores) {
+				this.mappings.add(new Mapping(name, prefix, lo, hi, store));
+				this.stores.add(store);
+			}
+			this.routes.clear();
+		}
+		
+		/** The default store and every store something is mapped to */
+		public List<GlobalStore> getStores() {
+			synchronized (this.stores) {
+				return new ArrayList<>(this.stores);
+			}
+		}
+		
+		public GlobalStore getDefaultStore() {
+			return this.defaultStore;
+		}
+		
+		private Route route(String name) {
+			Route ret = this.routes.get(name);
+			if (ret != null) return ret;
+			
+			String key = stripCaret(name);
+			GlobalStore base = null;
+			List<Mapping> ranges = new ArrayList<>();
+			for (Mapping m : this.mappings) {
+				if (!m.matches(key)) continue;
+				if (m.isRange()) {
+					ranges.add(m);
+				} else if (base == null) {
+					base = m.store;
+				}
+			}
+			ret = new Route((base == null) ? this.defaultStore : base, ranges);
+			Route old = this.routes.putIfAbsent(name, ret);
+			return (old == null) ? ret : old;
+		}
+		
+		/** The store holding the given global, or the store of its unsubscripted node if it is split by subscript ranges */
+		public GlobalStore getStore(String name) {
+			return route(name).base;
+		}
+		
+		@Override
+		public MVar get(String name) {
+			Route route = route(name);
+			if (route.ranges.isEmpty()) return route.base.get(name);
+			return new RoutingMVar(name, route);
+		}
+
+		@Override
+		public void kill(String name) {
+			Route route = route(name);
+			route.base.kill(name);
+			for (Mapping m : route.ranges) {
+				if (m.store != route.base) m.store.kill(name);
+			}
+		}
+
+		@Override
+		public Iterator<String> list() {
+			Set<String> ret = new TreeSet<>();
+			for (GlobalStore store : getStores()) {
+				Iterator<String> itr = store.list();
+				while (itr.hasNext()) ret.add(itr.next());
+			}
+			return ret.iterator();
+		}
+		
+		@Override
+		public void commit() {
+			for (GlobalStore store : getStores()) store.commit();
+		}
+
+		@Override
+		public void close() {
+			for (GlobalStore store : getStores()) store.close();
+		}
+		
+		@Override
+		public void setCache(GlobalCache cache) {
+			super.setCache(cache);
+			for (GlobalStore store : getStores()) store.setCache(cache);
+		}
+		
+		@Override
+		public int startTransaction() {
+			for (GlobalStore store : getStores()) store.startTransaction();
+			return getTransactionLevel();
+		}
+		
+		@Override
+		public int commitTransaction() {
+			for (GlobalStore store : getStores()) store.commitTransaction();
+			return getTransactionLevel();
+		}
+		
+		@Override
+		public int rollbackTransaction(int levels) {
+			for (GlobalStore store : getStores()) store.rollbackTransaction(levels);
+			return getTransactionLevel();
+		}
+		
+		@Override
+		public int getTransactionLevel() {
+			return this.defaultStore.getTransactionLevel();
+		}
+		
+		/** A global split over several stores by its first subscript */
+		private static class RoutingMVar extends MVar {
+			private final Route route;
+			private final Map<GlobalStore, MVar> roots;
+			
+			RoutingMVar(String name, Route route) {
+				super(name);
+				this.route = route;
+				this.roots = new LinkedHashMap<>();
+				this.roots.put(route.base, route.base.get(name));
+				for (Mapping m : route.ranges) {
+					if (!this.roots.containsKey(m.store)) this.roots.put(m.store, m.store.get(name));
+				}
+			}
+			
+			private RoutingMVar(RoutingMVar root, MVarKey path) {
+				super(root, path);
+				this.route = root.route;
+				this.roots = root.roots;
+			}
+			
+			/** the backing MVar that holds the node */
+			private MVar target(MVarKey key) {
+				if (key.size() == 0) return this.roots.get(this.route.base);
+				byte[] sub = key.splice(1).getEncoded();
+				for (Mapping m : this.route.ranges) {
+					if (m.contains(sub)) return this.roots.get(m.store);
+				}
+				return this.roots.get(this.route.base);
+			}
+			
+			private MVar node() {
+				return target(this.path).get(this.path);
+			}
+
+			@Override
+			public Object doGetValue(MVarKey key) {
+				return target(key).doGetValue(key);
+			}
+
+			@Override
+			public Object doSetValue(MVarKey key, Object val) {
+				return target(key).doSetValue(key, val);
+			}
+			
+			@Override
+			public Number increment(Number inc) {
+				return node().increment(inc);
+			}
+
+			@Override
+			public Object unset() {
+				return node().unset();
+			}
+			
+			@Override
+			public void kill() {
+				if (this.path.size() > 0) {
+					node().kill();
+				} else {
+					for (MVar root : this.roots.values()) root.kill();
+				}
+			}
+			
+			/** Below the first subscript everything is in one store, which can copy in bulk */
+			@Override
+			public void merge(MVar src) {
+				if (this.path.size() > 0 && !src.getName().equals(getName())) {
+					node().merge(src);
+				} else {
+					super.merge(src);
+				}
+			}
+
+			@Override
+			public boolean isDefined() {
+				return node().isDefined();
+			}
+
+			@Override
+			public boolean hasDescendents() {
+				if (this.path.size() > 0) return node().hasDescendents();
+				for (MVar root : this.roots.values()) {
+					if (root.hasDescendents()) return true;
+				}
+				return false;
+			}
+
+			@Override
+			public MVar get(MVarKey key) {
+				return new RoutingMVar((RoutingMVar) this.root, key);
+			}
+
+			@Override
+			protected Iterator<MVarKey> iterator() {
+				if (this.path.size() > 0) return node().iterator();
+				List<Iterator<MVarKey>> itrs = new ArrayList<>();
+				for (MVar root : this.roots.values()) itrs.add(root.iterator());
+				return new MergingIterator(itrs, false);
+			}
+			
+			@Override
+			protected Iterator<MVarKey> iterator(MVarKey from, MVarKey to) {
+				if (this.path.size() > 0) return node().iterator(from, to);
+				List<Iterator<MVarKey>> itrs = new ArrayList<>();
+				for (MVar root : this.roots.values()) itrs.add(root.iterator(from, to));
+				return new MergingIterator(itrs, false);
+			}
+			
+			@Override
+			protected Iterator<MVarKey> reverseIterator(MVarKey before) {
+				if (this.path.size() > 0) return node().reverseIterator(before);
+				List<Iterator<MVarKey>> itrs = new ArrayList<>();
+				for (MVar root : this.roots.values()) itrs.add(root.reverseIterator(before));
+				return new MergingIterator(itrs, true);
+			}
+		}
+		
+		/** Merges iterators that are each in MVarKey order (or each in reverse order) */
+		private static class MergingIterator implements Iterator<MVarKey> {
+			private final List<Iterator<MVarKey>> itrs;
+			private final MVarKey[] heads;
+			private final int sign;
+			
+			MergingIterator(List<Iterator<MVarKey>> itrs, boolean reverse) {
+				this.itrs = itrs;
+				this.sign = reverse ? -1 : 1;
+				this.heads = new MVarKey[itrs.size()];
+				for (int i=0; i < this.heads.length; i++) advance(i);
+			}
+			
+			// some MVar iterators advance in hasNext(), so call it exactly once per next()
+			private void advance(int i) {
+				Iterator<MVarKey> itr = this.itrs.get(i);
+				this.heads[i] = itr.hasNext() ? itr.next() : null;
+			}
+			
+			private int lowest() {
+				int ret = -1;
+				for (int i=0; i < this.heads.length; i++) {
+					if (this.heads[i] == null) continue;
+					if (ret < 0 || this.sign * MVarKeyType.compare(this.heads[i].getEncoded(), this.heads[ret].getEncoded()) < 0) ret = i;
+				}
+				return ret;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return lowest() >= 0;
+			}
+
+			@Override
+			public MVarKey next() {
+				int i = lowest();
+				if (i < 0) throw new NoSuchElementException();
+				MVarKey ret = this.heads[i];
+				advance(i);
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+	}
 }
@@ -0,0 +1,356 @@
+package com.braylabs.m4j.global;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.braylabs.m4j.global.MVar.MVarKey;
+import com.braylabs.m4j.global.MVar.MVarKeyType;
+
+/**
+ * Runtime wide lock table for the LOCK command.
+ *
+ * Locks are named by a variable name + subscripts and are hierarchical: locking ^X(1) conflicts
+ * with ^X, ^X(1) and ^X(1,2) held by other owners but not with ^X(2).  Locks are re-entrant and
+ * counted per owner (incremental LOCK +^X twice needs two LOCK -^X).
+ *
+ * The table is striped by variable name, each stripe holds a TreeMap per name ordered by the encoded
+ * subscripts (see MVarKeyType) so conflicts are found with a handful of lookups.  Waiters block on
+ * their stripe's monitor.  A waits-for map between owners is used to detect deadlocks.
+ */
+public class LockManager {
+
+	private static final Comparator<byte[]> BYTES_ORDER = new Comparator<byte[]>() {
+		@Override
+		public int compare(byte[] o1, byte[] o2) {
+			return MVarKeyType.compare(o1, o2);
+		}
+	};
+
+	private final Stripe[] stripes;
+	private final ConcurrentMap<Object, Set<Held>> owned = new ConcurrentHashMap<>();
+	private final ConcurrentMap<Object, Object> waitsFor = new ConcurrentHashMap<>();
+
+	// metrics
+	private final AtomicLong acquired = new AtomicLong();
+	private final AtomicLong contended = new AtomicLong();
+	private final AtomicLong timeouts = new AtomicLong();
+	private final AtomicLong deadlocks = new AtomicLong();
+
+	public LockManager() {
+		this(64);
+	}
+
+	public LockManager(int stripeCount) {
+		this.stripes = new Stripe[Math.max(1, stripeCount)];
+		for (int i=0; i < this.stripes.length; i++) {
+			this.stripes[i] = new Stripe();
+		}
+	}
+
+	/** Thrown when waiting for a lock (without a timeout) would never return */
+	public static class DeadlockException extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		public DeadlockException(String msg) {
+			super(msg);
+		}
+	}
+
+	/** Name of a lock, ie ^X(1,2) */
+	public static class LockRef implements Comparable<LockRef> {
+		private final String name;
+		private final MVarKey key;
+		private final byte[] encoded;
+
+		public LockRef(String name, MVarKey key) {
+			this.name = name;
+			this.key = (key == null) ? new MVarKey() : key;
+			this.encoded = this.key.getEncoded();
+		}
+
+		public LockRef(String name, Comparable... keys) {
+			this(name, MVarKey.valueOf(keys));
+		}
+
+		public String getName() {
+			return this.name;
+		}
+
+		public MVarKey getKey() {
+			return this.key;
+		}
+
+		@Override
+		public int compareTo(LockRef o) {
+			int ret = this.name.compareTo(o.name);
+			return (ret != 0) ? ret : MVarKeyType.compare(this.encoded, o.encoded);
+		}
+
+		@Override
+		public String toString() {
+			return (this.key.size() == 0) ? this.name : this.name + this.key;
+		}
+	}
+
+	private static class Held {
+		final LockRef ref;
+		final Object owner;
+		int count;
+
+		Held(LockRef ref, Object owner) {
+			this.ref = ref;
+			this.owner = owner;
+		}
+	}
+
+	/** Guarded by synchronizing on itself, waiters wait() on it too */
+	private static class Stripe {
+		final Map<String, NavigableMap<byte[], Held>> names = new HashMap<>();
+	}
+
+	private Stripe stripe(String name) {
+		int h = name.hashCode();
+		h ^= (h >>> 16);
+		return this.stripes[(h & 0x7FFFFFFF) % this.stripes.length];
+	}
+
+	// locking ----------------------------------------------------------------
+
+	/** Incrementally lock a single ref, see lock(Object, List, long) */
+	public boolean lock(Object owner, LockRef ref, long timeoutMillis) {
+		return lock(owner, Collections.singletonList(ref), timeoutMillis);
+	}
+
+	/**
+	 * Incrementally acquire all the locks (or none of them).
+	 * Refs are acquired in a canonical order so concurrent multi-lock requests cannot deadlock each other.
+	 *
+	 * @param timeoutMillis how long to wait, 0 to only try once, < 0 to wait forever
+	 * @return false if the timeout expired (or a deadlock was detected while waiting with a timeout)
+	 * @throws DeadlockException if a deadlock is detected while waiting without a timeout
+	 */
+	public boolean lock(Object owner, List<LockRef> refs, long timeoutMillis) {
+		List<LockRef> sorted = new ArrayList<>(refs);
+		Collections.sort(sorted);
+		long deadline = (timeoutMillis < 0) ? Long.MAX_VALUE : System.currentTimeMillis() + timeoutMillis;
+
+		for (int i=0; i < sorted.size(); i++) {
+			if (!acquire(owner, sorted.get(i), deadline, timeoutMillis >= 0)) {
+				// back out what we got so far
+				for (int j=0; j < i; j++) {
+					unlock(owner, sorted.get(j));
+				}
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private boolean acquire(Object owner, LockRef ref, long deadline, boolean timed) {
+		Stripe stripe = stripe(ref.name);
+		boolean waited = false;
+		synchronized (stripe) {
+			try {
+				NavigableMap<byte[], Held> locks;
+				while (true) {
+					// re-fetch after waiting, the map is dropped from the stripe when it empties
+					locks = stripe.names.get(ref.name);
+					if (locks == null) {
+						stripe.names.put(ref.name, locks = new TreeMap<>(BYTES_ORDER));
+					}
+					Object blocker = findConflict(locks, ref, owner);
+					if (blocker == null) break;
+
+					if (!waited) {
+						waited = true;
+						this.contended.incrementAndGet();
+					}
+
+					// check for a cycle before (re)waiting
+					if (!waitFor(owner, blocker)) {
+						this.deadlocks.incrementAndGet();
+						if (timed) return false;
+						throw new DeadlockException("Deadlock detected waiting for lock: " + ref);
+					}
+
+					long remaining = deadline - System.currentTimeMillis();
+					if (remaining <= 0) {
+						this.timeouts.incrementAndGet();
+						return false;
+					}
+
+					// wake up periodically to re-check for deadlocks formed while we were waiting
+					stripe.wait(Math.min(remaining, 100));
+				}
+
+				Held held = locks.get(ref.encoded);
+				if (held == null) {
+					locks.put(ref.encoded, held = new Held(ref, owner));
+					ownedBy(owner).add(held);
+				}
+				held.count++;
+				this.acquired.incrementAndGet();
+				return true;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				// before leaving the monitor, so no one sees us waiting while we hold the lock
+				if (waited) this.waitsFor.remove(owner);
+			}
+		}
+	}
+
+	/** @return the owner of a lock that conflicts with ref or null */
+	private static Object findConflict(NavigableMap<byte[], Held> locks, LockRef ref, Object owner) {
+		if (locks.isEmpty()) return null;
+
+		// ancestors (and the node itself)
+		int size = ref.key.size();
+		for (int i=0; i <= size; i++) {
+			byte[] prefix = (i == size) ? ref.encoded : ref.key.splice(i).getEncoded();
+			Held held = locks.get(prefix);
+			if (held != null && held.owner != owner) return held.owner;
+		}
+
+		// descendants sort directly after the node
+		for (Held held : locks.tailMap(ref.encoded, false).values()) {
+			if (!held.ref.key.startsWith(ref.key)) break;
+			if (held.owner != owner) return held.owner;
+		}
+		return null;
+	}
+
+	/**
+	 * Records that owner waits for blocker, unless that closes a cycle.  Atomic so only one of 
+	 * the owners in a cycle sees it (and backs off).
+	 * @return false if waiting would deadlock
+	 */
+	private boolean waitFor(Object owner, Object blocker) {
+		synchronized (this.waitsFor) {
+			this.waitsFor.put(owner, blocker);
+			if (!isDeadlocked(owner)) return true;
+			this.waitsFor.remove(owner);
+			return false;
+		}
+	}
+	
+	/** follow the waits-for chain from owner, a deadlock if it leads back to owner */
+	private boolean isDeadlocked(Object owner) {
+		Object cur = this.waitsFor.get(owner);
+		for (int i=0; cur != null && i < 10000; i++) {
+			if (cur == owner) return true;
+			cur = this.waitsFor.get(cur);
+		}
+		return false;
+	}
+
+	private Set<Held> ownedBy(Object owner) {
+		Set<Held> ret = this.owned.get(owner);
+		if (ret == null) {
+			Set<Held> tmp = Collections.newSetFromMap(new ConcurrentHashMap<Held, Boolean>());
+			ret = this.owned.putIfAbsent(owner, tmp);
+			if (ret == null) ret = tmp;
+		}
+		return ret;
+	}
+
+	// unlocking --------------------------------------------------------------
+
+	/** Decrement the lock count of a ref (LOCK -^X), releasing it when it reaches 0 */
+	public boolean unlock(Object owner, LockRef ref) {
+		Stripe stripe = stripe(ref.name);
+		synchronized (stripe) {
+			NavigableMap<byte[], Held> locks = stripe.names.get(ref.name);
+			Held held = (locks == null) ? null : locks.get(ref.encoded);
+			if (held == null || held.owner != owner) return false;
+			if (--held.count <= 0) {
+				release(stripe, locks, held);
+			}
+			return true;
+		}
+	}
+
+	/** Release everything the owner holds (argumentless or non-incremental LOCK, process exit) */
+	public void unlockAll(Object owner) {
+		Set<Held> helds = this.owned.remove(owner);
+		if (helds == null) return;
+		for (Held held : helds) {
+			Stripe stripe = stripe(held.ref.name);
+			synchronized (stripe) {
+				NavigableMap<byte[], Held> locks = stripe.names.get(held.ref.name);
+				if (locks != null && locks.get(held.ref.encoded) == held) {
+					release(stripe, locks, held);
+				}
+			}
+		}
+	}
+
+	private void release(Stripe stripe, NavigableMap<byte[], Held> locks, Held held) {
+		locks.remove(held.ref.encoded);
+		if (locks.isEmpty()) stripe.names.remove(held.ref.name);
+		Set<Held> helds = this.owned.get(held.owner);
+		if (helds != null) helds.remove(held);
+
+		// waiters re-register who they wait for when they wake up, drop the stale edges now
+		if (!this.waitsFor.isEmpty()) {
+			this.waitsFor.values().removeAll(Collections.singleton(held.owner));
+		}
+		stripe.notifyAll();
+	}
+
+	/** @return the lock count the owner has on exactly this ref */
+	public int getLockCount(Object owner, LockRef ref) {
+		Stripe stripe = stripe(ref.name);
+		synchronized (stripe) {
+			NavigableMap<byte[], Held> locks = stripe.names.get(ref.name);
+			Held held = (locks == null) ? null : locks.get(ref.encoded);
+			return (held == null || held.owner != owner) ? 0 : held.count;
+		}
+	}
+
+	/** @return the locks held by the owner */
+	public List<LockRef> getLocks(Object owner) {
+		List<LockRef> ret = new ArrayList<>();
+		Set<Held> helds = this.owned.get(owner);
+		if (helds != null) {
+			for (Held held : helds) ret.add(held.ref);
+		}
+		Collections.sort(ret);
+		return ret;
+	}
+
+	// metrics ----------------------------------------------------------------
+
+	public long getAcquiredCount() {
+		return this.acquired.get();
+	}
+
+	/** Number of acquisitions that had to wait */
+	public long getContendedCount() {
+		return this.contended.get();
+	}
+
+	public long getTimeoutCount() {
+		return this.timeouts.get();
+	}
+
+	public long getDeadlockCount() {
+		return this.deadlocks.get();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("LockManager[acquired=%d, contended=%d, timeouts=%d, deadlocks=%d]",
+				getAcquiredCount(), getContendedCount(), getTimeoutCount(), getDeadlockCount());
+	}
+}
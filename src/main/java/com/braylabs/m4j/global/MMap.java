@@ -1,6 +1,8 @@
 package com.braylabs.m4j.global;
 
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.StringWriter;
 import java.util.AbstractMap;
 import java.util.Arrays;
 import java.util.Comparator;
@@ -16,7 +18,9 @@ import org.h2.mvstore.Cursor;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
 
+import com.fasterxml.jackson.core.JsonFactory;
 import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.util.MinimalPrettyPrinter;
 
 public interface MMap<K extends Serializable & Comparable<K>, V extends Serializable> 
 	extends Map<K,V>, Map.Entry<K, V>, Comparable<MMap<K,V>> { 
@@ -140,13 +144,29 @@ public interface MMap<K extends Serializable & Comparable<K>, V extends Serializ
 		}
 		
 		// serialization stuff ----------------------------------------------------
+		
+		/** JSON Lines, one object per defined node, same format as GlobalExport */
 		public String toJSON() {
-			JsonGenerator gen = null;
-			writeJSON(gen);
-			return null;
+			StringWriter sw = new StringWriter();
+			try {
+				JsonGenerator gen = new JsonFactory().createJsonGenerator(sw);
+				gen.setPrettyPrinter(new MinimalPrettyPrinter("\n"));
+				writeJSON(gen);
+				gen.flush();
+			} catch (IOException e) {
+				throw new IllegalStateException(e); // not expected writing to a string
+			}
+			return sw.toString();
 		}
 		
-		private void writeJSON(JsonGenerator gen) {
+		public void writeJSON(JsonGenerator gen) throws IOException {
+			V val = getValue();
+			if (val != null) {
+				GlobalExport.writeJSON(gen, getName(), getPath(), val);
+			}
+			for (K k : keySet()) {
+				((AbstractMMap<K,V>) getNode(k)).writeJSON(gen);
+			}
 		}
 		
 		@Override
@@ -1,12 +1,37 @@
 package com.braylabs.m4j.global;
 
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.ConcurrentModificationException;
 import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLong;
 
+import org.h2.mvstore.Cursor;
+import org.h2.mvstore.DataUtils;
 import org.h2.mvstore.MVMap;
 import org.h2.mvstore.MVStore;
+import org.h2.mvstore.Page;
+import org.h2.mvstore.WriteBuffer;
+import org.h2.mvstore.type.DataType;
+import org.h2.mvstore.type.ObjectDataType;
 
+import com.braylabs.m4j.lang.MNumber;
 import com.braylabs.m4j.lang.MVal;
 import com.braylabs.m4j.parser.MParserUtils;
 import com.intersys.globals.Connection;
@@ -18,7 +43,7 @@ import com.intersys.globals.NodeReference;
  * - add a size() mechanism
  * - in toString(), make it indent values like %G does
  * - both MVar.data implementations are navigable map/map interfaces, can we take advantage of that and have more reuse?
- * - lock for the variable for atomic operations?
+ * - lock for the variable for atomic operations? (LOCK is implemented by LockManager)
  * @author brian
  *
  */
@@ -45,6 +70,11 @@ public abstract class MVar {
 		return (this.name == null) ? this.root.name : this.name;
 	}
 	
+	/** Subscripts of this node (empty for the root) */
+	public MVarKey getPath() {
+		return this.path;
+	}
+	
 	public String getFullName() {
 		return getName() + ((path != null) ? path.toString() : "");
 	}
@@ -78,6 +108,68 @@ public abstract class MVar {
 		return doSetValue(this.path, val);
 	}
 	
+	/**
+	 * Atomically adds inc to this nodes numeric value (undefined is 0), returns the new value.
+	 * The default implementation just locks the root node, which is only atomic for callers
+	 * sharing the same root instance.
+	 */
+	public Number increment(Number inc) {
+		synchronized (this.root) {
+			Number ret = MParserUtils.addNumeric(MParserUtils.evalNumericValue(val()), inc);
+			set(ret);
+			return ret;
+		}
+	}
+	
+	/**
+	 * Removes this node and all its descendants (KILL).  The default implementation removes 
+	 * them one at a time, subclasses remove the whole range at once.
+	 */
+	public void kill() {
+		List<MVarKey> keys = new ArrayList<>();
+		Iterator<MVarKey> itr = iterator();
+		while (itr.hasNext()) keys.add(itr.next());
+		for (MVarKey key : keys) get(key).unset();
+		unset();
+	}
+	
+	/**
+	 * MERGE this=src: copies src and all its descendants under this node, overwriting existing 
+	 * nodes but keeping the others.  src is streamed in key order and each key gets its prefix 
+	 * replaced in its encoded form (see MVarKeyType), so the subscripts are never decoded.
+	 * @throws IllegalArgumentException if one is a descendant of the other
+	 */
+	public void merge(MVar src) {
+		if (!checkMerge(src)) return;
+		Object val = src.val();
+		if (val != null) mergeValue(this.path, val);
+		
+		byte[] to = this.path.getEncoded();
+		int from = src.path.getEncoded().length;
+		Iterator<MVarKey> itr = src.iterator(null, null);
+		while (itr.hasNext()) {
+			MVarKey key = itr.next();
+			if (key.getEncoded().length == from) continue; // some iterators include the node itself
+			mergeValue(key.rebase(from, to), src.doGetValue(key));
+		}
+	}
+	
+	/** @return false if src is this node (nothing to do) */
+	protected boolean checkMerge(MVar src) {
+		if (src.getName().equals(getName())) {
+			if (src.path.equals(this.path)) return false;
+			if (src.path.startsWith(this.path) || this.path.startsWith(src.path)) {
+				throw new IllegalArgumentException("MERGE source and target overlap: " + getFullName() + "=" + src.getFullName());
+			}
+		}
+		return true;
+	}
+	
+	/** Writes a node copied by merge(), subclasses can leave out per write overhead (commits, etc.) */
+	protected void mergeValue(MVarKey key, Object val) {
+		doSetValue(key, val);
+	}
+	
 	// abstract methods -------------------------------------------------------
 
 	/* Returns this nodes value, same as get(null) */
@@ -87,9 +179,73 @@ public abstract class MVar {
 	public abstract boolean isDefined();
 	public abstract boolean hasDescendents();
 	public abstract MVar get(MVarKey key);
-	public abstract MVarKey nextKey();
-	public abstract MVarKey prevKey();
 	protected abstract Iterator<MVarKey> iterator(); 
+	
+	/** 
+	 * Iterates the keys of all the descendants in the range [from, to), null meaning unbounded.
+	 * Implementations that cannot iterate a partial range only support iterator(null, null).
+	 */
+	protected Iterator<MVarKey> iterator(MVarKey from, MVarKey to) {
+		if (from != null || to != null) throw new UnsupportedOperationException();
+		return iterator();
+	}
+	
+	/** Returns up to n-1 keys that split the descendants into ranges of roughly equal size, empty if not supported */
+	protected List<MVarKey> splitKeys(int n) {
+		return Collections.emptyList();
+	}
+	
+	/** Iterates the keys of all the descendants before the given key (null for all) in descending order */
+	protected Iterator<MVarKey> reverseIterator(MVarKey before) {
+		throw new UnsupportedOperationException();
+	}
+	
+	/**
+	 * Changes whenever a node is added to or removed from the variable (not when a value is 
+	 * replaced), -1 if this is not tracked.  Used by MVarCursor to tell if it can keep iterating.
+	 */
+	protected long modCount() {
+		return -1;
+	}
+	
+	/** True if both keys are the same node of this variable, by default as collated by MVarKeyType */
+	protected boolean isSameKey(MVarKey a, MVarKey b) {
+		return MVarKeyType.compare(a.getEncoded(), b.getEncoded()) == 0;
+	}
+	
+	/** True if key is node or one of its descendants, see isSameKey() */
+	protected boolean isUnder(MVarKey key, MVarKey node) {
+		return key.startsWith(node);
+	}
+	
+	/** The next sibling of this node ($ORDER), null if there is none.  A "" subscript gives the first one. */
+	public MVarKey nextKey() {
+		return siblingKey(false);
+	}
+	
+	/** The previous sibling of this node ($ORDER(,-1)), null if there is none.  A "" subscript gives the last one. */
+	public MVarKey prevKey() {
+		return siblingKey(true);
+	}
+	
+	private MVarKey siblingKey(boolean reverse) {
+		if (this.path.size() == 0) return null;
+		MVarCursor cursor = cursor(reverse);
+		return cursor.next() ? cursor.getKey() : null;
+	}
+	
+	/** Cursor over the siblings of this node in $ORDER order, starting after (or before) it, a "" subscript starts at the first (or last) */
+	public MVarCursor cursor(boolean reverse) {
+		int size = this.path.size();
+		if (size == 0) throw new IllegalStateException("Root node has no siblings: " + getFullName());
+		MVar parent = get(this.path.splice(size-1));
+		return new MVarCursor(parent, "".equals(this.path.getLastKey()) ? null : this.path, reverse, false);
+	}
+	
+	/** Cursor over all the nodes of the variable in $QUERY order, starting after (or before) this node */
+	public MVarCursor queryCursor(boolean reverse) {
+		return new MVarCursor(this.root, (this.path.size() == 0) ? null : this.path, reverse, true);
+	}
 
 	@Override
 	public String toString() {
@@ -114,53 +270,384 @@ public abstract class MVar {
 		return sb.toString();
 	}
 	
+	// cursor -----------------------------------------------------------------
+	
+	/**
+	 * Position of a $ORDER/$QUERY loop that is kept between calls.  Instead of building the 
+	 * "after all children" key and seeking from the root of the b-tree for every step (like 
+	 * nextKey()) it keeps the iterator open and skips over the descendants of the current node, 
+	 * re-seeking if there are too many of them or if nodes were added/removed (see modCount()).
+	 * Not thread safe, each process keeps its own.
+	 */
+	public static class MVarCursor {
+		/** descendants to step over before seeking past them is cheaper */
+		private static final int SKIP_LIMIT = 32;
+		
+		private final MVar parent;
+		private final boolean reverse;
+		private final boolean query;
+		private final int level; // subscripts of the returned keys, 0 for any ($QUERY)
+		private MVarKey current;
+		private Iterator<MVarKey> itr;
+		private long mods;
+		
+		MVarCursor(MVar parent, MVarKey start, boolean reverse, boolean query) {
+			this.parent = parent;
+			this.current = start;
+			this.reverse = reverse;
+			this.query = query;
+			this.level = query ? 0 : parent.path.size() + 1;
+		}
+		
+		/** Moves to the next (or previous) node, false if there are no more */
+		public boolean next() {
+			long mods = this.parent.modCount();
+			if (this.itr == null || mods < 0 || mods != this.mods) seek(mods);
+			
+			int skipped = 0;
+			while (this.itr.hasNext()) {
+				MVarKey key = this.itr.next();
+				if (this.current != null && (this.query ? this.parent.isSameKey(key, this.current) : this.parent.isUnder(key, this.current))) {
+					if (++skipped >= SKIP_LIMIT) {
+						seek(mods);
+						skipped = 0;
+					}
+					continue;
+				}
+				this.current = this.query ? key : key.prefix(this.level);
+				return true;
+			}
+			this.current = null;
+			this.itr = null;
+			return false;
+		}
+		
+		private void seek(long mods) {
+			this.mods = mods;
+			if (this.reverse) {
+				this.itr = this.parent.reverseIterator(this.current);
+			} else if (this.current == null) {
+				this.itr = this.parent.iterator(null, null);
+			} else {
+				// $QUERY continues with the descendants, $ORDER after them
+				this.itr = this.parent.iterator(this.query ? this.current : this.current.append((Comparable) null), null);
+			}
+		}
+		
+		/** The key of the current node, null before the first or after the last one */
+		public MVarKey getKey() {
+			return this.current;
+		}
+		
+		/** The current node, null before the first or after the last one */
+		public MVar getNode() {
+			return (this.current == null) ? null : this.parent.get(this.current);
+		}
+		
+		/** True if this cursor is at node (of the same variable instance) and moves in the given direction/order */
+		public boolean isAt(MVar node, boolean reverse, boolean query) {
+			return this.current != null && this.reverse == reverse && this.query == query
+					&& node.root == this.parent.root && this.parent.isSameKey(node.path, this.current);
+		}
+	}
+	
 	// map implementation -----------------------------------------------------
 	
 	// subclasses -------------------------------------------------------------
 	
 	public static class MVStoreMVar extends MVar {
-		private MVMap<MVarKey, Serializable> data;
+		/** nodes per cursor seek for kill() and merge() within the same global */
+		private static final int BATCH = 4096;
+		private MVarMap data;
 		private MVStore store;
+		private GlobalStore.MVGlobalStore globals;
 
+		/** Standalone global, commits after every write */
 		public MVStoreMVar(MVStore store, String name) {
 			super(name);
 			this.store = store;
-			this.data = store.openMap(name);
+			this.data = openMap(store, name);
+		}
+		
+		/** Opens the map backing the named global, keys are stored using MVarKeyType */
+		static MVarMap openMap(MVStore store, String name) {
+			// MVStore.openMap() is not thread safe
+			synchronized (store) {
+				return store.openMap(name, new MVMap.MapBuilder<MVarMap, MVarKey, Serializable>() {
+					@Override
+					public MVarMap create() {
+						return new MVarMap();
+					}
+				});
+			}
+		}
+		
+		/** 
+		 * Counts the puts of new keys and the removes for modCount(), MVMap modifies pages in place 
+		 * within a version so an open Cursor is not safe after those.  Writers hold the maps monitor.
+		 */
+		static class MVarMap extends MVMap<MVarKey, Serializable> {
+			private volatile long mods;
+			
+			MVarMap() {
+				super(MVarKeyType.INSTANCE, new ObjectDataType());
+			}
+			
+			@Override
+			public Serializable put(MVarKey key, Serializable value) {
+				Serializable ret = super.put(key, value);
+				if (ret == null) this.mods++;
+				return ret;
+			}
+			
+			@Override
+			public Serializable remove(Object key) {
+				Serializable ret = super.remove(key);
+				if (ret != null) this.mods++;
+				return ret;
+			}
+			
+			@Override
+			public void clear() {
+				super.clear();
+				this.mods++;
+			}
+		}
+		
+		/** Global owned by a MVGlobalStore, commits according to its CommitPolicy */
+		public MVStoreMVar(GlobalStore.MVGlobalStore globals, String name) {
+			this(globals.getStore(), name);
+			this.globals = globals;
 		}
 		
 		protected MVStoreMVar(MVStoreMVar root, MVarKey path) {
 			super(root, path);
 			this.store = root.store;
 			this.data = root.data;
+			this.globals = root.globals;
+		}
+		
+		private void afterWrite() {
+			if (this.globals != null) {
+				this.globals.afterWrite();
+			} else {
+				this.store.commit();
+			}
+		}
+		
+		private boolean inTransaction() {
+			return this.globals != null && this.globals.inTransaction();
+		}
+		
+		/** Records the current value of a node for TROLLBACK, caller must hold the maps monitor */
+		private void logUndo(MVarKey key) {
+			if (inTransaction()) {
+				this.globals.logUndo(getName(), key, this.data.get(key));
+			}
+		}
+		
+		/** Puts back a value recorded by logUndo(), bypassing the undo log and commit policy */
+		void restore(MVarKey key, Serializable old) {
+			synchronized (this.data) {
+				if (old == null) {
+					this.data.remove(key);
+				} else {
+					this.data.put(key, old);
+				}
+			}
+			GlobalCache cache = cache();
+			if (cache != null) cache.invalidate(getName(), key.getEncoded());
+		}
+		
+		/** Removes every node, recording them for TROLLBACK if a transaction is open */
+		void clear() {
+			synchronized (this.data) {
+				if (inTransaction()) {
+					Iterator<MVarKey> itr = this.data.keyIterator(null);
+					while (itr.hasNext()) logUndo(itr.next());
+				}
+				this.data.clear();
+			}
+			GlobalCache cache = cache();
+			if (cache != null) cache.invalidate(getName());
+		}
+		
+		private GlobalCache cache() {
+			return (this.globals == null) ? null : this.globals.getCache();
+		}
+		
+		/** Copies everything while holding the maps monitor, followed by a single commit */
+		@Override
+		public void merge(MVar src) {
+			synchronized (this.data) {
+				if (src instanceof MVStoreMVar && ((MVStoreMVar) src).data == this.data) {
+					mergeBatched(src);
+				} else {
+					super.merge(src);
+				}
+			}
+			GlobalCache cache = cache();
+			if (cache != null) cache.invalidate(getName());
+			afterWrite();
+		}
+		
+		/** 
+		 * merge() within the same global, writing to the map while iterating a cursor on it is not 
+		 * safe so the source is read in batches (a cursor seek per batch) like kill().
+		 */
+		private void mergeBatched(MVar src) {
+			if (!checkMerge(src)) return;
+			Object val = this.data.get(src.path);
+			if (val != null) mergeValue(this.path, val);
+			
+			byte[] to = this.path.getEncoded();
+			int from = src.path.getEncoded().length;
+			List<MVarKey> keys = new ArrayList<>(BATCH);
+			List<Serializable> vals = new ArrayList<>(BATCH);
+			MVarKey last = null;
+			do {
+				keys.clear();
+				vals.clear();
+				Iterator<MVarKey> itr = src.iterator(last, null);
+				while (keys.size() < BATCH && itr.hasNext()) {
+					MVarKey key = itr.next();
+					if (last != null && MVarKeyType.compare(key.getEncoded(), last.getEncoded()) == 0) continue;
+					keys.add(key);
+					vals.add(this.data.get(key));
+				}
+				for (int i=0; i < keys.size(); i++) {
+					mergeValue(keys.get(i).rebase(from, to), vals.get(i));
+				}
+				if (!keys.isEmpty()) last = keys.get(keys.size()-1);
+			} while (keys.size() == BATCH);
+		}
+		
+		@Override
+		protected void mergeValue(MVarKey key, Object val) {
+			MVarKey stored = key.toStored();
+			logUndo(stored);
+			this.data.put(stored, (Serializable) val);
+		}
+		
+		/** 
+		 * MVMap has no range delete, so the subtree is removed in batches (a cursor seek per batch) 
+		 * while holding the maps monitor, followed by a single commit.
+		 */
+		@Override
+		public void kill() {
+			if (this.path.size() == 0) {
+				clear();
+				afterWrite();
+				return;
+			}
+			
+			synchronized (this.data) {
+				List<MVarKey> batch = new ArrayList<>(BATCH);
+				do {
+					// a new cursor each time, removing while iterating a cursor is not safe
+					batch.clear();
+					Iterator<MVarKey> itr = this.data.keyIterator(this.path);
+					while (batch.size() < BATCH && itr.hasNext()) {
+						MVarKey key = itr.next();
+						if (!key.startsWith(this.path)) break;
+						batch.add(key);
+					}
+					for (MVarKey key : batch) {
+						logUndo(key);
+						this.data.remove(key);
+					}
+				} while (batch.size() == BATCH);
+			}
+			GlobalCache cache = cache();
+			if (cache != null) cache.invalidate(getName());
+			afterWrite();
 		}
 		
 		@Override
 		public Object doGetValue(MVarKey key) {
-			return this.data.get(key);
+			GlobalCache cache = cache();
+			if (cache == null) return this.data.get(key);
+			
+			// read-through, see GlobalCache for why the stamp is needed
+			String name = getName();
+			byte[] bytes = key.getEncoded();
+			Object ret = cache.get(name, bytes);
+			if (ret == GlobalCache.MISS) {
+				long stamp = cache.stamp(name, bytes);
+				ret = this.data.get(key);
+				cache.put(name, bytes, ret, stamp);
+			}
+			return ret;
 		}
 
 		@Override
 		public Object doSetValue(MVarKey key, Object val) {
-			this.data.put(key, (Serializable) val);
-			this.store.commit(); // should it autocommit like this?
+			MVarKey stored = key.toStored();
+			// MVMap supports concurrent reads but only a single writer (its own putIfAbsent() etc. lock the map too)
+			synchronized (this.data) {
+				logUndo(stored);
+				this.data.put(stored, (Serializable) val);
+			}
+			GlobalCache cache = cache();
+			if (cache != null) cache.invalidate(getName(), stored.getEncoded());
+			afterWrite();
 			return val;
 		}
 		
 		@Override
 		public Object unset() {
-			return this.data.remove(this.path);
+			Object ret;
+			synchronized (this.data) {
+				logUndo(this.path);
+				ret = this.data.remove(this.path);
+			}
+			GlobalCache cache = cache();
+			if (cache != null) cache.invalidate(getName(), this.path.getEncoded());
+			afterWrite();
+			return ret;
 		}
 
+		/** Compare-and-set loop on the map, so it is atomic for every MVar of the same global */
+		@Override
+		public Number increment(Number inc) {
+			MVarKey stored = this.path.toStored();
+			while (true) {
+				Number ret;
+				boolean swapped;
+				if (inTransaction()) {
+					// the undo record must hold exactly the value we replaced
+					synchronized (this.data) {
+						Serializable old = this.data.get(stored);
+						logUndo(stored);
+						ret = MParserUtils.addNumeric(MParserUtils.evalNumericValue(old), inc);
+						this.data.put(stored, ret);
+						swapped = true;
+					}
+				} else {
+					Serializable old = this.data.get(stored);
+					ret = MParserUtils.addNumeric(MParserUtils.evalNumericValue(old), inc);
+					swapped = (old == null) ? this.data.putIfAbsent(stored, ret) == null : this.data.replace(stored, old, ret);
+				}
+				if (swapped) {
+					GlobalCache cache = cache();
+					if (cache != null) cache.invalidate(getName(), stored.getEncoded());
+					afterWrite();
+					return ret;
+				}
+			}
+		}
+		
 		@Override
 		public boolean isDefined() {
+			// null values are never stored, so this can be answered by the cache too
+			if (cache() != null) return doGetValue(this.path) != null;
 			return this.data.containsKey(path);
 		}
 		
 		@Override
 		public boolean hasDescendents() {
 			MVarKey next = data.higherKey(this.path);
-			if (next == null) return false;
-			return (next.before(this.path.append(null)));
+			return next != null && next.startsWith(this.path);
 		}
 
 		@Override
@@ -168,27 +655,9 @@ public abstract class MVar {
 			return new MVStoreMVar(( MVStoreMVar) this.root, key);
 		}
 		
-		@Override
-		public MVarKey nextKey() {
-			MVarKey tmp = this.path.append(null);
-			MVarKey next = data.higherKey(tmp);
-			if (next == null) return null;
-			
-			// if next node is at a higher level, return null (no more nodes on same level)
-			if (this.path.size() > next.size()) return null;
-			
-			// if next node is at a lower level, splice it to same level
-			return next.splice(this.path.size());
-		}
-		
-		@Override
-		public MVarKey prevKey() {
-			return data.floorKey(this.path);
-		}
-
 		@Override
 		protected Iterator<MVarKey> iterator() {
-			final MVarKey stopAt = this.path.append(null);
+			final MVarKey prefix = this.path;
 			final Iterator<MVarKey> itr = data.keyIterator(this.path);
 			
 			return new Iterator<MVarKey>() {
@@ -198,7 +667,7 @@ public abstract class MVar {
 				public boolean hasNext() {
 					if (!itr.hasNext()) return false;
 					last = itr.next();
-					if (!last.before(stopAt)) last = null;
+					if (!last.startsWith(prefix)) last = null;
 					return last != null;
 				}
 
@@ -212,10 +681,196 @@ public abstract class MVar {
 					itr.remove();
 				}};
 		}
+		@Override
+		protected Iterator<MVarKey> iterator(MVarKey from, final MVarKey to) {
+			final MVarKey prefix = this.path;
+			final byte[] toBytes = (to == null) ? null : to.getEncoded();
+			final int prefixLen = prefix.getEncoded().length;
+			final Cursor<MVarKey> itr = data.keyIterator((from == null) ? this.path : from);
+			
+			return new Iterator<MVarKey>() {
+				MVarKey next = advance();
+				
+				private MVarKey advance() {
+					while (itr.hasNext()) {
+						MVarKey key = itr.next();
+						if (!key.startsWith(prefix)) return null;
+						if (toBytes != null && MVarKeyType.compare(key.getEncoded(), toBytes) >= 0) return null;
+						if (key.getEncoded().length > prefixLen) return key; // skip the node itself
+					}
+					return null;
+				}
+				
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public MVarKey next() {
+					if (next == null) throw new NoSuchElementException();
+					MVarKey ret = next;
+					next = advance();
+					return ret;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}};
+		}
+		
+		@Override
+		protected Iterator<MVarKey> reverseIterator(MVarKey before) {
+			final MVarKey prefix = this.path;
+			final int prefixLen = prefix.getEncoded().length;
+			final DescendingCursor itr = new DescendingCursor(this.data.getRoot(), (before == null) ? prefix.append((Comparable) null) : before);
+			
+			return new Iterator<MVarKey>() {
+				MVarKey next = advance();
+				
+				private MVarKey advance() {
+					if (!itr.hasNext()) return null;
+					MVarKey key = itr.next();
+					if (!key.startsWith(prefix) || key.getEncoded().length == prefixLen) return null;
+					return key;
+				}
+				
+				@Override
+				public boolean hasNext() {
+					return next != null;
+				}
+
+				@Override
+				public MVarKey next() {
+					if (next == null) throw new NoSuchElementException();
+					MVarKey ret = next;
+					next = advance();
+					return ret;
+				}
+
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}};
+		}
+		
+		/** 
+		 * The keys before a key in descending order, MVMap only has an ascending Cursor.  Same as 
+		 * Cursor it keeps a stack of positions from the root page, each step just moves back one 
+		 * key (or to the last key of the previous page) so pages are only visited once.
+		 */
+		private static class DescendingCursor implements Iterator<MVarKey> {
+			private static class Pos {
+				final Page page;
+				int index; // key (leaf) or child (node) to visit next
+				final Pos parent;
+				
+				Pos(Page page, int index, Pos parent) {
+					this.page = page;
+					this.index = index;
+					this.parent = parent;
+				}
+			}
+			
+			private Pos pos;
+			private MVarKey current;
+			
+			DescendingCursor(Page root, MVarKey before) {
+				max(root, before);
+				fetch();
+			}
+			
+			/** descends to the last key before the given key (null for the last key) */
+			private void max(Page p, MVarKey before) {
+				while (!p.isLeaf()) {
+					// keys equal to a separator are in the child after it
+					int x = p.getChildPageCount() - 1;
+					if (before != null) {
+						x = p.binarySearch(before);
+						x = (x < 0) ? -x - 1 : x + 1;
+					}
+					this.pos = new Pos(p, x - 1, this.pos);
+					p = p.getChildPage(x);
+				}
+				int x = p.getKeyCount() - 1;
+				if (before != null) {
+					x = p.binarySearch(before);
+					x = (x < 0) ? -x - 2 : x - 1;
+				}
+				this.pos = new Pos(p, x, this.pos);
+			}
+			
+			private void fetch() {
+				while (this.pos != null) {
+					Pos p = this.pos;
+					if (p.index < 0) {
+						this.pos = p.parent;
+					} else if (p.page.isLeaf()) {
+						this.current = (MVarKey) p.page.getKey(p.index--);
+						return;
+					} else {
+						max(p.page.getChildPage(p.index--), null);
+					}
+				}
+				this.current = null;
+			}
+			
+			@Override
+			public boolean hasNext() {
+				return this.current != null;
+			}
+			
+			@Override
+			public MVarKey next() {
+				if (this.current == null) throw new NoSuchElementException();
+				MVarKey ret = this.current;
+				fetch();
+				return ret;
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+		
+		@Override
+		protected long modCount() {
+			return this.data.mods;
+		}
+		
+		@Override
+		protected List<MVarKey> splitKeys(int n) {
+			List<MVarKey> ret = new ArrayList<>();
+			long start = data.getKeyIndex(this.path);
+			if (start < 0) start = -(start + 1);
+			
+			// descendants are contiguous, binary search for the end of the subtree
+			long lo = start, hi = data.sizeAsLong();
+			while (lo < hi) {
+				long mid = (lo + hi) >>> 1;
+				if (data.getKey(mid).startsWith(this.path)) {
+					lo = mid + 1;
+				} else {
+					hi = mid;
+				}
+			}
+			
+			long count = lo - start;
+			for (int i=1; i < n && count >= n; i++) {
+				MVarKey key = data.getKey(start + count * i / n);
+				if (ret.isEmpty() || MVarKeyType.compare(ret.get(ret.size()-1).getEncoded(), key.getEncoded()) < 0) {
+					ret.add(key);
+				}
+			}
+			return ret;
+		}
 	}
 	
 	public static class TreeMVar extends MVar {
 		private TreeMap<MVarKey, Object> data = null;
+		private long mods; // on the root, see modCount()
 		
 		public TreeMVar(String name) {
 			super(name);
@@ -238,24 +893,6 @@ public abstract class MVar {
 			return new TreeMVar((TreeMVar) this.root, key);
 		}
 		
-		@Override
-		public MVarKey nextKey() {
-			MVarKey tmp = this.path.append(null);
-			MVarKey next = data.higherKey(tmp);
-			if (next == null) return null;
-			
-			// if next node is at a higher level, return null (no more nodes on same level)
-			if (this.path.size() > next.size()) return null;
-			
-			// if next node is at a lower level, splice it to same level
-			return next.splice(this.path.size());
-		}
-		
-		@Override
-		public MVarKey prevKey() {
-			return null;
-		}
-
 		@Override
 		public boolean isDefined() {
 			return data.containsKey(path);
@@ -265,18 +902,63 @@ public abstract class MVar {
 		public boolean hasDescendents() {
 			MVarKey next = data.higherKey(this.path);
 			if (next == null) return false;
-			return next.before(this.path.append(null));
+			return next.before(this.path.append((Comparable) null));
 		}
 		
 		@Override
 		public Object doSetValue(MVarKey key, Object val) {
-			data.put(key, val);
+			if (data.put(key, val) == null) ((TreeMVar) this.root).mods++;
 			return val;
 		}
 		
 		@Override
 		public Object unset() {
-			return data.remove(this.path);
+			Object ret = data.remove(this.path);
+			if (ret != null) ((TreeMVar) this.root).mods++;
+			return ret;
+		}
+		
+		/**
+		 * Keys are compared by their subscript values (2 and "2" are different nodes) so they are copied 
+		 * as values instead of being rebased in encoded form.  Numbers decoded from other backends 
+		 * become strings, which is what the interpreter uses for local subscripts.
+		 */
+		@Override
+		public void merge(MVar src) {
+			if (!checkMerge(src)) return;
+			Object val = src.val();
+			if (val != null) data.put(this.path, val);
+			
+			((TreeMVar) this.root).mods++;
+			boolean local = src instanceof TreeMVar;
+			int from = src.path.size();
+			Iterator<MVarKey> itr = src.iterator(null, null);
+			if (local && ((TreeMVar) src).data == data) {
+				// TreeMap iterators are fail-fast, copy the keys before writing to the same map
+				List<MVarKey> keys = new ArrayList<>();
+				while (itr.hasNext()) keys.add(itr.next());
+				itr = keys.iterator();
+			}
+			while (itr.hasNext()) {
+				MVarKey key = itr.next();
+				if (key.size() == from) continue;
+				Comparable[] subs = new Comparable[key.size() - from];
+				for (int i=0; i < subs.length; i++) {
+					Comparable sub = key.get(from + i);
+					subs[i] = (local || !(sub instanceof Number)) ? sub : sub.toString();
+				}
+				data.put(this.path.append(subs), src.doGetValue(key));
+			}
+		}
+		
+		@Override
+		public void kill() {
+			if (this.path.size() == 0) {
+				data.clear();
+			} else {
+				data.subMap(this.path, true, this.path.append((Comparable) null), false).clear();
+			}
+			((TreeMVar) this.root).mods++;
 		}
 		
 		@Override
@@ -286,87 +968,1230 @@ public abstract class MVar {
 		
 		@Override
 		protected Iterator<MVarKey> iterator() {
-			return data.subMap(this.path, false, this.path.append(null), false).keySet().iterator();
-		}
-	}
-	
-	public static class CacheMVar extends MVar {
-		private NodeReference ref;
-
-		public CacheMVar(NodeReference ref) {
-			super(ref.getName());
-			this.ref = ref;
+			return data.subMap(this.path, false, this.path.append((Comparable) null), false).keySet().iterator();
 		}
-
+		
 		@Override
-		public Object doGetValue(MVarKey key) {
-			return ref.getObject(this.path.keys);
+		protected Iterator<MVarKey> iterator(MVarKey from, MVarKey to) {
+			MVarKey lo = (from == null) ? this.path : from, hi = (to == null) ? this.path.append((Comparable) null) : to;
+			return data.subMap(lo, from != null, hi, false).keySet().iterator();
 		}
-
+		
 		@Override
-		public Object doSetValue(MVarKey key, Object val) {
-			ref.set(val.toString(), key.keys);
-			return null;
+		protected Iterator<MVarKey> reverseIterator(MVarKey before) {
+			return data.subMap(this.path, false, (before == null) ? this.path.append((Comparable) null) : before, false).descendingKeySet().iterator();
 		}
-
+		
 		@Override
-		public Object unset() {
-			ref.kill(this.path.keys);
-			return null;
+		protected long modCount() {
+			return ((TreeMVar) this.root).mods;
 		}
-
+		
+		/** By subscript values, like the TreeMap */
 		@Override
-		public boolean isDefined() {
-			return ref.exists(this.path.keys);
+		protected boolean isSameKey(MVarKey a, MVarKey b) {
+			return a.equals(b);
 		}
-
+		
 		@Override
-		public boolean hasDescendents() {
-			// TODO Auto-generated method stub
-			return false;
+		protected boolean isUnder(MVarKey key, MVarKey node) {
+			return key.startsWithValues(node);
 		}
-
+	}
+	
+	/**
+	 * Local variables, kept as a tree of subscript levels in MUMPS collation order (numbers before 
+	 * strings and canonic numeric strings are numbers, so "2" and 2 are the same node like in MVarKeyType).  
+	 * The children of a node are sorted chunks of parallel arrays with integer subscripts as primitive 
+	 * longs, a node costs a few array slots instead of a TreeMap entry + MVarKey + Comparable[] + subscript 
+	 * objects.  Integer subscripts come back as Integer/Long, other numbers as their canonic string.
+	 * A local created with a Spill moves to disk once it gets too big (see Spill).
+	 * Not thread safe, a local belongs to one process.
+	 */
+	public static class LocalMVar extends MVar {
+		/** max entries per chunk, a full one is split in two (or a new one started when appending) */
+		private static final int CHUNK = 256;
+		
+		// only used on the root
+		private Object value;
+		private Level children;
+		private long count; // entries in the tree
+		private long mods; // see modCount()
+		private Spill spill;
+		private MVar spilled; // where everything went, see Spill
+		
+		public LocalMVar(String name) {
+			super(name);
+		}
+		
+		/** A local that moves to the spill file once it has more than spill.getMaxNodes() nodes (null for never) */
+		public LocalMVar(String name, Spill spill) {
+			super(name);
+			this.spill = spill;
+		}
+		
+		public LocalMVar(String name, Object val) {
+			super(name);
+			set(val);
+		}
+		
+		protected LocalMVar(LocalMVar root, MVarKey path) {
+			super(root, path);
+		}
+		
+		private LocalMVar root() {
+			return (LocalMVar) this.root;
+		}
+		
+		/** This node of the spilled local, null if it was not spilled */
+		private MVar spilled() {
+			MVar ret = root().spilled;
+			return (ret == null) ? null : ret.get(this.path);
+		}
+		
+		/** True once this local was moved to the spill file */
+		public boolean isSpilled() {
+			return root().spilled != null;
+		}
+		
 		@Override
 		public MVar get(MVarKey key) {
-			// TODO Auto-generated method stub
+			return new LocalMVar(root(), key);
+		}
+		
+		@Override
+		public Object doGetValue(MVarKey key) {
+			LocalMVar root = root();
+			if (root.spilled != null) return root.spilled.doGetValue(key);
+			if (key.size() == 0) return root.value;
+			int[] at = new int[1];
+			Chunk c = find(canonic(key, 0), at);
+			return (c == null) ? null : c.vals[at[0]];
+		}
+		
+		@Override
+		public Object doSetValue(MVarKey key, Object val) {
+			if (val == null) {
+				get(key).unset();
+				return null;
+			}
+			LocalMVar root = root();
+			if (root.spilled != null) return root.spilled.doSetValue(key, val);
+			if (key.size() == 0) {
+				if (root.value == null) root.mods++;
+				return root.value = val;
+			}
+			
+			Object[] subs = canonic(key, 0);
+			for (Object sub : subs) {
+				if (sub == null) throw new IllegalArgumentException("Null subscript: " + getName() + key);
+			}
+			if (root.children == null) root.children = new Level();
+			Level level = root.children;
+			for (int d=0; ; d++) {
+				int ci = level.chunkFor(subs[d]);
+				Chunk c = level.chunks[ci];
+				int i = c.search(subs[d]);
+				boolean last = d == subs.length - 1;
+				if (i < 0) {
+					level.insert(ci, -i - 1, subs[d], last ? val : null, last ? null : branch(subs, d + 1, val));
+					root.count += subs.length - d;
+					root.mods++;
+					if (root.spill != null && root.count > root.spill.getMaxNodes()) root.spillOut();
+					return val;
+				} else if (last) {
+					if (c.vals[i] == null) root.mods++;
+					return c.vals[i] = val;
+				}
+				level = c.sub(i);
+				if (level == null) c.setSub(i, level = new Level());
+			}
+		}
+		
+		@Override
+		public Object unset() {
+			MVar spilled = spilled();
+			return (spilled != null) ? spilled.unset() : remove(false);
+		}
+		
+		/** Killing the whole local drops its spill map and it starts over in memory */
+		@Override
+		public void kill() {
+			LocalMVar root = root();
+			if (root.spilled == null) {
+				remove(true);
+			} else if (this.path.size() > 0) {
+				spilled().kill();
+			} else {
+				root.spill.release(root.spilled);
+				root.spilled = null;
+				root.mods++;
+			}
+		}
+		
+		@Override
+		public boolean isDefined() {
+			return val() != null;
+		}
+		
+		@Override
+		public boolean hasDescendents() {
+			MVar spilled = spilled();
+			return (spilled != null) ? spilled.hasDescendents() : children() != null;
+		}
+		
+		/** Copies the subscript values, so nothing is encoded/decoded (see canonic()) */
+		@Override
+		public void merge(MVar src) {
+			if (!checkMerge(src)) return;
+			Object val = src.val();
+			if (val != null) doSetValue(this.path, val);
+			
+			int from = src.path.size();
+			Iterator<MVarKey> itr = src.iterator(null, null);
+			if (src.root == this.root) {
+				// our iterators don't survive writes, copy the keys first
+				List<MVarKey> keys = new ArrayList<>();
+				while (itr.hasNext()) keys.add(itr.next());
+				itr = keys.iterator();
+			}
+			while (itr.hasNext()) {
+				MVarKey key = itr.next();
+				if (key.size() == from) continue;
+				Comparable[] subs = new Comparable[key.size() - from];
+				for (int i=0; i < subs.length; i++) subs[i] = key.get(from + i);
+				doSetValue(this.path.append(subs), src.doGetValue(key));
+			}
+		}
+		
+		@Override
+		protected Iterator<MVarKey> iterator() {
+			return iterator(null, null);
+		}
+		
+		@Override
+		protected Iterator<MVarKey> iterator(MVarKey from, MVarKey to) {
+			MVar spilled = spilled();
+			return (spilled != null) ? external(spilled.iterator(from, to)) : new Walker(from, to, false);
+		}
+		
+		@Override
+		protected Iterator<MVarKey> reverseIterator(MVarKey before) {
+			MVar spilled = spilled();
+			return (spilled != null) ? external(spilled.reverseIterator(before)) : new Walker(before, null, true);
+		}
+		
+		@Override
+		protected long modCount() {
+			LocalMVar root = root();
+			return (root.spilled == null) ? root.mods : root.mods + root.spilled.modCount();
+		}
+		
+		@Override
+		protected boolean isSameKey(MVarKey a, MVarKey b) {
+			return compare(a, b) == 0;
+		}
+		
+		@Override
+		protected boolean isUnder(MVarKey key, MVarKey node) {
+			int size = node.size();
+			if (size > key.size()) return false;
+			for (int i=size-1; i >= 0; i--) {
+				if (compareCanonic(canonic(key.get(i)), canonic(node.get(i))) != 0) return false;
+			}
+			return true;
+		}
+		
+		/** Compares two keys in collation order */
+		static int compare(MVarKey a, MVarKey b) {
+			int len = Math.min(a.size(), b.size());
+			for (int i=0; i < len; i++) {
+				int ret = compareCanonic(canonic(a.get(i)), canonic(b.get(i)));
+				if (ret != 0) return ret;
+			}
+			return Integer.compare(a.size(), b.size());
+		}
+		
+		// the tree ---------------------------------------------------------------
+		
+		/** The chunk holding the node at subs, at[0] is set to its index in it.  Null if there is no such node. */
+		private Chunk find(Object[] subs, int[] at) {
+			Level level = root().children;
+			for (int d=0; level != null; d++) {
+				Chunk c = level.chunks[level.chunkFor(subs[d])];
+				int i = c.search(subs[d]);
+				if (i < 0) return null;
+				if (d == subs.length - 1) {
+					at[0] = i;
+					return c;
+				}
+				level = c.sub(i);
+			}
 			return null;
 		}
+		
+		/** The children of this node, null if it has none */
+		private Level children() {
+			if (this.path.size() == 0) return root().children;
+			int[] at = new int[1];
+			Chunk c = find(canonic(this.path, 0), at);
+			return (c == null) ? null : c.sub(at[0]);
+		}
+		
+		/** A new level holding subs[d] and the levels down to the value */
+		private static Level branch(Object[] subs, int d, Object val) {
+			Level ret = new Level();
+			boolean last = d == subs.length - 1;
+			ret.chunks[0].insert(0, subs[d], last ? val : null, last ? null : branch(subs, d + 1, val));
+			return ret;
+		}
+		
+		/** Number of entries in the level and below it */
+		private static long size(Level level) {
+			if (level == null) return 0;
+			long ret = 0;
+			for (int ci=0; ci < level.count; ci++) {
+				Chunk c = level.chunks[ci];
+				ret += c.size;
+				for (int i=0; c.subs != null && i < c.size; i++) ret += size(c.subs[i]);
+			}
+			return ret;
+		}
+		
+		/** Moves everything (this is the root) to a new map in the spill file */
+		private void spillOut() {
+			MVar to = this.spill.create();
+			if (this.value != null) to.set(this.value);
+			Iterator<MVarKey> itr = iterator();
+			while (itr.hasNext()) {
+				MVarKey key = itr.next();
+				to.doSetValue(key, doGetValue(key));
+			}
+			this.value = null;
+			this.children = null;
+			this.count = 0;
+			this.spilled = to;
+			this.mods++;
+		}
+		
+		/** Keys of the spilled local with the subscripts as they come from the tree (see external()) */
+		private static Iterator<MVarKey> external(final Iterator<MVarKey> itr) {
+			return new Iterator<MVarKey>() {
+				@Override
+				public boolean hasNext() {
+					return itr.hasNext();
+				}
+				
+				@Override
+				public MVarKey next() {
+					MVarKey key = itr.next();
+					Comparable[] subs = null;
+					for (int i=0; i < key.size(); i++) {
+						Comparable sub = key.get(i);
+						if (sub instanceof Number && !(sub instanceof Integer || sub instanceof Long)) {
+							if (subs == null) {
+								subs = new Comparable[key.size()];
+								for (int j=0; j < subs.length; j++) subs[j] = key.get(j);
+							}
+							subs[i] = LocalMVar.external(canonic(sub));
+						}
+					}
+					return (subs == null) ? key : new MVarKey(subs);
+				}
+				
+				@Override
+				public void remove() {
+					throw new UnsupportedOperationException();
+				}
+			};
+		}
+		
+		/** Removes this nodes value (and its children if subtree) and any ancestors left empty and undefined */
+		private Object remove(boolean subtree) {
+			LocalMVar root = root();
+			int n = this.path.size();
+			if (n == 0) {
+				Object ret = root.value;
+				root.value = null;
+				if (subtree) {
+					root.children = null;
+					root.count = 0;
+				}
+				root.mods++;
+				return ret;
+			}
+			
+			Object[] subs = canonic(this.path, 0);
+			Level[] levels = new Level[n];
+			int[] cis = new int[n], is = new int[n];
+			Level level = root.children;
+			for (int d=0; d < n; d++) {
+				if (level == null) return null;
+				int ci = level.chunkFor(subs[d]);
+				int i = level.chunks[ci].search(subs[d]);
+				if (i < 0) return null;
+				levels[d] = level;
+				cis[d] = ci;
+				is[d] = i;
+				level = level.chunks[ci].sub(i);
+			}
+			
+			Chunk c = levels[n-1].chunks[cis[n-1]];
+			Object ret = c.vals[is[n-1]];
+			if (!subtree && c.sub(is[n-1]) != null) {
+				c.vals[is[n-1]] = null;
+				if (ret != null) root.mods++;
+				return ret;
+			}
+			root.count -= size(c.sub(is[n-1]));
+			for (int d=n-1; d >= 0; d--) {
+				levels[d].remove(cis[d], is[d]);
+				root.count--;
+				if (!levels[d].isEmpty()) break;
+				if (d == 0) {
+					root.children = null;
+					break;
+				}
+				Chunk parent = levels[d-1].chunks[cis[d-1]];
+				parent.setSub(is[d-1], null);
+				if (parent.vals[is[d-1]] != null) break;
+			}
+			root.mods++;
+			return ret;
+		}
+		
+		/** The children of a node: sorted chunks, only the first one of a new level is empty */
+		private static final class Level {
+			Chunk[] chunks = new Chunk[] {new Chunk(4)};
+			int count = 1;
+			
+			/** The chunk sub belongs in, the last one whose first subscript is <= sub */
+			int chunkFor(Object sub) {
+				int lo = 1, hi = count - 1, ret = 0;
+				while (lo <= hi) {
+					int mid = (lo + hi) >>> 1;
+					if (chunks[mid].compare(0, sub) <= 0) {
+						ret = mid;
+						lo = mid + 1;
+					} else {
+						hi = mid - 1;
+					}
+				}
+				return ret;
+			}
+			
+			void insert(int ci, int i, Object sub, Object val, Level level) {
+				Chunk c = chunks[ci];
+				if (c.size == CHUNK) {
+					Chunk next;
+					if (i == CHUNK && ci == count - 1) {
+						// appending, keep this one full
+						next = new Chunk(4);
+						c = next;
+						i = 0;
+					} else {
+						next = c.split();
+						if (i > c.size) {
+							i -= c.size;
+							c = next;
+						}
+					}
+					if (count == chunks.length) chunks = Arrays.copyOf(chunks, count * 2);
+					System.arraycopy(chunks, ci + 1, chunks, ci + 2, count - ci - 1);
+					chunks[ci + 1] = next;
+					count++;
+				}
+				c.insert(i, sub, val, level);
+			}
+			
+			void remove(int ci, int i) {
+				Chunk c = chunks[ci];
+				c.remove(i);
+				if (c.size == 0 && count > 1) {
+					System.arraycopy(chunks, ci + 1, chunks, ci, count - ci - 1);
+					chunks[--count] = null;
+				}
+			}
+			
+			boolean isEmpty() {
+				return chunks[0].size == 0;
+			}
+		}
+		
+		/** Parallel arrays of sorted subscripts, values (null if undefined) and children */
+		private static final class Chunk {
+			long[] ints;   // integer subscripts, null until there is one
+			Object[] keys; // the other subscripts (BigDecimal or String), null where it is an integer
+			Object[] vals;
+			Level[] subs;  // null until a node in this chunk has children
+			int size;
+			
+			Chunk(int capacity) {
+				this.vals = new Object[capacity];
+			}
+			
+			boolean isInt(int i) {
+				return this.keys == null || this.keys[i] == null;
+			}
+			
+			/** Compares the subscript at i with a canonic one, null is after everything */
+			int compare(int i, Object sub) {
+				if (sub == null) return -1;
+				if (!isInt(i)) return compareCanonic(this.keys[i], sub);
+				if (sub instanceof Long) return Long.compare(this.ints[i], (Long) sub);
+				if (sub instanceof BigDecimal) return BigDecimal.valueOf(this.ints[i]).compareTo((BigDecimal) sub);
+				return -1;
+			}
+			
+			/** Index of the canonic subscript or -(insertion point + 1) */
+			int search(Object sub) {
+				if (this.keys == null && this.size > 0 && sub instanceof Long) {
+					return Arrays.binarySearch(this.ints, 0, this.size, (Long) sub);
+				}
+				int lo = 0, hi = this.size - 1;
+				while (lo <= hi) {
+					int mid = (lo + hi) >>> 1;
+					int cmp = compare(mid, sub);
+					if (cmp < 0) {
+						lo = mid + 1;
+					} else if (cmp > 0) {
+						hi = mid - 1;
+					} else {
+						return mid;
+					}
+				}
+				return -(lo + 1);
+			}
+			
+			/** The subscript at i as it is returned in keys, see external() */
+			Comparable external(int i) {
+				if (!isInt(i)) return LocalMVar.external(this.keys[i]);
+				long l = this.ints[i];
+				return (l == (int) l) ? (Comparable) Integer.valueOf((int) l) : (Comparable) Long.valueOf(l);
+			}
+			
+			Level sub(int i) {
+				return (this.subs == null) ? null : this.subs[i];
+			}
+			
+			void setSub(int i, Level level) {
+				if (this.subs == null) {
+					if (level == null) return;
+					this.subs = new Level[this.vals.length];
+				}
+				this.subs[i] = level;
+			}
+			
+			void insert(int i, Object sub, Object val, Level level) {
+				boolean isInt = sub instanceof Long;
+				int cap = this.vals.length;
+				if (this.size == cap) {
+					cap = Math.min(cap * 2, CHUNK);
+					this.vals = Arrays.copyOf(this.vals, cap);
+					if (this.ints != null) this.ints = Arrays.copyOf(this.ints, cap);
+					if (this.keys != null) this.keys = Arrays.copyOf(this.keys, cap);
+					if (this.subs != null) this.subs = Arrays.copyOf(this.subs, cap);
+				}
+				if (isInt && this.ints == null) this.ints = new long[cap];
+				if (!isInt && this.keys == null) this.keys = new Object[cap];
+				if (level != null && this.subs == null) this.subs = new Level[cap];
+				
+				int n = this.size - i;
+				System.arraycopy(this.vals, i, this.vals, i + 1, n);
+				this.vals[i] = val;
+				if (this.ints != null) {
+					System.arraycopy(this.ints, i, this.ints, i + 1, n);
+					this.ints[i] = isInt ? (Long) sub : 0;
+				}
+				if (this.keys != null) {
+					System.arraycopy(this.keys, i, this.keys, i + 1, n);
+					this.keys[i] = isInt ? null : sub;
+				}
+				if (this.subs != null) {
+					System.arraycopy(this.subs, i, this.subs, i + 1, n);
+					this.subs[i] = level;
+				}
+				this.size++;
+			}
+			
+			void remove(int i) {
+				int n = this.size - i - 1;
+				System.arraycopy(this.vals, i + 1, this.vals, i, n);
+				if (this.ints != null) System.arraycopy(this.ints, i + 1, this.ints, i, n);
+				if (this.keys != null) System.arraycopy(this.keys, i + 1, this.keys, i, n);
+				if (this.subs != null) System.arraycopy(this.subs, i + 1, this.subs, i, n);
+				this.size--;
+				this.vals[this.size] = null;
+				if (this.keys != null) this.keys[this.size] = null;
+				if (this.subs != null) this.subs[this.size] = null;
+			}
+			
+			/** Moves the upper half into a new chunk */
+			Chunk split() {
+				int half = this.size / 2, n = this.size - half;
+				Chunk ret = new Chunk(CHUNK);
+				System.arraycopy(this.vals, half, ret.vals, 0, n);
+				Arrays.fill(this.vals, half, this.size, null);
+				if (this.ints != null) {
+					ret.ints = new long[CHUNK];
+					System.arraycopy(this.ints, half, ret.ints, 0, n);
+				}
+				if (this.keys != null) {
+					ret.keys = new Object[CHUNK];
+					System.arraycopy(this.keys, half, ret.keys, 0, n);
+					Arrays.fill(this.keys, half, this.size, null);
+				}
+				if (this.subs != null) {
+					ret.subs = new Level[CHUNK];
+					System.arraycopy(this.subs, half, ret.subs, 0, n);
+					Arrays.fill(this.subs, half, this.size, null);
+				}
+				ret.size = n;
+				this.size = half;
+				return ret;
+			}
+		}
+		
+		/** 
+		 * Pre-order walk over the defined descendants of this node, or reverse pre-order (children 
+		 * before their parent).  Positions are chunk/index pairs per level, so it fails fast if a node 
+		 * is added or removed (MVarCursor re-seeks instead).
+		 */
+		private class Walker implements Iterator<MVarKey> {
+			private final LocalMVar root = root();
+			private final long mods = this.root.mods;
+			private final boolean reverse;
+			private final MVarKey to;
+			private Level[] levels = new Level[4];
+			private int[] cis = new int[4], is = new int[4];
+			private int depth;
+			// forward: the current node was visited, its children are next.  reverse: its children were visited, it is next
+			private boolean pending;
+			private MVarKey next;
+			private boolean fetched;
+			
+			Walker(MVarKey start, MVarKey to, boolean reverse) {
+				this.reverse = reverse;
+				this.to = to;
+				Level level = children();
+				if (level == null) return;
+				
+				int n = LocalMVar.this.path.size();
+				Object[] subs = (start == null || start.size() <= n) ? new Object[0] : canonic(start, n);
+				if (reverse) {
+					seekReverse(level, subs);
+				} else {
+					seekForward(level, subs);
+				}
+			}
+			
+			/** Positions at the first node >= subs */
+			private void seekForward(Level level, Object[] subs) {
+				if (subs.length == 0) {
+					push(level, 0, 0);
+					return;
+				}
+				for (int j=0; ; j++) {
+					int ci = level.chunkFor(subs[j]);
+					int i = level.chunks[ci].search(subs[j]);
+					if (i < 0) {
+						push(level, ci, -i - 1);
+						return;
+					}
+					push(level, ci, i);
+					if (j == subs.length - 1) return;
+					
+					// a descendant of this node, which is before it
+					level = level.chunks[ci].sub(i);
+					if (level == null) {
+						step(this.depth - 1);
+						return;
+					}
+				}
+			}
+			
+			/** Positions at the last node < subs */
+			private void seekReverse(Level level, Object[] subs) {
+				if (subs.length == 0) {
+					pushLast(level);
+					return;
+				}
+				for (int j=0; ; j++) {
+					int ci = level.chunkFor(subs[j]);
+					int i = level.chunks[ci].search(subs[j]);
+					if (i < 0 || j == subs.length - 1) {
+						push(level, ci, (i < 0) ? -i - 1 : i);
+						stepBack(this.depth - 1);
+						return;
+					}
+					
+					// a descendant of this node, which is after it
+					push(level, ci, i);
+					level = level.chunks[ci].sub(i);
+					if (level == null) {
+						this.pending = true;
+						return;
+					}
+				}
+			}
+			
+			private void push(Level level, int ci, int i) {
+				if (this.depth == this.levels.length) {
+					this.levels = Arrays.copyOf(this.levels, this.depth * 2);
+					this.cis = Arrays.copyOf(this.cis, this.depth * 2);
+					this.is = Arrays.copyOf(this.is, this.depth * 2);
+				}
+				this.levels[this.depth] = level;
+				this.cis[this.depth] = ci;
+				this.is[this.depth] = i;
+				this.depth++;
+				if (!this.reverse && i >= level.chunks[ci].size) step(this.depth - 1);
+			}
+			
+			private void pushLast(Level level) {
+				push(level, level.count - 1, level.chunks[level.count - 1].size - 1);
+			}
+			
+			private Chunk chunk(int d) {
+				return this.levels[d].chunks[this.cis[d]];
+			}
+			
+			private void step(int d) {
+				if (++this.is[d] >= chunk(d).size) {
+					this.cis[d]++;
+					this.is[d] = 0;
+				}
+			}
+			
+			private void stepBack(int d) {
+				if (--this.is[d] < 0 && --this.cis[d] >= 0) {
+					this.is[d] = chunk(d).size - 1;
+				}
+			}
+			
+			private MVarKey findForward() {
+				while (this.depth > 0) {
+					int d = this.depth - 1;
+					if (this.pending) {
+						this.pending = false;
+						Level sub = chunk(d).sub(this.is[d]);
+						if (sub != null) {
+							push(sub, 0, 0);
+							continue;
+						}
+						step(d);
+					}
+					if (this.cis[d] >= this.levels[d].count) {
+						if (--this.depth > 0) step(this.depth - 1);
+						continue;
+					}
+					this.pending = true;
+					if (chunk(d).vals[this.is[d]] != null) return key();
+				}
+				return null;
+			}
+			
+			private MVarKey findReverse() {
+				while (this.depth > 0) {
+					int d = this.depth - 1;
+					if (this.cis[d] < 0) {
+						this.depth--;
+						this.pending = true;
+						continue;
+					}
+					if (!this.pending) {
+						Level sub = chunk(d).sub(this.is[d]);
+						if (sub != null) {
+							pushLast(sub);
+							continue;
+						}
+					}
+					this.pending = false;
+					MVarKey ret = (chunk(d).vals[this.is[d]] != null) ? key() : null;
+					stepBack(d);
+					if (ret != null) return ret;
+				}
+				return null;
+			}
+			
+			private MVarKey key() {
+				MVarKey path = LocalMVar.this.path;
+				int n = path.size();
+				Comparable[] ret = new Comparable[n + this.depth];
+				for (int i=0; i < n; i++) ret[i] = path.get(i);
+				for (int d=0; d < this.depth; d++) ret[n + d] = chunk(d).external(this.is[d]);
+				return new MVarKey(ret);
+			}
+			
+			@Override
+			public boolean hasNext() {
+				if (this.root.mods != this.mods) throw new ConcurrentModificationException();
+				if (!this.fetched) {
+					this.next = this.reverse ? findReverse() : findForward();
+					if (this.next != null && this.to != null && compare(this.next, this.to) >= 0) this.next = null;
+					this.fetched = true;
+				}
+				return this.next != null;
+			}
+			
+			@Override
+			public MVarKey next() {
+				if (!hasNext()) throw new NoSuchElementException();
+				this.fetched = false;
+				return this.next;
+			}
+			
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
+		
+		/**
+		 * Temp file the big locals of a process are moved to, one MVStore map each, so they are bound by 
+		 * disk instead of heap (like the process-private globals).  Opened on first use, a map is dropped 
+		 * when its local is killed and the file when the process closes this.
+		 */
+		public static class Spill implements Closeable {
+			public static final long DEFAULT_MAX_NODES = 4 << 20;
+			
+			private final long maxNodes;
+			private GlobalStore.MVGlobalStore store;
+			private File file;
+			private int seq;
+			private int spilled;
+			
+			public Spill(long maxNodes) {
+				this.maxNodes = maxNodes;
+			}
+			
+			/** Nodes a local can have before it is moved to the file */
+			public long getMaxNodes() {
+				return this.maxNodes;
+			}
+			
+			/** Number of locals currently in the file */
+			public int getSpilledCount() {
+				return this.spilled;
+			}
+			
+			private MVar create() {
+				if (this.store == null) {
+					try {
+						this.file = File.createTempFile("M4J.locals", ".data");
+						this.file.deleteOnExit();
+					} catch (IOException e) {
+						throw new IllegalStateException("Unable to spill local variables to disk", e);
+					}
+					this.store = new GlobalStore.MVGlobalStore(new MVStore.Builder().fileName(this.file.getAbsolutePath()).cacheSize(4).open(), 
+							GlobalStore.MVGlobalStore.CommitPolicy.EXPLICIT, 0);
+				}
+				this.spilled++;
+				return this.store.get("L" + (++this.seq));
+			}
+			
+			private void release(MVar var) {
+				this.store.kill(var.getName());
+				this.spilled--;
+			}
+			
+			/** Drops the file and everything in it */
+			@Override
+			public void close() {
+				if (this.store == null) return;
+				this.store.getStore().closeImmediately();
+				this.file.delete();
+				this.store = null;
+				this.file = null;
+				this.spilled = 0;
+			}
+		}
+		
+		// subscripts -------------------------------------------------------------
+		
+		/** Subscripts from the given position on, see canonic(Object) */
+		private static Object[] canonic(MVarKey key, int from) {
+			Object[] ret = new Object[key.size() - from];
+			for (int i=0; i < ret.length; i++) ret[i] = canonic(key.get(from + i));
+			return ret;
+		}
+		
+		/** 
+		 * A subscript as it is stored and compared: Long for integers (that fit), BigDecimal for the 
+		 * other numbers (and canonic numeric strings), otherwise its string.
+		 */
+		static Object canonic(Object sub) {
+			if (sub instanceof String) {
+				String str = (String) sub;
+				if (!MParserUtils.isCanonicNumber(str)) return str;
+				if (str.length() < 19 && str.indexOf('.') < 0) return Long.valueOf(str);
+				return canonic(new BigDecimal(str));
+			} else if (sub instanceof Integer || sub instanceof Long || sub instanceof Short || sub instanceof Byte) {
+				return ((Number) sub).longValue();
+			} else if (sub instanceof Number) {
+				BigDecimal num = MVarKeyType.toBigDecimal((Number) sub);
+				num = (num.signum() == 0) ? BigDecimal.ZERO : num.stripTrailingZeros();
+				return (num.scale() <= 0 && num.precision() - num.scale() <= 18) ? (Object) num.longValue() : num;
+			}
+			return (sub == null) ? null : sub.toString();
+		}
+		
+		/** Subscript as it is returned in keys: Integer/Long for integers, BigDecimal for the other numbers (like MVarKeyType) */
+		static Comparable external(Object sub) {
+			if (sub instanceof Long) {
+				long l = (Long) sub;
+				return (l == (int) l) ? (Comparable) Integer.valueOf((int) l) : (Long) sub;
+			}
+			return (Comparable) sub;
+		}
+		
+		/** Collation order of canonic subscripts: numbers, then strings, null last */
+		static int compareCanonic(Object a, Object b) {
+			if (a == b) return 0;
+			if (a == null) return 1;
+			if (b == null) return -1;
+			boolean astr = a instanceof String, bstr = b instanceof String;
+			if (astr != bstr) return astr ? 1 : -1;
+			if (astr) return ((String) a).compareTo((String) b);
+			if (a instanceof Long && b instanceof Long) return Long.compare((Long) a, (Long) b);
+			return toBigDecimal(a).compareTo(toBigDecimal(b));
+		}
+		
+		private static BigDecimal toBigDecimal(Object num) {
+			return (num instanceof Long) ? BigDecimal.valueOf((Long) num) : (BigDecimal) num;
+		}
+	}
+	
+	/**
+	 * Backed by a ConcurrentSkipListMap (in encoded key order, see MVarKeyType) so any number of 
+	 * processes can read and write it at the same time without locking.  Nothing is persisted.
+	 */
+	public static class ConcurrentMVar extends MVar {
+		/** Collates like MVStoreMVar, so ^X("1") and ^X(1) are the same node */
+		public static final Comparator<MVarKey> ORDER = new Comparator<MVarKey>() {
+			@Override
+			public int compare(MVarKey o1, MVarKey o2) {
+				return MVarKeyType.compare(o1.getEncoded(), o2.getEncoded());
+			}
+		};
+		
+		private ConcurrentNavigableMap<MVarKey, Object> data;
+		private final AtomicLong mods; // shared with the root, see modCount()
+		
+		public ConcurrentMVar(String name) {
+			this(name, new ConcurrentSkipListMap<MVarKey, Object>(ORDER));
+		}
+		
+		/** @param data must be ordered by ORDER */
+		public ConcurrentMVar(String name, ConcurrentNavigableMap<MVarKey, Object> data) {
+			super(name);
+			this.data = data;
+			this.mods = new AtomicLong();
+		}
+		
+		protected ConcurrentMVar(ConcurrentMVar root, MVarKey path) {
+			super(root, path);
+			this.data = root.data;
+			this.mods = root.mods;
+		}
+		
+		@Override
+		public Object doGetValue(MVarKey key) {
+			return this.data.get(key);
+		}
+
+		@Override
+		public Object doSetValue(MVarKey key, Object val) {
+			// stored form, so the subscripts are decoded in their collated form when iterating
+			if (this.data.put(key.toStored(), val) == null) this.mods.incrementAndGet();
+			return val;
+		}
+		
+		/** Lock free compare-and-set loop */
+		@Override
+		public Number increment(Number inc) {
+			MVarKey stored = this.path.toStored();
+			while (true) {
+				Object old = this.data.get(stored);
+				Number ret = MParserUtils.addNumeric(MParserUtils.evalNumericValue(old), inc);
+				if (old == null ? this.data.putIfAbsent(stored, ret) == null : this.data.replace(stored, old, ret)) {
+					if (old == null) this.mods.incrementAndGet();
+					return ret;
+				}
+			}
+		}
+
+		@Override
+		public Object unset() {
+			Object ret = this.data.remove(this.path);
+			if (ret != null) this.mods.incrementAndGet();
+			return ret;
+		}
+		
+		/** Removes every node */
+		public void clear() {
+			this.data.clear();
+			this.mods.incrementAndGet();
+		}
+		
+		@Override
+		public void kill() {
+			if (this.path.size() == 0) {
+				clear();
+			} else {
+				this.data.subMap(this.path, true, this.path.append((Comparable) null), false).clear();
+				this.mods.incrementAndGet();
+			}
+		}
+
+		@Override
+		public boolean isDefined() {
+			return this.data.containsKey(this.path);
+		}
+
+		@Override
+		public boolean hasDescendents() {
+			MVarKey next = this.data.higherKey(this.path);
+			return next != null && next.startsWith(this.path);
+		}
+
+		@Override
+		public MVar get(MVarKey key) {
+			return new ConcurrentMVar((ConcurrentMVar) this.root, key);
+		}
 
 		@Override
-		public MVarKey nextKey() {
-			// TODO Auto-generated method stub
+		protected Iterator<MVarKey> iterator() {
+			return iterator(null, null);
+		}
+		
+		@Override
+		protected Iterator<MVarKey> iterator(MVarKey from, MVarKey to) {
+			MVarKey lo = (from == null) ? this.path : from, hi = (to == null) ? this.path.append((Comparable) null) : to;
+			return this.data.subMap(lo, from != null, hi, false).keySet().iterator();
+		}
+		
+		@Override
+		protected Iterator<MVarKey> reverseIterator(MVarKey before) {
+			return this.data.subMap(this.path, false, (before == null) ? this.path.append((Comparable) null) : before, false).descendingKeySet().iterator();
+		}
+		
+		@Override
+		protected long modCount() {
+			return this.mods.get();
+		}
+	}
+	
+	/**
+	 * A global in InterSystems Cache, through a cacheextreme NodeReference.  Cache returns subscripts 
+	 * as strings, canonic numbers are turned back into numbers (like LocalMVar) so the keys are the 
+	 * same as those of the other implementations.  Iterating walks the nodes with nextSubscript() or 
+	 * previousSubscript(), there is no modCount() so a cursor seeks again on every step.
+	 */
+	public static class CacheMVar extends MVar {
+		private NodeReference ref;
+
+		public CacheMVar(NodeReference ref) {
+			super(ref.getName());
+			this.ref = ref;
+		}
+		
+		protected CacheMVar(CacheMVar root, MVarKey path) {
+			super(root, path);
+			this.ref = root.ref;
+		}
+
+		@Override
+		public Object doGetValue(MVarKey key) {
+			Object[] subs = key.keys();
+			return ref.getObject(subs);
+		}
+
+		@Override
+		public Object doSetValue(MVarKey key, Object val) {
+			Object[] subs = key.keys();
+			ref.set(val.toString(), subs);
 			return null;
 		}
 
 		@Override
-		public MVarKey prevKey() {
-			// TODO Auto-generated method stub
+		public Object unset() {
+			Object[] subs = this.path.keys();
+			ref.kill(subs);
 			return null;
 		}
+		
+		/** NodeReference.kill() already removes the descendants */
+		@Override
+		public void kill() {
+			Object[] subs = this.path.keys();
+			ref.kill(subs);
+		}
+
+		@Override
+		public boolean isDefined() {
+			return doGetValue(this.path) != null;
+		}
+
+		@Override
+		public boolean hasDescendents() {
+			return subscript(this.path.append(""), false) != null;
+		}
+
+		@Override
+		public MVar get(MVarKey key) {
+			return new CacheMVar((CacheMVar) this.root, key);
+		}
 
 		@Override
 		protected Iterator<MVarKey> iterator() {
-			// TODO Auto-generated method stub
-			return null;
+			return iterator(null, null);
+		}
+		
+		@Override
+		protected Iterator<MVarKey> iterator(MVarKey from, MVarKey to) {
+			return new Walker(from, to, false);
+		}
+		
+		@Override
+		protected Iterator<MVarKey> reverseIterator(MVarKey before) {
+			return new Walker(before, null, true);
+		}
+		
+		/** The subscript after (or before) the last one of key at its level ($ORDER), null if there is none */
+		private Comparable subscript(MVarKey key, boolean reverse) {
+			Object[] subs = key.keys();
+			String ret = reverse ? ref.previousSubscript(subs) : ref.nextSubscript(subs);
+			return (ret == null || ret.isEmpty()) ? null : LocalMVar.external(LocalMVar.canonic(ret));
+		}
+		
+		/** The last node in $QUERY order under key, key itself if it has no descendants */
+		private MVarKey last(MVarKey key) {
+			for (Comparable sub; (sub = subscript(key.append(""), true)) != null; ) key = key.append(sub);
+			return key;
 		}
 		
+		/** The first node in $QUERY order after key and its descendants, null past the end of this node */
+		private MVarKey following(MVarKey key) {
+			for (; key.size() > this.path.size(); key = key.prefix(key.size()-1)) {
+				Comparable sub = subscript(key, false);
+				if (sub != null) return key.prefix(key.size()-1).append(sub);
+			}
+			return null;
+		}
 		
+		/** Walks the descendants in $QUERY order (or backwards) one node ahead, skipping the ones without data */
+		private class Walker implements Iterator<MVarKey> {
+			private final MVarKey to;
+			private final boolean reverse;
+			private MVarKey next;
+			
+			/** @param from first key (inclusive) going forward, the key to stop before (exclusive) backwards */
+			Walker(MVarKey from, MVarKey to, boolean reverse) {
+				this.to = to;
+				this.reverse = reverse;
+				MVarKey key = from;
+				if (from == null || (from.size() > 0 && from.getLastKey() == null)) {
+					// all of the node (a null last subscript is after all the descendants of its parent)
+					MVarKey node = (from == null) ? path : from.prefix(from.size()-1);
+					if (reverse) {
+						key = last(node);
+					} else {
+						key = (from == null) ? advance(node) : following(node);
+					}
+				} else if (reverse) {
+					key = advance(from);
+				}
+				this.next = skip(key);
+			}
+			
+			/** The next node in the walk order, the last descendant of the previous sibling or the parent backwards */
+			private MVarKey advance(MVarKey key) {
+				if (this.reverse) {
+					Comparable sub = subscript(key, true);
+					MVarKey parent = key.prefix(key.size()-1);
+					return (sub != null) ? last(parent.append(sub)) : parent;
+				}
+				Comparable sub = subscript(key.append(""), false);
+				return (sub != null) ? key.append(sub) : following(key);
+			}
+			
+			private MVarKey skip(MVarKey key) {
+				while (key != null && key.size() > path.size()) {
+					if (this.to != null && MVarKeyType.compare(key.getEncoded(), this.to.getEncoded()) >= 0) return null;
+					if (doGetValue(key) != null) return key;
+					key = advance(key);
+				}
+				return null;
+			}
+
+			@Override
+			public boolean hasNext() {
+				return this.next != null;
+			}
+
+			@Override
+			public MVarKey next() {
+				if (this.next == null) throw new NoSuchElementException();
+				MVarKey ret = this.next;
+				this.next = skip(advance(ret));
+				return ret;
+			}
+
+			@Override
+			public void remove() {
+				throw new UnsupportedOperationException();
+			}
+		}
 	}
 	
+	/**
+	 * Subscript path of a node.  Keys can be constructed from subscript values (and are compared 
+	 * as such by compareTo()) or from their stored binary form (see MVarKeyType) in which case the 
+	 * subscript values are only decoded if/when they are needed.
+	 */
 	public static class MVarKey implements Comparable<MVarKey>,Serializable {
-		private Comparable[] keys;
+		private volatile Comparable[] keys;
+		private transient volatile byte[] encoded;
 		
 		@SafeVarargs
 		public MVarKey(Comparable... keys) {
 			this.keys = keys;
 		}
 		
+		private MVarKey(byte[] encoded) {
+			this.encoded = encoded;
+		}
+		
+		private Comparable[] keys() {
+			Comparable[] ret = this.keys;
+			if (ret == null) {
+				this.keys = ret = MVarKeyType.decode(this.encoded);
+			}
+			return ret;
+		}
+		
+		/** The order-preserving binary form of this key, see MVarKeyType */
+		public byte[] getEncoded() {
+			byte[] ret = this.encoded;
+			if (ret == null) {
+				this.encoded = ret = MVarKeyType.encode(this.keys);
+			}
+			return ret;
+		}
+		
 		public int size() {
-			return keys.length;
+			return keys().length;
+		}
+		
+		/** The subscript at the given position */
+		public Comparable get(int idx) {
+			return keys()[idx];
 		}
 		
 		public Comparable getLastKey() {
-			return this.keys[this.keys.length-1];
+			Comparable[] keys = keys();
+			return keys[keys.length-1];
 		}
 		
 		@Override
@@ -377,13 +2202,17 @@ public abstract class MVar {
 		}
 		
 		public void toString(StringBuilder sb) {
+			Comparable[] keys = keys();
 			sb.append("(");
-			for (Object key : keys) {
-				if (key != keys[0]) sb.append(",");
+			for (int i=0; i < keys.length; i++) {
+				Object key = keys[i];
+				if (i > 0) sb.append(",");
 				if (key instanceof String) {
 					sb.append('"');
-					sb.append(key);
+					sb.append(((String) key).replace("\"", "\"\""));
 					sb.append('"');
+				} else if (key instanceof Number) {
+					sb.append(MNumber.toString((Number) key));
 				} else {
 					sb.append(key);
 				}
@@ -395,35 +2224,35 @@ public abstract class MVar {
 		public int compareTo(MVarKey o) {
 			if (o == this) return 0;
 			
-			int len = Math.min(keys.length, o.keys.length);
+			Comparable[] keys = keys(), okeys = o.keys();
+			int len = Math.min(keys.length, okeys.length);
             for (int i = 0; i < len; i++) {
-            	int comp = 0;
-            	Comparable o1 = this.keys[i], o2 = o.keys[i];
-            	
-            	if (o1 == o2) {
-            		comp = 0; // includes both null
-            	} else if (o2 == null) {
-            		comp = -1;
-            	} else if (o1 == null) {
-            		comp = 1;
-            	} else if (o1 instanceof Number && o2 instanceof Number) {
-            		comp = Double.compare(((Number) o1).doubleValue(), ((Number) o2).doubleValue());
-            	} else if (o1 instanceof Number && o2 instanceof String) {
-            		comp = -1;
-            	} else if (o1 instanceof String && o2 instanceof Number) {
-            		comp = 1;
-            	} else if (!o1.getClass().equals(o2.getClass())) {
-            		comp = o1.toString().compareTo(o2.toString());
-            	} else {
-            		comp = o1.compareTo(o2);
-            	}
-            	
+            	int comp = compare(keys[i], okeys[i]);
             	if (comp != 0) {
             		return comp;
             	}
             }
             
-            return Integer.compare(this.keys.length, o.keys.length);
+            return Integer.compare(keys.length, okeys.length);
+		}
+		
+		private static int compare(Comparable o1, Comparable o2) {
+        	if (o1 == o2) {
+        		return 0; // includes both null
+        	} else if (o2 == null) {
+        		return -1;
+        	} else if (o1 == null) {
+        		return 1;
+        	} else if (o1 instanceof Number && o2 instanceof Number) {
+        		return MNumber.compare((Number) o1, (Number) o2);
+        	} else if (o1 instanceof Number && o2 instanceof String) {
+        		return -1;
+        	} else if (o1 instanceof String && o2 instanceof Number) {
+        		return 1;
+        	} else if (!o1.getClass().equals(o2.getClass())) {
+        		return o1.toString().compareTo(o2.toString());
+        	}
+        	return o1.compareTo(o2);
 		}
 		
 		public boolean after(MVarKey o) {
@@ -434,17 +2263,75 @@ public abstract class MVar {
 			return compareTo(o) < 0;
 		}
 		
+		/** 
+		 * True if this key is the same as or a descendant of the specified key, 
+		 * as collated by MVarKeyType (so "1" and 1 are the same subscript).
+		 */
+		public boolean startsWith(MVarKey prefix) {
+			byte[] bytes = getEncoded(), pbytes = prefix.getEncoded();
+			if (pbytes.length > bytes.length) return false;
+			for (int i=0; i < pbytes.length; i++) {
+				if (bytes[i] != pbytes[i]) return false;
+			}
+			return true;
+		}
+		
+		/** Like startsWith() but by subscript values as compared by compareTo() (so "1" and 1 are different) */
+		boolean startsWithValues(MVarKey prefix) {
+			Comparable[] keys = keys(), pkeys = prefix.keys();
+			if (pkeys.length > keys.length) return false;
+			for (int i=0; i < pkeys.length; i++) {
+				if (compare(keys[i], pkeys[i]) != 0) return false;
+			}
+			return true;
+		}
+		
+		/** This key cut to its first n subscripts (itself if it has n), a stored key is cut without decoding it */
+		MVarKey prefix(int n) {
+			Comparable[] keys = this.keys;
+			if (keys != null) return (keys.length == n) ? this : splice(n);
+			byte[] bytes = this.encoded;
+			int len = MVarKeyType.prefixLength(bytes, n);
+			return (len == bytes.length) ? this : new MVarKey(Arrays.copyOf(bytes, len));
+		}
+		
+		/** 
+		 * Copy of this key that only holds the encoded form (as if it were read from storage), 
+		 * so its subscripts decode into their collated form (ie: "1" becomes 1).
+		 */
+		MVarKey toStored() {
+			return new MVarKey(getEncoded());
+		}
+		
+		/** 
+		 * Key with the first prefixLength bytes of this keys encoded form replaced by prefix 
+		 * (ie from ^B(1,2,3) to ^A(9,2,3) for MERGE), in stored form.
+		 */
+		MVarKey rebase(int prefixLength, byte[] prefix) {
+			byte[] bytes = getEncoded();
+			byte[] ret = new byte[prefix.length + bytes.length - prefixLength];
+			System.arraycopy(prefix, 0, ret, 0, prefix.length);
+			System.arraycopy(bytes, prefixLength, ret, prefix.length, bytes.length - prefixLength);
+			return new MVarKey(ret);
+		}
+		
+		/** Key from its stored form (see MVarKeyType) */
+		static MVarKey fromEncoded(byte[] encoded) {
+			return new MVarKey(encoded);
+		}
+		
 		public MVarKey append(Comparable... withkeys) {
 			if (withkeys == null) withkeys = new Comparable[] {null};
-			Comparable[] tmp = new Comparable[this.keys.length + withkeys.length];
-			System.arraycopy(this.keys, 0, tmp, 0, this.keys.length);
+			Comparable[] keys = keys();
+			Comparable[] tmp = new Comparable[keys.length + withkeys.length];
+			System.arraycopy(keys, 0, tmp, 0, keys.length);
 			System.arraycopy(withkeys, 0, tmp, keys.length, withkeys.length);
 			return new MVarKey(tmp);
 		}
 		
 		public MVarKey splice(int length) {
 			Comparable[] tmp = new Comparable[length];
-			System.arraycopy(this.keys, 0, tmp, 0, length);
+			System.arraycopy(keys(), 0, tmp, 0, length);
 			return new MVarKey(tmp);
 		}
 		
@@ -457,6 +2344,246 @@ public abstract class MVar {
 		public static MVarKey valueOf(Comparable... keys) {
 			return new MVarKey(keys);
 		}
+		
+		private void writeObject(ObjectOutputStream out) throws IOException {
+			keys(); // make sure the subscripts are decoded before serializing
+			out.defaultWriteObject();
+		}
+	}
+	
+	/**
+	 * MVStore key type for MVarKey.  Subscripts are stored in a compact binary format whose unsigned 
+	 * byte order is the MUMPS collation order, so b-tree navigation only compares raw bytes:
+	 * <ul>
+	 * <li>Numbers (and canonic numeric strings) before strings, ordered numerically: a sign tag, a decimal 
+	 * exponent byte and then the mantissa as base-100 digit pairs (2*pair+1, the last pair is 2*pair).  
+	 * The exponent and mantissa bytes of negative numbers are inverted.  Numbers past 10^127 either way, 
+	 * and numeric strings of more than 18 digits, are strings.</li>
+	 * <li>Strings by character, 1-3 bytes per char (ASCII is 1 byte), terminated by 0x00.</li>
+	 * <li>A null subscript (used as the "after all children" marker) is 0xFF and sorts after everything.</li>
+	 * </ul>
+	 * Since each subscript is self-terminating, a parent key is always a byte prefix of its descendants.
+	 */
+	public static class MVarKeyType implements DataType {
+		public static final MVarKeyType INSTANCE = new MVarKeyType();
+		
+		private static final int TAG_NEG = 0x02;
+		private static final int TAG_ZERO = 0x03;
+		private static final int TAG_POS = 0x04;
+		private static final int TAG_STR = 0x05;
+		private static final int TAG_END = 0xFF;
+		private static final int MAX_EXPONENT = 127;
+		
+		@Override
+		public int compare(Object a, Object b) {
+			return compare(((MVarKey) a).getEncoded(), ((MVarKey) b).getEncoded());
+		}
+		
+		/** unsigned lexicographical comparison */
+		public static int compare(byte[] a, byte[] b) {
+			int len = Math.min(a.length, b.length);
+			for (int i=0; i < len; i++) {
+				int comp = (a[i] & 0xFF) - (b[i] & 0xFF);
+				if (comp != 0) return comp;
+			}
+			return a.length - b.length;
+		}
+
+		@Override
+		public int getMemory(Object obj) {
+			return 24 + ((MVarKey) obj).getEncoded().length;
+		}
+
+		@Override
+		public void write(WriteBuffer buff, Object obj) {
+			byte[] bytes = ((MVarKey) obj).getEncoded();
+			buff.putVarInt(bytes.length).put(bytes);
+		}
+
+		@Override
+		public Object read(ByteBuffer buff) {
+			byte[] bytes = new byte[DataUtils.readVarInt(buff)];
+			buff.get(bytes);
+			return new MVarKey(bytes);
+		}
+		
+		// bulk versions used by newer MVStore versions
+		
+		public void write(WriteBuffer buff, Object[] obj, int len, boolean key) {
+			for (int i=0; i < len; i++) write(buff, obj[i]);
+		}
+		
+		public void read(ByteBuffer buff, Object[] obj, int len, boolean key) {
+			for (int i=0; i < len; i++) obj[i] = read(buff);
+		}
+		
+		// encoding/decoding ---------------------------------------------------
+		
+		public static byte[] encode(Comparable... keys) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream(keys.length * 8);
+			for (Comparable key : keys) {
+				BigDecimal num = null;
+				if (key instanceof Number) {
+					num = toBigDecimal((Number) key);
+				} else if (key instanceof String && MParserUtils.isCanonicNumber((String) key)) {
+					num = new BigDecimal((String) key);
+				}
+				
+				if (key == null) {
+					out.write(TAG_END);
+				} else if (num != null && inRange(num)) {
+					encodeNumber(out, num);
+				} else {
+					encodeString(out, (num != null) ? MNumber.toString(num) : key.toString());
+				}
+			}
+			return out.toByteArray();
+		}
+		
+		/** Only numbers from 10^-127 to 10^127 fit the exponent byte, others are stored as their string */
+		private static boolean inRange(BigDecimal num) {
+			if (num.signum() == 0) return true;
+			num = num.stripTrailingZeros();
+			int exp = num.precision() - num.scale();
+			return exp <= MAX_EXPONENT && exp >= -MAX_EXPONENT;
+		}
+		
+		private static BigDecimal toBigDecimal(Number num) {
+			if (num instanceof BigDecimal) return (BigDecimal) num;
+			if (num instanceof BigInteger) return new BigDecimal((BigInteger) num);
+			if (num instanceof Double || num instanceof Float) {
+				double d = num.doubleValue();
+				if (Double.isNaN(d) || Double.isInfinite(d)) {
+					throw new IllegalArgumentException("Invalid numeric subscript: " + num);
+				}
+				return BigDecimal.valueOf(d);
+			}
+			return BigDecimal.valueOf(num.longValue());
+		}
+		
+		private static void encodeNumber(ByteArrayOutputStream out, BigDecimal num) {
+			if (num.signum() == 0) {
+				out.write(TAG_ZERO);
+				return;
+			}
+			
+			// value = 0.<digits> * 10^exp
+			boolean neg = num.signum() < 0;
+			num = num.abs().stripTrailingZeros();
+			String digits = num.unscaledValue().toString();
+			int exp = digits.length() - num.scale();
+			if (exp > MAX_EXPONENT || exp < -MAX_EXPONENT) {
+				throw new IllegalArgumentException("Numeric subscript out of range: " + num);
+			}
+			
+			int mask = (neg) ? 0xFF : 0;
+			out.write((neg) ? TAG_NEG : TAG_POS);
+			out.write((0x80 + exp) ^ mask);
+			for (int i=0; i < digits.length(); i+=2) {
+				int pair = (digits.charAt(i) - '0') * 10;
+				if (i+1 < digits.length()) pair += digits.charAt(i+1) - '0';
+				int more = (i+2 < digits.length()) ? 1 : 0;
+				out.write((pair * 2 + more) ^ mask);
+			}
+		}
+		
+		private static void encodeString(ByteArrayOutputStream out, String str) {
+			out.write(TAG_STR);
+			for (int i=0; i < str.length(); i++) {
+				int c = str.charAt(i);
+				if (c < 0x7F) {
+					out.write(c + 1);
+				} else if (c < 0x407F) {
+					c -= 0x7F;
+					out.write(0x80 + (c >> 8));
+					out.write(c & 0xFF);
+				} else {
+					out.write(0xC0);
+					out.write(c >> 8);
+					out.write(c & 0xFF);
+				}
+			}
+			out.write(0);
+		}
+		
+		/** Length of the encoded form of the first n subscripts */
+		static int prefixLength(byte[] bytes, int n) {
+			int i = 0;
+			for (int sub=0; sub < n && i < bytes.length; sub++) {
+				int tag = bytes[i++] & 0xFF;
+				if (tag == TAG_STR) {
+					int b;
+					while ((b = bytes[i++] & 0xFF) != 0) {
+						if (b >= 0xC0) {
+							i += 2;
+						} else if (b >= 0x80) {
+							i++;
+						}
+					}
+				} else if (tag == TAG_POS || tag == TAG_NEG) {
+					int mask = (tag == TAG_NEG) ? 0xFF : 0;
+					i++; // exponent
+					while ((((bytes[i++] & 0xFF) ^ mask) & 1) == 1);
+				}
+			}
+			return i;
+		}
+		
+		public static Comparable[] decode(byte[] bytes) {
+			List<Comparable> ret = new ArrayList<>();
+			int i = 0;
+			while (i < bytes.length) {
+				int tag = bytes[i++] & 0xFF;
+				if (tag == TAG_END) {
+					ret.add(null);
+				} else if (tag == TAG_ZERO) {
+					ret.add(0);
+				} else if (tag == TAG_STR) {
+					StringBuilder sb = new StringBuilder();
+					int b;
+					while ((b = bytes[i++] & 0xFF) != 0) {
+						if (b < 0x80) {
+							sb.append((char) (b - 1));
+						} else if (b < 0xC0) {
+							sb.append((char) ((((b - 0x80) << 8) | (bytes[i++] & 0xFF)) + 0x7F));
+						} else {
+							sb.append((char) (((bytes[i++] & 0xFF) << 8) | (bytes[i++] & 0xFF)));
+						}
+					}
+					ret.add(sb.toString());
+				} else if (tag == TAG_POS || tag == TAG_NEG) {
+					int mask = (tag == TAG_NEG) ? 0xFF : 0;
+					int exp = ((bytes[i++] & 0xFF) ^ mask) - 0x80;
+					StringBuilder digits = new StringBuilder();
+					int b;
+					do {
+						b = (bytes[i++] & 0xFF) ^ mask;
+						int pair = b / 2;
+						digits.append((char) ('0' + pair / 10));
+						digits.append((char) ('0' + pair % 10));
+					} while ((b & 1) == 1);
+					if (digits.charAt(digits.length()-1) == '0') digits.setLength(digits.length()-1);
+					
+					BigDecimal num = new BigDecimal(new BigInteger(digits.toString()), digits.length() - exp);
+					ret.add((Comparable) toNumber((mask != 0) ? num.negate() : num));
+				} else {
+					throw new IllegalArgumentException("Invalid encoded key, unknown tag: " + tag);
+				}
+			}
+			return ret.toArray(new Comparable[ret.size()]);
+		}
+		
+		/** Use the simplest Number type that can represent the subscript exactly, BigDecimal for anything but whole numbers */
+		private static Number toNumber(BigDecimal num) {
+			if (num.scale() > 0) return num;
+			if (num.compareTo(INT_MIN) >= 0 && num.compareTo(INT_MAX) <= 0) return num.intValue();
+			if (num.compareTo(LONG_MIN) >= 0 && num.compareTo(LONG_MAX) <= 0) return num.longValue();
+			return num;
+		}
+		private static final BigDecimal INT_MIN = BigDecimal.valueOf(Integer.MIN_VALUE);
+		private static final BigDecimal INT_MAX = BigDecimal.valueOf(Integer.MAX_VALUE);
+		private static final BigDecimal LONG_MIN = BigDecimal.valueOf(Long.MIN_VALUE);
+		private static final BigDecimal LONG_MAX = BigDecimal.valueOf(Long.MAX_VALUE);
 	}
 	
-}
\ No newline at end of file
+}
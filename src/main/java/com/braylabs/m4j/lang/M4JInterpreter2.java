@@ -4,10 +4,13 @@ import java.io.IOException;
 import java.io.Reader;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CommonTokenStream;
@@ -15,7 +18,9 @@ import org.antlr.v4.runtime.ParserRuleContext;
 import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.ParseTree;
 
+import com.braylabs.m4j.global.LockManager;
 import com.braylabs.m4j.global.MVar;
+import com.braylabs.m4j.global.MVar.MVarKey;
 import com.braylabs.m4j.lang.M4JRuntime.M4JProcess;
 import com.braylabs.m4j.lang.MUMPS2Parser.ArgsContext;
 import com.braylabs.m4j.lang.MUMPS2Parser.CmdContext;
@@ -43,6 +48,7 @@ import com.braylabs.m4j.lang.MUMPS2Parser.LineContext;
 import com.braylabs.m4j.lang.MUMPS2Parser.LineRefContext;
 import com.braylabs.m4j.lang.MUMPS2Parser.LinesContext;
 import com.braylabs.m4j.lang.MUMPS2Parser.LiteralContext;
+import com.braylabs.m4j.lang.MUMPS2Parser.MatchPatternContext;
 import com.braylabs.m4j.lang.MUMPS2Parser.RefContext;
 import com.braylabs.m4j.lang.MUMPS2Parser.VarContext;
 import com.braylabs.m4j.lang.MVal.BinaryOp;
@@ -76,13 +82,18 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 		commands.putAll(new DoCMDHandler().getCollection());
 		commands.putAll(new SetCMDHandler().getCollection());
 		commands.putAll(new IfCMDHandler().getCollection());
+		commands.putAll(new ElseCMDHandler().getCollection());
 		commands.putAll(new QuitCMDHandler().getCollection());
 		commands.putAll(new NewCMDHandler().getCollection());
+		commands.putAll(new KillCMDHandler().getCollection());
+		commands.putAll(new MergeCMDHandler().getCollection());
 		commands.putAll(new $TCMDHandler().getCollection());
 		commands.putAll(new $SCMDHandler().getCollection());
 		commands.putAll(new ForCMDHandler().getCollection());
 		commands.putAll(new HaltHangCMDHandler().getCollection());
 		commands.putAll(new GoCMDHandler().getCollection());
+		commands.putAll(new LockCMDHandler().getCollection());
+		commands.putAll(new TransactionCMDHandler().getCollection());
 	}
 	
 	@Override
@@ -283,28 +294,27 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 		// first evaluate the left side into a string
 		MVal val = MVal.valueOf(visit(ctx.expr()));
 		
-		// loop through each pattern, see if it matches
-		int offset = 0;
-		for (ExprPatternItemContext pat : ctx.exprPatternItem()) {
-			int repeat = (pat.PAT_INT() == null) ? 1 : Integer.parseInt(pat.PAT_INT().getText());
-			String codes = (pat.PAT_CODES() == null) ? null : pat.PAT_CODES().getText();
-			String literal = (pat.PAT_LITERAL() == null) ? null : pat.PAT_LITERAL().getText();
-
-			boolean match = false;
-			if (literal != null) {
-				// strip quotes
-				literal = literal.substring(1, literal.length()-1);
-				match = val.matches(offset, repeat, literal);
-				offset += literal.length() * repeat;
-			} else if (codes != null) {
-				match = val.matches(offset, repeat, codes.toCharArray());
-				offset += repeat;
+		// compile the pattern the first time through and keep it on the parse tree, unless it
+		// uses indirection (X?1N@PAT), then the pattern text can change on every evaluation
+		MatchPatternContext pat = ctx.matchPattern();
+		MPattern compiled = pat.compiled;
+		if (compiled == null) {
+			StringBuilder sb = new StringBuilder();
+			boolean indirect = false;
+			for (ExprPatternItemContext item : pat.exprPatternItem()) {
+				if (item.AT() != null) {
+					sb.append(MVal.valueOf(visit(item.expr())));
+					indirect = true;
+				} else {
+					sb.append(item.getText());
+				}
 			}
-			
-			if (!match) return MVal.FALSE;
+			compiled = MPattern.compile(sb.toString());
+			if (!indirect) pat.compiled = compiled;
 		}
 		
-		return MVal.TRUE;
+		boolean match = compiled.matches(val.toString());
+		return (match == (ctx.NOT_MATCH() == null)) ? MVal.TRUE : MVal.FALSE;
 	}
 	
 	@Override
@@ -353,7 +363,7 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 	
 	@Override
 	public MVar visitVar(VarContext ctx) {
-		// if flags starts with a ^ its a global, $ then its a special variable, otherwise its a local
+		// if flags starts with a ^ its a global (^|| process-private), $ then its a special variable, otherwise its a local
 		// if name == null, then its a naked global reference
 		String flag = (ctx.flags == null) ? "" : ctx.flags.getText();
 		String name = (ctx.ID() == null) ? null : ctx.ID().getText();
@@ -373,17 +383,22 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 	/** Helper function to resolve variables */
 	public MVar resolveVar(String name, MVal[] args) {
 		MVar ret = null;
-		if (name.startsWith("^")) {
+		if (name.startsWith("^||")) {
+			ret = proc.getPrivateGlobal(name);
+		} else if (name.startsWith("^")) {
 			ret = proc.getGlobal(name);
 		} else {
 			ret = proc.getLocal(name);
 		}
 		
-		// if its a subscripted global/var, resolve that as well
-		if (args != null) {
-			for (MVal arg : args) {
-				ret = ret.get(arg.toString());
+		// if its a subscripted global/var, resolve all the subscripts at once (one key and node, not one per level)
+		if (args != null && args.length > 0) {
+			Comparable[] subs = new Comparable[args.length];
+			for (int i=0; i < subs.length; i++) {
+				subs[i] = args[i].toString();
 			}
+			MVarKey path = ret.getPath();
+			ret = ret.get((path.size() == 0) ? MVarKey.valueOf(subs) : path.append(subs));
 		}
 		return ret;
 	}
@@ -748,9 +763,11 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 				MVar var = interp.resolveVar(varctx.ID().getText(), null);
 				String delim = MVal.valueOf(interp.visit(funcctx.args().expr(1))).toString();
 				Number from = (funcctx.args().expr().size() >= 3) ? MVal.valueOf(interp.visit(funcctx.args().expr(2))).toNumber() : 1;
+				Number to = (funcctx.args().expr().size() >= 4) ? MVal.valueOf(interp.visit(funcctx.args().expr(3))).toNumber() : from;
 
 				// do the string replacement, update the value and return
-				var.set(MUMPS.$PIECE(var.valStr(), delim, from.intValue(), val.toString()));
+				String str = var.isDefined() ? var.valStr() : "";
+				var.set(MUMPS.$PIECE(interp.proc, str, delim, from.intValue(), to.intValue(), val.toString()));
 				return var;
 			}
 			throw interp.throwError(funcctx, "Unrecognized function target for SET command: " + name);
@@ -765,11 +782,20 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 
 		@Override
 		public Object handle(M4JInterpreter2 interp, CmdContext ctx) {
+			MVar test = interp.proc.getLocal("$TEST");
+			
+			// argumentless: the rest of the line runs if $TEST is true
+			if (ctx.expr().isEmpty()) {
+				return MVal.valueOf(test.val()).isTruthy() ? MFlowControl.TRUE : MFlowControl.FALSE;
+			}
+			
 			for (ExprContext expr : ctx.expr()) {
 				
-				// each expression should return boolean
+				// each expression should return boolean, and sets $TEST
 				MVal ret = (MVal) interp.visit(expr);
-				if (ret != null && !ret.isTruthy()) {
+				boolean truthy = ret == null || ret.isTruthy();
+				test.set(truthy ? 1 : 0);
+				if (!truthy) {
 					return MFlowControl.FALSE;
 				}
 			}
@@ -778,6 +804,19 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 		}
 	}
 	
+	/** Argumentless ELSE, the rest of the line runs if $TEST is false (set by IF or a timed LOCK) */
+	public static class ElseCMDHandler extends CMDHandler {
+		public ElseCMDHandler() {
+			super("E","ELSE");
+		}
+
+		@Override
+		public Object handle(M4JInterpreter2 interp, CmdContext ctx) {
+			MVal test = MVal.valueOf(interp.proc.getLocal("$TEST").val());
+			return test.isTruthy() ? MFlowControl.FALSE : MFlowControl.TRUE;
+		}
+	}
+	
 	/**
 	 * TODO: Argumentless GOTO command not implemented
 	 * TODO: You can specify a $CASE function as a GOTO command argument.
@@ -932,6 +971,79 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 		}
 	}
 	
+	/**
+	 * K (all locals), K A,^X(1) (the variables and their descendants) and K (A,B) (all locals but A and B).
+	 * Each variable is removed with MVar.kill(), which removes the whole subtree at once.
+	 */
+	public static class KillCMDHandler extends CMDHandler {
+
+		public KillCMDHandler() {
+			super("K","KILL");
+		}
+		
+		@Override
+		public Object handle(M4JInterpreter2 interp, CmdContext ctx) {
+			// argumentless KILL
+			if (ctx.expr().isEmpty() && ctx.args() == null) {
+				interp.proc.killLocals(Collections.<String>emptySet());
+				return null;
+			}
+			
+			List<ExprContext> targets = (ctx.args() != null) ? ctx.args().expr() : ctx.expr();
+			for (ExprContext target : targets) {
+				if (target instanceof ExprVarContext) {
+					interp.visitVar(((ExprVarContext) target).var()).kill();
+					continue;
+				}
+				
+				// exclusive KILL, the names are not evaluated
+				List<ExprContext> keep = null;
+				if (target instanceof ExprGroupContext) {
+					keep = Arrays.asList(((ExprGroupContext) target).expr());
+				} else if (target instanceof ExprListContext) {
+					keep = ((ExprListContext) target).expr();
+				}
+				if (keep == null) {
+					throw interp.throwError(target, "Expected a variable name as KILL argument: " + target.getText());
+				}
+				Set<String> names = new HashSet<>();
+				for (ExprContext name : keep) names.add(name.getText());
+				interp.proc.killLocals(names);
+			}
+			return null;
+		}
+	}
+	
+	/** M ^A(1)=^B,X=^A(1), copies the source and its descendants with MVar.merge() */
+	public static class MergeCMDHandler extends CMDHandler {
+
+		public MergeCMDHandler() {
+			super("M","MERGE");
+		}
+		
+		@Override
+		public Object handle(M4JInterpreter2 interp, CmdContext ctx) {
+			for (ExprContext expr : ctx.expr()) {
+				ParseTree lhs = expr.getChild(0), oper = expr.getChild(1), rhs = expr.getChild(2);
+				if (oper == null || !oper.getText().equals("=")) {
+					throw interp.throwError(expr, "Expected a '=' operator for the MERGE command.");
+				}
+				if (!(lhs instanceof ExprVarContext) || !(rhs instanceof ExprVarContext)) {
+					throw interp.throwError(expr, "Expected variables on both sides of MERGE: " + expr.getText());
+				}
+				
+				MVar target = interp.visitVar(((ExprVarContext) lhs).var());
+				MVar src = interp.visitVar(((ExprVarContext) rhs).var());
+				try {
+					target.merge(src);
+				} catch (IllegalArgumentException ex) {
+					throw interp.throwError(expr, ex.getMessage());
+				}
+			}
+			return null;
+		}
+	}
+	
 	public static class $TCMDHandler extends CMDHandler {
 		
 		public $TCMDHandler() {
@@ -1053,6 +1165,172 @@ public class M4JInterpreter2 extends MUMPS2ParserBaseVisitor<Object> {
 		}
 	}
 	
+	/**
+	 * LOCK command, locks are held in the runtime wide LockManager and owned by the process.
+	 * Locks on ^|| globals are held in the process's own LockManager.
+	 * 
+	 * L (release all), L ^X(1) (release all, then lock), L +^X(1) (incremental), L -^X(1) (decrement),
+	 * L +(^X(1),^Y):5 (all or nothing, with timeout in seconds which sets $TEST)
+	 */
+	public static class LockCMDHandler extends CMDHandler {
+		public LockCMDHandler() {
+			super("L", "LOCK");
+		}
+		
+		@Override
+		public Object handle(M4JInterpreter2 interp, CmdContext ctx) {
+			LockManager mgr = interp.proc.getRuntime().getLockManager();
+			
+			// argumentless LOCK releases everything
+			if (ctx.expr().isEmpty() && ctx.args() == null) {
+				unlockAll(interp);
+				return null;
+			}
+			
+			// collect lock arguments and their optional timeouts, L A:1,B:2 is parsed as args, L A,B as exprs 
+			List<ExprContext> targets = new ArrayList<>();
+			List<ExprContext> timeouts = new ArrayList<>();
+			if (ctx.args() != null) {
+				ArgsContext args = ctx.args();
+				for (int i=0; i < args.getChildCount(); i++) {
+					ParseTree child = args.getChild(i);
+					if (child instanceof ExprContext) {
+						boolean isTimeout = i > 0 && args.getChild(i-1).getText().equals(":");
+						if (isTimeout) {
+							timeouts.set(timeouts.size()-1, (ExprContext) child);
+						} else {
+							targets.add((ExprContext) child);
+							timeouts.add(null);
+						}
+					}
+				}
+			} else {
+				targets.addAll(ctx.expr());
+				for (int i=0; i < targets.size(); i++) timeouts.add(null);
+			}
+			
+			for (int i=0; i < targets.size(); i++) {
+				ExprContext target = targets.get(i);
+				
+				// +/- prefix means incremental lock/unlock
+				String mode = null;
+				if (target instanceof ExprUnaryContext) {
+					mode = ((ExprUnaryContext) target).OPER().getText();
+					if (!mode.equals("+") && !mode.equals("-")) {
+						throw interp.throwError(target, "Unrecognized LOCK argument: " + target.getText());
+					}
+					target = ((ExprUnaryContext) target).expr();
+				}
+				List<LockManager.LockRef> refs = resolveRefs(interp, target);
+				
+				// ^|| globals are private to the process, so are their locks
+				List<LockManager.LockRef> privateRefs = new ArrayList<>();
+				for (Iterator<LockManager.LockRef> itr = refs.iterator(); itr.hasNext(); ) {
+					LockManager.LockRef ref = itr.next();
+					if (ref.getName().startsWith("^||")) {
+						privateRefs.add(ref);
+						itr.remove();
+					}
+				}
+				
+				if ("-".equals(mode)) {
+					for (LockManager.LockRef ref : refs) mgr.unlock(interp.proc, ref);
+					for (LockManager.LockRef ref : privateRefs) interp.proc.getPrivateLockManager().unlock(interp.proc, ref);
+					continue;
+				} else if (mode == null) {
+					unlockAll(interp);
+				}
+				
+				long timeout = -1;
+				if (timeouts.get(i) != null) {
+					double secs = MVal.valueOf(interp.visit(timeouts.get(i))).toNumber().doubleValue();
+					timeout = Math.max(0, Math.round(secs * 1000));
+				}
+				
+				// nobody else can hold the private ones, so they only need taking once the shared ones are
+				boolean ret = mgr.lock(interp.proc, refs, timeout);
+				if (ret && !privateRefs.isEmpty()) {
+					interp.proc.getPrivateLockManager().lock(interp.proc, privateRefs, 0);
+				}
+				if (timeout >= 0) {
+					interp.proc.getLocal("$TEST").set(ret ? 1 : 0);
+				}
+			}
+			return null;
+		}
+		
+		private static void unlockAll(M4JInterpreter2 interp) {
+			interp.proc.getRuntime().getLockManager().unlockAll(interp.proc);
+			interp.proc.getPrivateLockManager().unlockAll(interp.proc);
+		}
+		
+		/** the variables named by a LOCK argument, from their names and subscripts (they are not looked up or defined) */
+		private static List<LockManager.LockRef> resolveRefs(M4JInterpreter2 interp, ExprContext target) {
+			List<LockManager.LockRef> ret = new ArrayList<>();
+			if (target instanceof ExprGroupContext) {
+				target = ((ExprGroupContext) target).expr();
+			}
+			
+			List<ExprContext> vars = (target instanceof ExprListContext) ? 
+					((ExprListContext) target).expr() : Arrays.asList(target);
+			for (ExprContext var : vars) {
+				if (!(var instanceof ExprVarContext)) {
+					throw interp.throwError(var, "Expected a variable name as LOCK argument: " + var.getText());
+				}
+				VarContext ctx = ((ExprVarContext) var).var();
+				String flag = (ctx.flags == null) ? "" : ctx.flags.getText();
+				String name = (ctx.ID() == null) ? null : ctx.ID().getText();
+				if (flag.startsWith("$")) {
+					throw interp.throwError(var, "Expected a variable name as LOCK argument: " + var.getText());
+				} else if (flag.equals("^") && name == null) {
+					name = interp.proc.getSpecialVar("$M4JLASTGLOBAL").valStr();
+				}
+				
+				MVal[] args = interp.visitArgs(ctx.args());
+				Comparable[] subs = new Comparable[(args == null) ? 0 : args.length];
+				for (int i=0; i < subs.length; i++) {
+					subs[i] = args[i].toString();
+				}
+				ret.add(new LockManager.LockRef(flag + name, MVarKey.valueOf(subs)));
+			}
+			return ret;
+		}
+	}
+	
+	/**
+	 * TSTART, TCOMMIT and TROLLBACK, transactions are kept by the GlobalStore per thread (see 
+	 * M4JProcess.startTransaction()).
+	 * TSTART arguments (variables to restore, SERIAL, etc.) are ignored.  TROLLBACK without 
+	 * an argument rolls back all levels, TROLLBACK 1 only the innermost one.
+	 */
+	public static class TransactionCMDHandler extends CMDHandler {
+		public TransactionCMDHandler() {
+			super("TS", "TSTART", "TC", "TCOMMIT", "TRO", "TROLLBACK");
+		}
+		
+		@Override
+		public Object handle(M4JInterpreter2 interp, CmdContext ctx) {
+			M4JProcess proc = interp.proc;
+			String cmdname = ctx.ID().getText().toUpperCase();
+			
+			if (cmdname.startsWith("TS")) {
+				proc.startTransaction();
+			} else if (cmdname.startsWith("TC")) {
+				if (proc.getTransactionLevel() == 0) {
+					throw interp.throwError(ctx, "TCOMMIT without TSTART");
+				}
+				proc.commitTransaction();
+			} else {
+				int levels = 0;
+				if (!ctx.expr().isEmpty()) {
+					levels = MVal.valueOf(interp.visit(ctx.expr(0))).toNumber().intValue();
+				}
+				proc.rollbackTransaction(levels);
+			}
+			return null;
+		}
+	}
+	
 	public static class ForCMDHandler extends CMDHandler {
 		public ForCMDHandler() {
 			super("F", "FOR");
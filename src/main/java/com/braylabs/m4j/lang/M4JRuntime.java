@@ -4,14 +4,20 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
-import java.util.Collections;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import com.braylabs.m4j.global.GlobalStore;
+import com.braylabs.m4j.global.LockManager;
 import com.braylabs.m4j.global.MVar;
+import com.braylabs.m4j.global.MVar.LocalMVar;
 import com.braylabs.m4j.global.MVar.TreeMVar;
 import com.braylabs.m4j.lang.RoutineProxy.JavaClassProxy;
 import com.braylabs.m4j.parser.MInterpreter;
@@ -22,15 +28,18 @@ import com.braylabs.m4j.parser.MInterpreter;
 public class M4JRuntime implements Closeable{
 	
 	// all routines by name and then all callable entry points
-	private Map<String, RoutineProxy> routines = new HashMap<>();
+	private ConcurrentMap<String, RoutineProxy> routines = new ConcurrentHashMap<>();
 	
 	// global storage for namespace
-	private Map<String, MVar> globals = new HashMap<>();
+	private ConcurrentMap<String, MVar> globals = new ConcurrentHashMap<>();
 	private GlobalStore store;
+	private LockManager locks = new LockManager();
+	private long privateGlobalsMemory = GlobalStore.PrivateGlobalStore.DEFAULT_MAX_MEMORY;
+	private long maxLocalNodes = LocalMVar.Spill.DEFAULT_MAX_NODES;
 	
 	// running threads/processes
 	private AtomicInteger procID = new AtomicInteger();
-	private Map<Integer,M4JProcess> procs = new HashMap<>();
+	private ConcurrentMap<Integer,M4JProcess> procs = new ConcurrentHashMap<>();
 	private ThreadGroup group = new ThreadGroup("M4J-PROCS");
 
 
@@ -65,11 +74,42 @@ public class M4JRuntime implements Closeable{
 		return routines.keySet().iterator();
 	}
 	
+	/** Safe to call from any process, only the first lookup of a global touches the store */
 	public MVar getGlobal(String name) {
-		if (!globals.containsKey(name)) {
-			globals.put(name, store.get(name));
+		MVar ret = globals.get(name);
+		if (ret == null) {
+			MVar global = store.get(name);
+			ret = globals.putIfAbsent(name, global);
+			if (ret == null) ret = global;
 		}
-		return globals.get(name);
+		return ret;
+	}
+	
+	public GlobalStore getGlobalStore() {
+		return this.store;
+	}
+	
+	/** Lock table shared by all processes (LOCK command) */
+	public LockManager getLockManager() {
+		return this.locks;
+	}
+	
+	/** Bytes of process-private globals (^||X) a process keeps in memory before moving them to a temp file */
+	public long getPrivateGlobalsMemory() {
+		return this.privateGlobalsMemory;
+	}
+	
+	public void setPrivateGlobalsMemory(long bytes) {
+		this.privateGlobalsMemory = bytes;
+	}
+	
+	/** Nodes a local array of a process can have before it is moved to a temp file, <= 0 to keep them all in memory */
+	public long getMaxLocalNodes() {
+		return this.maxLocalNodes;
+	}
+	
+	public void setMaxLocalNodes(long nodes) {
+		this.maxLocalNodes = nodes;
 	}
 	
 	/** Lists all the globals, not just the ones that have been used in this session */
@@ -84,20 +124,49 @@ public class M4JRuntime implements Closeable{
 	
 	/** Spawn/Fork new process in new thread */
 	public M4JProcess spawnProcess() {
+		return spawnProcess(null);
+	}
+	
+	/** Spawn/Fork new process in new thread that runs the task, the process is unregistered when it finishes */
+	public M4JProcess spawnProcess(final Runnable task) {
 		// create the process
-		int id = this.procID.incrementAndGet();
-		M4JProcess ret = new M4JProcess(this, id);
+		final int id = this.procID.incrementAndGet();
+		final M4JProcess ret = new M4JProcess(this, id);
 		this.procs.put(id, ret);
 		
 		// launch it
 		String name = "M4J-PROC-" + id;
-		Thread t = new Thread(group, ret, name);
+		Thread t = new Thread(group, new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ret.run();
+					if (task != null) task.run();
+				} finally {
+					// a process that ends in a transaction never committed it
+					if (ret.getTransactionLevel() > 0) ret.rollbackTransaction(0);
+					locks.unlockAll(ret);
+					ret.close();
+					procs.remove(id);
+				}
+			}
+		}, name);
 		t.setDaemon(true);
 		t.start();
 		
 		return ret;
 	}
 	
+	/** @return the running process or null if it does not exist (anymore) */
+	public M4JProcess getProcess(int id) {
+		return this.procs.get(id);
+	}
+	
+	/** Number of processes currently running */
+	public int getProcessCount() {
+		return this.procs.size();
+	}
+	
 	@Override
 	public void close() throws IOException {
 		store.close();
@@ -110,8 +179,7 @@ public class M4JRuntime implements Closeable{
 	 * TODO: stack-dump initiated from here?
 	 * TODO: how does it clean itself up?
 	 * TODO: is this adequate for the FORK command?
-	 * TODO: Process-private globals (still persisted, but killed at end of process)
-	 * -- TODO: maybe consolidate getGLobal()+getLocal() to getVar() and let it parse it?
+	 * TODO: maybe consolidate getGlobal()+getPrivateGlobal()+getLocal() to getVar() and let it parse it?
 	 * 
 	 * TODO: how to dump all the current vars (W, ZW)?
 	 * 
@@ -126,10 +194,19 @@ public class M4JRuntime implements Closeable{
 		private Thread thread;
 		private M4JStackItem stack = new M4JStackItem(null, true, "ROOT");
 		private int stackLevel = 0;
+		private Map<String, Slot> symbols = new HashMap<>();
 		private Map<String, MVar> specialVars = new HashMap<>();
 		private Map<String, Object> cache = new HashMap<>();
 		private String trace;
 		private M4JInterpreter2 interp;
+		private GlobalStore.PrivateGlobalStore privateGlobals;
+		private LockManager privateLocks;
+		private LocalMVar.Spill localSpill;
+		private Thread transactionThread;
+		private int tlevel;
+		
+		/** The process with a transaction open on each thread, see startTransaction() */
+		private static final ThreadLocal<M4JProcess> TRANSACTION = new ThreadLocal<>();
 		
 		public M4JProcess(M4JRuntime runtime, int ID) {
 			this.runtime = runtime;
@@ -145,6 +222,11 @@ public class M4JRuntime implements Closeable{
 			indent.set(0);
 			specialVars.put(indent.getName(), indent);
 			
+			// result of the last IF or timed LOCK
+			MVar test = new TreeMVar("$TEST", 0);
+			specialVars.put("$T", test);
+			specialVars.put("$TEST", test);
+			
 			MVar lastGlobal = new TreeMVar("$M4JLASTGLOBAL"); 
 			specialVars.put(lastGlobal.getName(), lastGlobal);
 			
@@ -163,6 +245,8 @@ public class M4JRuntime implements Closeable{
 				return MUMPS.$HOROLOG();
 			} else if (name.equals("$STACK")) {
 				return new TreeMVar("$STACK", this.stackLevel);
+			} else if (name.equals("$TL") || name.equals("$TLEVEL")) {
+				return new TreeMVar("$TLEVEL", this.tlevel);
 			}
 			return null;
 		}
@@ -171,26 +255,133 @@ public class M4JRuntime implements Closeable{
 			return this.runtime.getGlobal(name);
 		}
 		
+		/** Process-private global (^||X), dropped when the process ends */
+		public MVar getPrivateGlobal(String name) {
+			if (this.privateGlobals == null) {
+				this.privateGlobals = new GlobalStore.PrivateGlobalStore(this.runtime.getPrivateGlobalsMemory());
+			}
+			return this.privateGlobals.get(name);
+		}
+		
+		/** Locks on process-private globals (^||X), kept out of the runtime's table as no other process can see them */
+		public LockManager getPrivateLockManager() {
+			if (this.privateLocks == null) {
+				this.privateLocks = new LockManager(1);
+			}
+			return this.privateLocks;
+		}
+		
+		// transactions -------------------------------------------------------
+		
+		/*
+		 * The GlobalStore keeps the TSTART state per thread, as the MVar writes it journals can't tell 
+		 * which process made them.  So a transaction stays on the thread that started it, and a thread 
+		 * has only one process in a transaction at a time (spawnProcess() gives each process its own).
+		 */
+		
+		/** TSTART, returns the new $TLEVEL.  @throws IllegalStateException if this thread can't hold the transaction */
+		public int startTransaction() {
+			checkTransactionThread();
+			this.tlevel = this.runtime.getGlobalStore().startTransaction();
+			this.transactionThread = Thread.currentThread();
+			TRANSACTION.set(this);
+			return this.tlevel;
+		}
+		
+		/** TCOMMIT, returns the new $TLEVEL */
+		public int commitTransaction() {
+			if (this.tlevel == 0) throw new IllegalStateException("TCOMMIT without TSTART");
+			checkTransactionThread();
+			return endTransaction(this.runtime.getGlobalStore().commitTransaction());
+		}
+		
+		/** TROLLBACK of the innermost levels (all of them if levels <= 0), returns the new $TLEVEL */
+		public int rollbackTransaction(int levels) {
+			if (this.tlevel == 0) return 0;
+			checkTransactionThread();
+			return endTransaction(this.runtime.getGlobalStore().rollbackTransaction(levels));
+		}
+		
+		/** $TLEVEL of this process */
+		public int getTransactionLevel() {
+			return this.tlevel;
+		}
+		
+		private int endTransaction(int level) {
+			this.tlevel = level;
+			if (level == 0) {
+				this.transactionThread = null;
+				TRANSACTION.remove();
+			}
+			return level;
+		}
+		
+		private void checkTransactionThread() {
+			Thread current = Thread.currentThread();
+			if (this.transactionThread != null && this.transactionThread != current) {
+				throw new IllegalStateException("Transaction of process " + getSpecialVar("$JOB").val() 
+						+ " was started on thread " + this.transactionThread.getName());
+			}
+			M4JProcess other = TRANSACTION.get();
+			if (other != null && other != this) {
+				throw new IllegalStateException("Thread " + current.getName() + " is in a transaction of process " 
+						+ other.getSpecialVar("$JOB").val());
+			}
+		}
+		
 		public MVar getLocal(String name) {
 			if (name.startsWith("$")) return getSpecialVar(name);
 			return stack.get(name, false);
 		}
 		
+		/** Argumentless/exclusive KILL, kills the visible local variables except the specified ones */
+		public void killLocals(Set<String> except) {
+			for (Slot slot : this.symbols.values()) {
+				if (slot.var != null && !except.contains(slot.name)) slot.var.kill();
+			}
+		}
+		
+		/** Names of the visible local variables */
 		public Iterator<String> listLocals() {
-			return (stack.locals != null) ? stack.locals.keySet().iterator() : (Iterator<String>) Collections.EMPTY_SET.iterator();
+			List<String> ret = new ArrayList<>();
+			for (Slot slot : this.symbols.values()) {
+				if (slot.var != null) ret.add(slot.name);
+			}
+			return ret.iterator();
 		}
 		
 		/** Essentially the NEW command */
 		public void push(boolean exclusive, String... names) {
 			stackLevel++;
-			this.stack = new M4JStackItem(this.stack, exclusive, this.trace); 
+			this.stack = new M4JStackItem(this.stack, exclusive, this.trace);
+			
+			// nothing below an exclusive level is visible, hide it all until it is popped
+			if (exclusive) {
+				for (Slot slot : this.symbols.values()) {
+					if (slot.var != null) this.stack.shadow(slot, null);
+				}
+			}
 			for (String name : names) {
-				this.stack.get(name, true);
+				this.stack.newd(name);
 			}
 		}
 		
+		/** Pops the stack levels, dropping the variables they NEWed and restoring the ones they shadowed */
 		public void reset(int levels) {
-			for (int i=0; i < levels; i++) this.stack = this.stack.parent;
+			for (int i=0; i < levels; i++) {
+				this.stack.release();
+				this.stack = this.stack.parent;
+				stackLevel--;
+			}
+		}
+		
+		/** @return the slot of a local variable name, created on first use and kept for the life of the process */
+		private Slot slot(String name) {
+			Slot ret = this.symbols.get(name);
+			if (ret == null) {
+				this.symbols.put(name, ret = new Slot(name));
+			}
+			return ret;
 		}
 		
 		public RoutineProxy getRoutine(String name) {
@@ -232,6 +423,23 @@ public class M4JRuntime implements Closeable{
 		public Thread getThread() {
 			return thread;
 		}
+		
+		/** Where the locals too big for the heap go, null if they stay in memory */
+		private LocalMVar.Spill getLocalSpill() {
+			if (this.localSpill == null && this.runtime.getMaxLocalNodes() > 0) {
+				this.localSpill = new LocalMVar.Spill(this.runtime.getMaxLocalNodes());
+			}
+			return this.localSpill;
+		}
+		
+		/** Ends the process, dropping its process-private globals and spilled locals */
+		public void close() {
+			if (this.privateGlobals != null) this.privateGlobals.close();
+			this.privateGlobals = null;
+			this.privateLocks = null;
+			if (this.localSpill != null) this.localSpill.close();
+			this.localSpill = null;
+		}
 
 		public String stackDump() {
 			StringBuffer sb = new StringBuffer();
@@ -243,16 +451,34 @@ public class M4JRuntime implements Closeable{
 			return sb.toString();
 		}
 		
+		/**
+		 * A local variable name and the variable currently visible by it.  Names are resolved to their
+		 * slot with one lookup no matter how deep the stack is, NEW swaps the variable in the slot and
+		 * popping the stack level swaps the old one back.
+		 */
+		private static class Slot {
+			final String name;
+			MVar var;
+			M4JStackItem owner;
+			
+			Slot(String name) {
+				this.name = name;
+			}
+		}
+		
 		/**
 		 * Execution stack (in a routine, etc.), intended to be a lightweight subclass of process.
 		 * 
-		 * Primary mechanism for implementing NEW command variable/stack.
+		 * Primary mechanism for implementing NEW command variable/stack: it records the slots it
+		 * shadowed and what they held before.
 		 * @author brian
 		 */
 		public class M4JStackItem {
 			
 			private M4JStackItem parent;
-			private Map<String, MVar> locals;
+			private M4JStackItem scope;
+			private List<Slot> slots;
+			private List<Object> saved;
 			private boolean exclusive;
 			private String ctx;
 			
@@ -260,6 +486,8 @@ public class M4JRuntime implements Closeable{
 				this.parent = parent;
 				this.ctx = ctx;
 				this.exclusive = exclusive;
+				// where undefined variables are created: the nearest exclusive level
+				this.scope = (exclusive || parent == null) ? this : parent.scope;
 			}
 			
 			public String getContext() {
@@ -271,40 +499,56 @@ public class M4JRuntime implements Closeable{
 			}
 
 			public MVar get(String name, boolean newd) {
-				// if defined locally, return it
-				MVar ret = (locals != null) ? locals.get(name) : null;
-				if (ret != null) return ret;
+				if (newd) return newd(name);
 				
-				// if newd or exclusive mode, create var here
-				if (newd || exclusive) {
-					// lazy init
-					if (locals == null) locals = new HashMap<>();
-					locals.put(name, ret = new TreeMVar(name));
-					return ret;
-				} else {
-					// go up the stack
-					return parent.get(name, false);
-				}
+				// if visible, return it, otherwise create it in the nearest exclusive level
+				Slot slot = slot(name);
+				if (slot.var != null) return slot.var;
+				return scope.shadow(slot, new LocalMVar(name, getLocalSpill()));
 			}
 			
+			/** Drops the variable if this level defined it, the name is undefined until it is used again */
 			public MVar kill(String name) {
-				if (locals != null && locals.containsKey(name)) {
-					return locals.remove(name);
-				}
-				return null;
+				Slot slot = symbols.get(name);
+				if (slot == null || slot.owner != this) return null;
+				MVar ret = slot.var;
+				slot.var = null;
+				return ret;
 			}
 			
 			public MVar newd(String name) {
-				if (locals == null) {
-					locals = new HashMap<>();
+				return shadow(slot(name), new LocalMVar(name, getLocalSpill()));
+			}
+			
+			/** Puts var in the slot, saving what it held for release() */
+			private MVar shadow(Slot slot, MVar var) {
+				// lazy init
+				if (slots == null) {
+					slots = new ArrayList<>();
+					saved = new ArrayList<>();
 				}
-				MVar ret = new MVar.TreeMVar(name);
-				locals.put(name,ret);
-				return ret;
+				slots.add(slot);
+				saved.add(slot.var);
+				saved.add(slot.owner);
+				slot.var = var;
+				slot.owner = this;
+				return var;
+			}
+			
+			/** Frees the variables of this level when it is popped (their spill maps) and restores the shadowed ones */
+			void release() {
+				if (slots == null) return;
+				for (int i=slots.size()-1; i >= 0; i--) {
+					Slot slot = slots.get(i);
+					if (slot.var != null && slot.owner == this) slot.var.kill();
+					slot.var = (MVar) saved.get(i*2);
+					slot.owner = (M4JStackItem) saved.get(i*2+1);
+				}
+				slots = null;
+				saved = null;
 			}
 		}
 
-
 	}
 	
 }
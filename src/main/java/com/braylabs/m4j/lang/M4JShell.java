@@ -3,8 +3,10 @@ package com.braylabs.m4j.lang;
 import java.io.File;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import java.util.StringTokenizer;
 
 import jline.console.ConsoleReader;
@@ -19,6 +21,7 @@ import org.antlr.v4.runtime.CommonTokenStream;
 import org.antlr.v4.runtime.Token;
 import org.h2.mvstore.MVStore;
 
+import com.braylabs.m4j.global.GlobalCache;
 import com.braylabs.m4j.global.GlobalStore;
 import com.braylabs.m4j.lang.M4JRuntime.M4JProcess;
 import com.braylabs.m4j.parser.MInterpreter;
@@ -31,10 +34,16 @@ public class M4JShell {
 		OptionParser parser = new OptionParser();
 		OptionSpec<String> optCP = parser.acceptsAll(Arrays.asList("cp","classpath"), "Routine classpath")
 				.withOptionalArg().ofType(String.class);
-		OptionSpec<String> optGlobals = parser.acceptsAll(Arrays.asList("globals"), "Globals storage: CACHE or MVSTORE")
+		OptionSpec<String> optGlobals = parser.acceptsAll(Arrays.asList("globals"), "Globals storage: CACHE, MVSTORE or MEMORY (not persisted)")
 				.withOptionalArg().ofType(String.class);
 		OptionSpec<String> optGlobalsDir = parser.acceptsAll(Arrays.asList("globals.dir"), "Globals storage directory (MVSTORE only)")
 				.withOptionalArg().ofType(String.class);
+		OptionSpec<String> optGlobalsCommit = parser.acceptsAll(Arrays.asList("globals.commit"), "Globals commit policy (MVSTORE only): EVERY_WRITE, BATCH:<writes>, INTERVAL:<ms>, EXPLICIT or ON_EXIT")
+				.withOptionalArg().ofType(String.class);
+		OptionSpec<String> optGlobalsCache = parser.acceptsAll(Arrays.asList("globals.cache"), "Globals node read cache size in bytes, ie 64M (MVSTORE only)")
+				.withOptionalArg().ofType(String.class);
+		OptionSpec<String> optGlobalsMap = parser.acceptsAll(Arrays.asList("globals.map"), "Map globals to another store (repeatable): <name>[*][(<from>:<to>)]=<file>|MEMORY, ie TMP*=MEMORY or ARC(2000:2010)=/disk2/arc.mv")
+				.withRequiredArg().ofType(String.class);
 		OptionSpec<String> optDebug = parser.acceptsAll(Arrays.asList("d","debug"), "Show debug info").withOptionalArg().ofType(String.class);
 		OptionSpec<Void> optHelp = parser.acceptsAll(Arrays.asList("h", "?", "help"), "Show Help").forHelp();
 	     
@@ -57,6 +66,8 @@ public class M4JShell {
 		if (options.hasArgument(optGlobals)) {
 			if (options.valueOf(optGlobals).equalsIgnoreCase("CACHE")) {
 				store = new GlobalStore.CacheGlobalStore();
+			} else if (options.valueOf(optGlobals).equalsIgnoreCase("MEMORY")) {
+				store = new GlobalStore.MemoryGlobalStore();
 			} else if (options.hasArgument(optGlobalsDir)) {
 				MVStore mvstore = new MVStore.Builder().fileName(options.valueOf(optGlobalsDir)).cacheSize(20).open();
 				store = new GlobalStore.MVGlobalStore(mvstore);
@@ -64,6 +75,40 @@ public class M4JShell {
 				store = new GlobalStore.MVGlobalStore();
 			}
 		}
+		if (options.has(optGlobalsMap)) {
+			if (store == null) store = new GlobalStore.MVGlobalStore();
+			store = mapGlobals(store, options.valuesOf(optGlobalsMap));
+		}
+		
+		// commit policy and cache apply to every MVSTORE the globals are mapped to
+		List<GlobalStore> stores = (store instanceof GlobalStore.RoutingGlobalStore) ? 
+				((GlobalStore.RoutingGlobalStore) store).getStores() : Arrays.asList(store);
+		if (options.hasArgument(optGlobalsCommit)) {
+			if (store == null) stores = Arrays.asList(store = new GlobalStore.MVGlobalStore());
+			String[] policy = options.valueOf(optGlobalsCommit).split(":");
+			int value = (policy.length > 1) ? Integer.parseInt(policy[1]) : 0;
+			for (GlobalStore s : stores) {
+				if (s instanceof GlobalStore.MemoryGlobalStore) continue; // nothing to commit
+				if (!(s instanceof GlobalStore.MVGlobalStore)) {
+					System.err.println("--globals.commit is only supported for MVSTORE globals");
+					return;
+				}
+				((GlobalStore.MVGlobalStore) s).setCommitPolicy(
+						GlobalStore.MVGlobalStore.CommitPolicy.valueOf(policy[0].toUpperCase()), value);
+			}
+		}
+		
+		if (options.hasArgument(optGlobalsCache)) {
+			if (store == null) stores = Arrays.asList(store = new GlobalStore.MVGlobalStore());
+			for (GlobalStore s : stores) {
+				if (s instanceof GlobalStore.MemoryGlobalStore) continue; // already in memory
+				if (!(s instanceof GlobalStore.MVGlobalStore)) {
+					System.err.println("--globals.cache is only supported for MVSTORE globals");
+					return;
+				}
+			}
+			store.setCache(new GlobalCache(parseSize(options.valueOf(optGlobalsCache))));
+		}
 		
 		// setup shell instance
 		M4JRuntime runtime = new M4JRuntime(store);
@@ -98,9 +143,47 @@ public class M4JShell {
     		}
         }
 
+        if (options.hasArgument(optDebug) && runtime.getGlobalStore().getCache() != null) {
+        	System.out.println(runtime.getGlobalStore().getCache());
+        }
+        proc.close();
         runtime.close();
 	}
 	
+	/** Wraps the store in a RoutingGlobalStore, mapping each <spec>=<target> to a MVSTORE file or MEMORY (one store per target) */
+	private static GlobalStore mapGlobals(GlobalStore store, List<String> maps) {
+		GlobalStore.RoutingGlobalStore ret = new GlobalStore.RoutingGlobalStore(store);
+		Map<String, GlobalStore> targets = new HashMap<>();
+		for (String map : maps) {
+			int idx = map.lastIndexOf('=');
+			if (idx <= 0) throw new IllegalArgumentException("Expected --globals.map <name>=<file>|MEMORY: " + map);
+			String target = map.substring(idx + 1).trim();
+			GlobalStore targetStore = targets.get(target);
+			if (targetStore == null) {
+				if (target.equalsIgnoreCase("MEMORY")) {
+					targetStore = new GlobalStore.MemoryGlobalStore();
+				} else {
+					targetStore = new GlobalStore.MVGlobalStore(new MVStore.Builder().fileName(target).cacheSize(20).open());
+				}
+				targets.put(target, targetStore);
+			}
+			ret.map(map.substring(0, idx), targetStore);
+		}
+		return ret;
+	}
+	
+	/** Parses a byte size with an optional K, M or G suffix */
+	private static long parseSize(String size) {
+		size = size.trim().toUpperCase();
+		long mult = 1;
+		char unit = size.charAt(size.length()-1);
+		if (unit == 'K' || unit == 'M' || unit == 'G') {
+			mult = (unit == 'K') ? 1L << 10 : (unit == 'M') ? 1L << 20 : 1L << 30;
+			size = size.substring(0, size.length()-1);
+		}
+		return Long.parseLong(size) * mult;
+	}
+	
 	private static void loadRoutines(String classPath, M4JRuntime runtime) throws IOException {
 		if (classPath == null) return;
 		
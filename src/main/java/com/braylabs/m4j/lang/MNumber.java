@@ -0,0 +1,284 @@
+package com.braylabs.m4j.lang;
+
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+
+/**
+ * M arithmetic.  Integers stay in a long (returned as Integer when they fit, Long otherwise) and
+ * everything else is an exact decimal with at most 18 significant digits, so .1+.2 is .3.  Results
+ * are normalized: whole numbers always come back as an Integer/Long, never as a BigDecimal.
+ *
+ * Operands can be any Number, a Double or Float is taken as the decimal it prints as.
+ */
+public final class MNumber {
+
+	/** Precision of M numbers (canonic numbers have at most 18 significant digits) */
+	public static final MathContext CONTEXT = new MathContext(18, RoundingMode.HALF_UP);
+
+	/** Significant digits of a double that are always right */
+	private static final MathContext DOUBLE_CONTEXT = new MathContext(15, RoundingMode.HALF_UP);
+	private static final Integer ZERO = Integer.valueOf(0);
+	private static final BigDecimal MAX_EXPONENT = BigDecimal.valueOf(999999999);
+	private static final long[] TENS = new long[19];
+	static {
+		TENS[0] = 1;
+		for (int i=1; i < TENS.length; i++) TENS[i] = TENS[i-1] * 10;
+	}
+
+	private MNumber() {}
+
+	public static boolean isIntegral(Number n) {
+		return n instanceof Integer || n instanceof Long || n instanceof Short || n instanceof Byte;
+	}
+
+	public static Number add(Number a, Number b) {
+		if (isIntegral(a) && isIntegral(b)) {
+			long x = a.longValue(), y = b.longValue(), r = x + y;
+			// overflow only if both operands have the same sign and the result a different one
+			if (((x ^ r) & (y ^ r)) >= 0) return valueOf(r);
+		}
+		return normalize(toBigDecimal(a).add(toBigDecimal(b), CONTEXT));
+	}
+
+	public static Number subtract(Number a, Number b) {
+		if (isIntegral(a) && isIntegral(b)) {
+			long x = a.longValue(), y = b.longValue(), r = x - y;
+			// overflow only if the operands have different signs and the result not the sign of x
+			if (((x ^ y) & (x ^ r)) >= 0) return valueOf(r);
+		}
+		return normalize(toBigDecimal(a).subtract(toBigDecimal(b), CONTEXT));
+	}
+
+	public static Number negate(Number a) {
+		return subtract(ZERO, a);
+	}
+
+	public static Number multiply(Number a, Number b) {
+		if (isIntegral(a) && isIntegral(b)) {
+			long x = a.longValue(), y = b.longValue(), r = x * y;
+			// both fit in an int or the division gives x back
+			if (((Math.abs(x) | Math.abs(y)) >>> 31 == 0) || ((y == 0 || r / y == x) && !(x == Long.MIN_VALUE && y == -1))) {
+				return valueOf(r);
+			}
+		}
+		return normalize(toBigDecimal(a).multiply(toBigDecimal(b), CONTEXT));
+	}
+
+	/** @throws ArithmeticException dividing by 0 */
+	public static Number divide(Number a, Number b) {
+		checkDivisor(b);
+		if (isIntegral(a) && isIntegral(b)) {
+			long x = a.longValue(), y = b.longValue();
+			if (x % y == 0 && !(x == Long.MIN_VALUE && y == -1)) return valueOf(x / y);
+		}
+		return normalize(toBigDecimal(a).divide(toBigDecimal(b), CONTEXT));
+	}
+
+	/** Integer division (\), truncates towards 0. @throws ArithmeticException dividing by 0 */
+	public static Number intDivide(Number a, Number b) {
+		checkDivisor(b);
+		if (isIntegral(a) && isIntegral(b)) {
+			long x = a.longValue(), y = b.longValue();
+			if (!(x == Long.MIN_VALUE && y == -1)) return valueOf(x / y);
+		}
+		return normalize(toBigDecimal(a).divideToIntegralValue(toBigDecimal(b)));
+	}
+
+	/** Modulo (#), the result has the sign of the divisor: -7#3 is 2. @throws ArithmeticException dividing by 0 */
+	public static Number mod(Number a, Number b) {
+		checkDivisor(b);
+		if (isIntegral(a) && isIntegral(b)) {
+			long x = a.longValue(), y = b.longValue();
+			long r = x % y;
+			return valueOf((r != 0 && (r ^ y) < 0) ? r + y : r);
+		}
+		BigDecimal y = toBigDecimal(b), r = toBigDecimal(a).remainder(y, CONTEXT);
+		if (r.signum() != 0 && r.signum() != y.signum()) r = r.add(y, CONTEXT);
+		return normalize(r);
+	}
+
+	/** 
+	 * Exponentiation (**), exact for whole exponents, fractional ones go through Math.pow() and are 
+	 * rounded to the 15 significant digits a double holds.  0**0 is 0.
+	 * @throws ArithmeticException raising 0 to a negative power
+	 */
+	public static Number power(Number a, Number b) {
+		BigDecimal x = toBigDecimal(a), y = toBigDecimal(b);
+		if (x.signum() == 0) {
+			if (y.signum() < 0) throw new ArithmeticException("<DIVIDE> division by zero");
+			return ZERO;
+		}
+		if (y.signum() == 0 || (y.stripTrailingZeros().scale() <= 0 && y.abs().compareTo(MAX_EXPONENT) <= 0)) {
+			return normalize(x.pow(y.intValue(), CONTEXT));
+		}
+		double ret = Math.pow(x.doubleValue(), y.doubleValue());
+		if (Double.isNaN(ret) || Double.isInfinite(ret)) throw new ArithmeticException("<ILLEGAL VALUE> " + a + "**" + b);
+		return normalize(new BigDecimal(ret).round(DOUBLE_CONTEXT));
+	}
+
+	// strings ----------------------------------------------------------------
+
+	/**
+	 * Numeric interpretation of a string: the longest leading prefix that is a number (an optional sign,
+	 * digits with an optional decimal point and an optional exponent), the rest is ignored: "12 monkeys"
+	 * is 12, "1.50E2X" is 150 and "A1" is 0.  Digits past the 18th significant one are rounded off.
+	 *
+	 * One pass without allocating anything but the result, which is an Integer/Long for whole numbers
+	 * and a BigDecimal otherwise (see normalize()).
+	 */
+	public static Number parse(CharSequence str) {
+		int len = str.length(), i = 0;
+		boolean neg = false;
+		if (i < len && (str.charAt(i) == '-' || str.charAt(i) == '+')) {
+			neg = str.charAt(i++) == '-';
+		}
+
+		// the significant digits go in mant, exp is the power of 10 it is scaled by
+		long mant = 0;
+		int digits = 0, exp = 0, dropped = -1;
+		boolean any = false, point = false;
+		for (; i < len; i++) {
+			char c = str.charAt(i);
+			if (c == '.' && !point) {
+				point = true;
+				continue;
+			} else if (c < '0' || c > '9') {
+				break;
+			}
+			any = true;
+			if (mant == 0 && c == '0') {
+				if (point) exp--;
+			} else if (digits < 18) {
+				mant = mant * 10 + (c - '0');
+				digits++;
+				if (point) exp--;
+			} else {
+				if (dropped < 0) dropped = c - '0';
+				if (!point) exp++;
+			}
+		}
+		if (!any || mant == 0) return ZERO;
+
+		// exponent, only if there are digits after the E
+		if (i + 1 < len && (str.charAt(i) == 'E' || str.charAt(i) == 'e')) {
+			int j = i + 1;
+			boolean eneg = false;
+			if (str.charAt(j) == '-' || str.charAt(j) == '+') eneg = str.charAt(j++) == '-';
+			int e = 0;
+			for (; j < len && str.charAt(j) >= '0' && str.charAt(j) <= '9'; j++) {
+				if (e < 100000) e = e * 10 + (str.charAt(j) - '0');
+			}
+			if (j > i + 1 && str.charAt(j - 1) >= '0' && str.charAt(j - 1) <= '9') exp += eneg ? -e : e;
+		}
+
+		// round half up on the first digit that did not fit
+		if (dropped >= 5 && ++mant == 1000000000000000000L) {
+			mant /= 10;
+			exp++;
+		}
+		while (exp < 0 && mant % 10 == 0) {
+			mant /= 10;
+			exp++;
+		}
+		if (neg) mant = -mant;
+		if (exp == 0) return valueOf(mant);
+		if (exp > 0) {
+			if (exp < 19 && Math.abs(mant) <= Long.MAX_VALUE / TENS[exp]) return valueOf(mant * TENS[exp]);
+			while (mant % 10 == 0) {
+				mant /= 10;
+				exp++;
+			}
+		}
+		return BigDecimal.valueOf(mant, -exp);
+	}
+
+	/**
+	 * Is this string a number in canonic form (no leading/trailing zeros, no '+', no exponent, etc.),
+	 * ie is it the same string as the string form of its numeric interpretation?  Canonic numbers collate
+	 * as numbers when used as subscripts, everything else collates as a string.
+	 * Examples: 0, -1, 12, .5, -3.25 are canonic; 01, 1.0, +1, 1., -0, 1E3 are not, and neither are
+	 * numbers of more than 18 significant digits, since parse() rounds them.
+	 */
+	public static boolean isCanonic(CharSequence str) {
+		if (str == null) return false;
+		int len = str.length(), i = 0;
+		if (len == 0) return false;
+		char c = str.charAt(0);
+		if (len == 1) return c >= '0' && c <= '9';
+		if (c == '-') c = str.charAt(++i);
+
+		// integer part, no leading zeros, its trailing zeros are not significant
+		if (c == '0') return false;
+		int first = i, last = -1;
+		while (c >= '0' && c <= '9') {
+			if (c != '0') last = i;
+			if (++i == len) return last - first < 18;
+			c = str.charAt(i);
+		}
+
+		// fractional part, at least one digit and no trailing zeros
+		int point = i;
+		if (c != '.' || ++i == len || str.charAt(len - 1) == '0') return false;
+		if (point == first) {
+			while (str.charAt(i) == '0') i++;
+			first = i;
+		}
+		for (; i < len; i++) {
+			c = str.charAt(i);
+			if (c < '0' || c > '9') return false;
+		}
+		return len - first - ((first < point) ? 1 : 0) <= 18;
+	}
+
+	public static int compare(Number a, Number b) {
+		if (isIntegral(a) && isIntegral(b)) return Long.compare(a.longValue(), b.longValue());
+		return toBigDecimal(a).compareTo(toBigDecimal(b));
+	}
+
+	public static boolean isZero(Number a) {
+		return isIntegral(a) ? a.longValue() == 0 : toBigDecimal(a).signum() == 0;
+	}
+
+	/** Canonic form of the number: no exponent, leading or trailing zeros, ie -.5, 12, 1.25 */
+	public static String toString(Number n) {
+		if (isIntegral(n)) return Long.toString(n.longValue());
+		BigDecimal num = toBigDecimal(n).round(CONTEXT);
+		if (num.signum() == 0) return "0";
+		String ret = num.stripTrailingZeros().toPlainString();
+		if (ret.startsWith("0.")) return ret.substring(1);
+		if (ret.startsWith("-0.")) return "-" + ret.substring(2);
+		return ret;
+	}
+
+	/** Rounds to 18 significant digits, whole numbers that fit in a long become Integer/Long */
+	public static Number normalize(BigDecimal num) {
+		num = num.round(CONTEXT);
+		if (num.signum() == 0) return ZERO;
+		num = num.stripTrailingZeros();
+		if (num.scale() <= 0 && num.precision() - num.scale() <= 18) return valueOf(num.longValue());
+		return num;
+	}
+
+	/** Whole numbers as Integer/Long, anything else as a normalized BigDecimal */
+	public static Number normalize(Number n) {
+		if (n instanceof Integer || n instanceof Long) return n;
+		if (isIntegral(n)) return valueOf(n.longValue());
+		return normalize(toBigDecimal(n));
+	}
+
+	static BigDecimal toBigDecimal(Number n) {
+		if (n instanceof BigDecimal) return (BigDecimal) n;
+		if (isIntegral(n)) return BigDecimal.valueOf(n.longValue());
+		if (n instanceof Double) return BigDecimal.valueOf(n.doubleValue());
+		return new BigDecimal(n.toString());
+	}
+
+	private static Number valueOf(long l) {
+		return (l == (int) l) ? (Number) Integer.valueOf((int) l) : (Number) Long.valueOf(l);
+	}
+
+	private static void checkDivisor(Number b) {
+		if (isZero(b)) throw new ArithmeticException("<DIVIDE> division by zero");
+	}
+}
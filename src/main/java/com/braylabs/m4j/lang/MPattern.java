@@ -0,0 +1,415 @@
+package com.braylabs.m4j.lang;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.braylabs.m4j.lang.MVal.MatchOp;
+
+/**
+ * A compiled M pattern (the right side of the ? operator), ie 3N1"-"2N1"-"4N, 1.3A.AN or 1(1"Y",1"N").
+ *
+ * Each pattern atom is a repeat count (n, n.m, .m, n. or .) followed by pattern codes (ACELNPU, any
+ * case, several codes mean any of them), a quoted literal or an alternation of patterns in parentheses.
+ * The whole string has to match.
+ *
+ * The pattern is compiled once into a nondeterministic automaton that is run over the string one
+ * character at a time, tracking every state it can be in, so indefinite repeats like .E1"X" need no
+ * backtracking and matching is linear in the length of the string.  Large repeat counts (1000N) are
+ * counted loops, each state tracks how many times it went around them.  An instance is immutable
+ * and can be shared between processes.
+ */
+public final class MPattern {
+
+	private static final int MAX_CACHED = 1024;
+	/** Least recently used patterns are dropped first, access ordered so guard it with its monitor */
+	private static final Map<String, MPattern> CACHE = new LinkedHashMap<String, MPattern>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<String, MPattern> eldest) {
+			return size() > MAX_CACHED;
+		}
+	};
+
+	/** Pattern code mask of each Latin-1 character, others are computed as needed */
+	private static final int[] CODES = new int[256];
+	static {
+		for (char c=0; c < CODES.length; c++) CODES[c] = codes(c);
+	}
+
+	private final String pattern;
+	private final Node start;
+	private final int size;
+	/** nesting depth of counted loops, 0 if there are none */
+	private final int depth;
+
+	private MPattern(String pattern, Node start, int size, int depth) {
+		this.pattern = pattern;
+		this.start = start;
+		this.size = size;
+		this.depth = depth;
+	}
+
+	/** Compiled pattern for the text, compiled patterns are cached by their text. @throws IllegalArgumentException on a bad pattern */
+	public static MPattern compile(String pattern) {
+		MPattern ret;
+		synchronized (CACHE) {
+			ret = CACHE.get(pattern);
+		}
+		if (ret == null) {
+			ret = new Compiler(pattern).compile();
+			synchronized (CACHE) {
+				CACHE.put(pattern, ret);
+			}
+		}
+		return ret;
+	}
+
+	public boolean matches(CharSequence str) {
+		if (this.depth > 0) return matchesCounted(str);
+		
+		// the states the automaton is in before and after each character, seen[] stamps the states
+		// already added for a step, so no state is added twice and empty loops end
+		Node[] cur = new Node[size], next = new Node[size];
+		int[] seen = new int[size];
+		int ncur = add(cur, 0, start, seen, 1);
+		for (int i=0; i < str.length() && ncur > 0; i++) {
+			char c = str.charAt(i);
+			int mask = (c < CODES.length) ? CODES[c] : codes(c);
+			int nnext = 0;
+			for (int j=0; j < ncur; j++) {
+				Node n = cur[j];
+				if ((n.type == Node.CODES && (n.codes & mask) != 0) || (n.type == Node.CHAR && n.ch == c)) {
+					nnext = add(next, nnext, n.out, seen, i + 2);
+				}
+			}
+			Node[] tmp = cur;
+			cur = next;
+			next = tmp;
+			ncur = nnext;
+		}
+		for (int j=0; j < ncur; j++) {
+			if (cur[j].type == Node.MATCH) return true;
+		}
+		return false;
+	}
+
+	/** matches() for patterns with counted loops, where a state is a node and the counts of the loops it is in */
+	private boolean matchesCounted(CharSequence str) {
+		List<State> cur = new ArrayList<>(), next = new ArrayList<>();
+		Set<State> seen = new HashSet<>();
+		add(cur, seen, this.start, new int[this.depth]);
+		for (int i=0; i < str.length() && !cur.isEmpty(); i++) {
+			char c = str.charAt(i);
+			int mask = (c < CODES.length) ? CODES[c] : codes(c);
+			next.clear();
+			seen.clear();
+			for (State s : cur) {
+				Node n = s.node;
+				if ((n.type == Node.CODES && (n.codes & mask) != 0) || (n.type == Node.CHAR && n.ch == c)) {
+					add(next, seen, n.out, s.counts);
+				}
+			}
+			List<State> tmp = cur;
+			cur = next;
+			next = tmp;
+		}
+		for (State s : cur) {
+			if (s.node.type == Node.MATCH) return true;
+		}
+		return false;
+	}
+
+	@Override
+	public String toString() {
+		return this.pattern;
+	}
+
+	/** adds the state and everything reachable from it without consuming a character */
+	private static int add(Node[] list, int count, Node n, int[] seen, int step) {
+		while (seen[n.id] != step) {
+			seen[n.id] = step;
+			if (n.type != Node.SPLIT) {
+				list[count++] = n;
+				break;
+			}
+			count = add(list, count, n.out, seen, step);
+			n = n.alt;
+		}
+		return count;
+	}
+
+	/** add() for matchesCounted(), entering, going around and leaving counted loops as it goes */
+	private static void add(List<State> list, Set<State> seen, Node n, int[] counts) {
+		while (true) {
+			State state = new State(n, counts);
+			if (!seen.add(state)) return;
+			switch (n.type) {
+				case Node.SPLIT:
+					add(list, seen, n.out, counts);
+					n = n.alt;
+					break;
+				case Node.ENTER:
+					counts = count(counts, n.level, 0);
+					n = n.out;
+					break;
+				case Node.COUNT:
+					int count = counts[n.level];
+					if (n.max == Compiler.INFINITE || count < n.max) add(list, seen, n.out, counts);
+					if (count < n.min) return;
+					// the count is not needed after the loop, dropping it keeps equal states equal
+					counts = count(counts, n.level, 0);
+					n = n.alt;
+					break;
+				case Node.INCR:
+					// an indefinite loop only needs to count up to its min
+					count = counts[n.level] + 1;
+					if (n.out.max == Compiler.INFINITE) count = Math.min(count, n.out.min);
+					counts = count(counts, n.level, count);
+					n = n.out;
+					break;
+				default:
+					list.add(state);
+					return;
+			}
+		}
+	}
+
+	private static int[] count(int[] counts, int level, int count) {
+		if (counts[level] == count) return counts;
+		int[] ret = counts.clone();
+		ret[level] = count;
+		return ret;
+	}
+
+	private static int codes(char c) {
+		int ret = 0;
+		for (MatchOp op : MatchOp.values()) {
+			if (op.matches(c)) ret |= 1 << op.ordinal();
+		}
+		return ret;
+	}
+
+	private static final class Node {
+		static final int CODES = 0, CHAR = 1, SPLIT = 2, MATCH = 3, ENTER = 4, COUNT = 5, INCR = 6;
+
+		final int id, type;
+		int codes;
+		char ch;
+		Node out, alt;
+		/** counted loops: the loop the node belongs to (ENTER, COUNT, INCR) and its bounds (COUNT) */
+		int level, min, max;
+
+		Node(int id, int type) {
+			this.id = id;
+			this.type = type;
+		}
+	}
+
+	/**
+	 * Parses the pattern into atoms and builds the automaton back to front, so each piece is built
+	 * knowing the state that follows it.  A repeated atom gets a copy of its states per repetition,
+	 * up to MAX_UNROLLED of them, larger counts go around a counted loop.
+	 */
+	private static final class Compiler {
+		private static final int INFINITE = -1;
+		private static final int MAX_UNROLLED = 16;
+
+		private final String pattern;
+		private int pos, size, depth, maxDepth;
+
+		Compiler(String pattern) {
+			this.pattern = pattern;
+		}
+
+		MPattern compile() {
+			List<Atom> atoms = parse(false);
+			if (pos < pattern.length() || atoms.isEmpty()) throw error();
+			Node start = build(atoms, node(Node.MATCH));
+			return new MPattern(pattern, start, size, maxDepth);
+		}
+
+		/** atoms up to the end of the pattern, or to the ',' or ')' that ends an alternative */
+		private List<Atom> parse(boolean alternative) {
+			List<Atom> ret = new ArrayList<>();
+			while (pos < pattern.length()) {
+				char c = pattern.charAt(pos);
+				if (alternative && (c == ',' || c == ')')) break;
+
+				// repeat count
+				Atom atom = new Atom();
+				int min = number();
+				if (pos < pattern.length() && pattern.charAt(pos) == '.') {
+					pos++;
+					atom.min = Math.max(min, 0);
+					atom.max = number();
+					if (atom.max != INFINITE && atom.max < atom.min) throw error();
+				} else if (min < 0) {
+					throw error();
+				} else {
+					atom.min = atom.max = min;
+				}
+
+				if (pos >= pattern.length()) throw error();
+				c = pattern.charAt(pos);
+				if (c == '"') {
+					atom.literal = literal();
+				} else if (c == '(') {
+					pos++;
+					atom.alternatives = new ArrayList<>();
+					for (char end = ','; end == ','; pos++) {
+						List<Atom> alt = parse(true);
+						if (alt.isEmpty() || pos >= pattern.length()) throw error();
+						atom.alternatives.add(alt);
+						end = pattern.charAt(pos);
+					}
+				} else {
+					for (; pos < pattern.length() && "ACELNPUacelnpu".indexOf(pattern.charAt(pos)) >= 0; pos++) {
+						atom.codes |= 1 << MatchOp.valueOf(String.valueOf(Character.toUpperCase(pattern.charAt(pos)))).ordinal();
+					}
+					if (atom.codes == 0) throw error();
+				}
+				ret.add(atom);
+			}
+			return ret;
+		}
+
+		/** digits at pos, or INFINITE if there are none */
+		private int number() {
+			int ret = INFINITE;
+			for (; pos < pattern.length() && Character.isDigit(pattern.charAt(pos)); pos++) {
+				ret = Math.max(ret, 0) * 10 + (pattern.charAt(pos) - '0');
+			}
+			return ret;
+		}
+
+		/** quoted string at pos, "" is a quote */
+		private String literal() {
+			StringBuilder sb = new StringBuilder();
+			for (pos++; pos < pattern.length(); pos++) {
+				char c = pattern.charAt(pos);
+				if (c == '"') {
+					if (pos + 1 < pattern.length() && pattern.charAt(pos + 1) == '"') {
+						pos++;
+					} else {
+						pos++;
+						return sb.toString();
+					}
+				}
+				sb.append(c);
+			}
+			throw error();
+		}
+
+		private Node build(List<Atom> atoms, Node next) {
+			for (int i=atoms.size()-1; i >= 0; i--) {
+				next = build(atoms.get(i), next);
+			}
+			return next;
+		}
+
+		private Node build(Atom atom, Node next) {
+			if (Math.max(atom.min, atom.max) > MAX_UNROLLED) return counted(atom, next);
+			Node cur = next;
+			if (atom.max == INFINITE) {
+				// loop back to a split that either matches the atom again or goes on
+				Node loop = node(Node.SPLIT);
+				loop.out = body(atom, loop);
+				loop.alt = next;
+				cur = loop;
+			} else {
+				// each optional repetition can match or go on
+				for (int i=atom.min; i < atom.max; i++) {
+					Node split = node(Node.SPLIT);
+					split.out = body(atom, cur);
+					split.alt = next;
+					cur = split;
+				}
+			}
+			for (int i=0; i < atom.min; i++) {
+				cur = body(atom, cur);
+			}
+			return cur;
+		}
+
+		/** the atom in a loop whose count (min to max times) is kept with each state when matching */
+		private Node counted(Atom atom, Node next) {
+			Node enter = node(Node.ENTER), loop = node(Node.COUNT), incr = node(Node.INCR);
+			enter.level = loop.level = incr.level = depth;
+			loop.min = atom.min;
+			loop.max = atom.max;
+			maxDepth = Math.max(maxDepth, ++depth);
+			loop.out = body(atom, incr);
+			depth--;
+			loop.alt = next;
+			incr.out = loop;
+			enter.out = loop;
+			return enter;
+		}
+
+		/** one repetition of the atom followed by next */
+		private Node body(Atom atom, Node next) {
+			if (atom.literal != null) {
+				for (int i=atom.literal.length()-1; i >= 0; i--) {
+					Node n = node(Node.CHAR);
+					n.ch = atom.literal.charAt(i);
+					n.out = next;
+					next = n;
+				}
+				return next;
+			} else if (atom.alternatives != null) {
+				Node ret = build(atom.alternatives.get(atom.alternatives.size()-1), next);
+				for (int i=atom.alternatives.size()-2; i >= 0; i--) {
+					Node split = node(Node.SPLIT);
+					split.out = build(atom.alternatives.get(i), next);
+					split.alt = ret;
+					ret = split;
+				}
+				return ret;
+			}
+			Node n = node(Node.CODES);
+			n.codes = atom.codes;
+			n.out = next;
+			return n;
+		}
+
+		private Node node(int type) {
+			return new Node(size++, type);
+		}
+
+		private IllegalArgumentException error() {
+			return new IllegalArgumentException("<SYNTAX> Invalid pattern: " + pattern);
+		}
+	}
+
+	/** A node and the counts of the loops it is in, see matchesCounted() */
+	private static final class State {
+		final Node node;
+		final int[] counts;
+
+		State(Node node, int[] counts) {
+			this.node = node;
+			this.counts = counts;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			State o = (State) obj;
+			return this.node == o.node && Arrays.equals(this.counts, o.counts);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.node.id * 31 + Arrays.hashCode(this.counts);
+		}
+	}
+
+	private static final class Atom {
+		int min, max, codes;
+		String literal;
+		List<List<Atom>> alternatives;
+	}
+}
@@ -8,7 +8,6 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
-import java.util.StringTokenizer;
 
 import org.joda.time.DateTime;
 import org.joda.time.Duration;
@@ -18,7 +17,8 @@ import org.joda.time.LocalDateTime;
 import org.joda.time.PeriodType;
 
 import com.braylabs.m4j.global.MVar;
-import com.braylabs.m4j.global.MVar.MVarKey;
+import com.braylabs.m4j.global.MVar.MVarCursor;
+import com.braylabs.m4j.lang.M4JRuntime.M4JProcess;
 import com.braylabs.m4j.lang.RoutineProxy.JavaClassProxy.M4JEntryPoint;
 import com.braylabs.m4j.lang.RoutineProxy.JavaClassProxy.M4JRoutine;
 import com.braylabs.m4j.parser.MParserUtils;
@@ -121,27 +121,13 @@ public class MUMPS {
 	}
 	
 	/**
-	 * TODO: Make this an atomic increment by using a lock on the variable?
-	 * TODO: is this properly preserving type (integer, double, string, etc.) should it?
+	 * Atomic per node (see MVar.increment()), so concurrent processes can use it to generate IDs.
+	 * Whole results are returned as integers, anything else as a decimal.
 	 */
 	@M4JEntryPoint(name={"$I","$INCREMENT"})
 	public static final Number $INCREMENT(MVar variable, Object num) {
-		Number val = (variable.isDefined()) ? MParserUtils.evalNumericValue(variable.val()) : 0;
 		Number inc = (num == null) ? 1 : MParserUtils.evalNumericValue(num);
-		
-		Number ret = null;
-		double d = val.doubleValue() + inc.doubleValue();
-		int i = val.intValue() + inc.intValue();
-		if (i == d) {
-			ret = new Integer(i);
-		} else {
-			ret = new Double(d);
-		}
-		
-		// update the variable and return
-		variable.set(ret);
-		
-		return ret;
+		return variable.increment(inc);
 	}
 	
 	// $DATA function ---------------------------------------------------------
@@ -199,56 +185,98 @@ public class MUMPS {
 	}
 	
 	// $ORDER function --------------------------------------------------------
+	
+	/** cursors kept per process by subscript level, so nested loops each continue their own */
+	private static final String CURSORS = "$ORDER^SYS";
+	private static final int CURSOR_LEVELS = 8;
 
-	@M4JEntryPoint(name={"$O","$ORDER"})
 	public static final Object $ORDER(MVar variable) {
-		return $ORDER(variable, 1, null);
+		return $ORDER(null, variable, 1, null);
 	}
 
-	@M4JEntryPoint(name={"$O","$ORDER"})
 	public static final Object $ORDER(MVar variable, int direction) {
-		return $ORDER(variable, direction, null);
+		return $ORDER(null, variable, direction, null);
 	}
 	
-	@M4JEntryPoint(name={"$O","$ORDER"})
 	public static final Object $ORDER(MVar variable, int direction, MVar target) {
-		MVarKey ret = null;
-		if (direction == 1) {
-			ret = variable.nextKey();
-		} else if (direction == -1) {
-			ret = variable.prevKey();
-		} else {
-			throw new IllegalArgumentException("Only 1 and -1 are allowed for direction value");
-		}
+		return $ORDER(null, variable, direction, target);
+	}
+
+	@M4JEntryPoint(name={"$O","$ORDER"})
+	public static final Object $ORDER(M4JProcess proc, MVar variable) {
+		return $ORDER(proc, variable, 1, null);
+	}
+
+	@M4JEntryPoint(name={"$O","$ORDER"})
+	public static final Object $ORDER(M4JProcess proc, MVar variable, int direction) {
+		return $ORDER(proc, variable, direction, null);
+	}
+	
+	/** Continues the processes cursor when called with the subscript it returned last time (see MVarCursor) */
+	@M4JEntryPoint(name={"$O","$ORDER"})
+	public static final Object $ORDER(M4JProcess proc, MVar variable, int direction, MVar target) {
+		checkDirection(direction);
+		int size = variable.getPath().size();
+		if (size == 0) return null;
 		
-		if (target != null && ret != null) target.set(ret.getLastKey());
-		if (ret == null) return null;
-		return ret.getLastKey();
+		MVarCursor cursor = cursor(proc, size, variable, direction == -1, false);
+		Object ret = cursor.next() ? cursor.getKey().getLastKey() : null;
+		if (target != null && ret != null) target.set(ret);
+		return ret;
 	}
 	
-	@M4JEntryPoint(name={"$Q", "$QUERY"})
 	public static final Object $QUERY(MVar reference) {
-		return $QUERY(reference, 1, null);
+		return $QUERY(null, reference, 1, null);
 	}
-	@M4JEntryPoint(name={"$Q", "$QUERY"})
+	
 	public static final Object $QUERY(MVar reference, int direction) {
-		return $QUERY(reference, direction, null);
+		return $QUERY(null, reference, direction, null);
 	}
 	
-	/** TODO: this is not complete */
-	@M4JEntryPoint(name={"$Q", "$QUERY"})
 	public static final Object $QUERY(MVar reference, int direction, MVar target) {
-		MVarKey key = null;
-		if (direction == 1) {
-			key = reference.nextKey();
-		} else if (direction == -1) {
-			key = reference.prevKey();
-		} else {
+		return $QUERY(null, reference, direction, target);
+	}
+	
+	@M4JEntryPoint(name={"$Q", "$QUERY"})
+	public static final Object $QUERY(M4JProcess proc, MVar reference) {
+		return $QUERY(proc, reference, 1, null);
+	}
+	
+	@M4JEntryPoint(name={"$Q", "$QUERY"})
+	public static final Object $QUERY(M4JProcess proc, MVar reference, int direction) {
+		return $QUERY(proc, reference, direction, null);
+	}
+	
+	/** The reference of the next (or previous) node in depth-first order, null after the last one */
+	@M4JEntryPoint(name={"$Q", "$QUERY"})
+	public static final Object $QUERY(M4JProcess proc, MVar reference, int direction, MVar target) {
+		checkDirection(direction);
+		MVarCursor cursor = cursor(proc, 0, reference, direction == -1, true);
+		if (!cursor.next()) return null;
+		return cursor.getNode().getFullName();
+	}
+	
+	private static void checkDirection(int direction) {
+		if (direction != 1 && direction != -1) {
 			throw new IllegalArgumentException("Only 1 and -1 are allowed for direction value");
 		}
+	}
+	
+	/** The processes cursor for the level if it is at node, otherwise a new one (which replaces it) */
+	private static MVarCursor cursor(M4JProcess proc, int level, MVar node, boolean reverse, boolean query) {
+		MVarCursor[] cursors = null;
+		if (proc != null) {
+			cursors = proc.getProcessCache(CURSORS, MVarCursor[].class);
+			if (cursors == null) cursors = proc.setProcessCache(CURSORS, new MVarCursor[CURSOR_LEVELS]);
+		}
 		
-		MVar ret = reference.get(key);
-		return ret.getFullName();
+		int idx = level % CURSOR_LEVELS;
+		MVarCursor ret = (cursors == null) ? null : cursors[idx];
+		if (ret == null || !ret.isAt(node, reverse, query)) {
+			ret = query ? node.queryCursor(reverse) : node.cursor(reverse);
+			if (cursors != null) cursors[idx] = ret;
+		}
+		return ret;
 	}
 	
 	// $ASCII function --------------------------------------------------------
@@ -324,63 +352,123 @@ public class MUMPS {
 	}
 	
 	// $PIECE function --------------------------------------------------------
-	@M4JEntryPoint(name={"$P","$PIECE"})
+	private static final String PIECES = "$PIECE^SYS";
+	
 	public static final String $PIECE(String str, String delim) {
-		return $PIECE(str, delim, 1, 1);
+		return $PIECE(null, str, delim, 1, 1);
 	}
 
-	@M4JEntryPoint(name={"$P","$PIECE"})
 	public static final String $PIECE(String str, String delim, int first) {
-		return $PIECE(str, delim, first, first);
+		return $PIECE(null, str, delim, first, first);
 	}
 
-	@M4JEntryPoint(name={"$P","$PIECE"})
 	public static final String $PIECE(String str, String delim, int first, int last) {
-		StringTokenizer st = new StringTokenizer(str, delim);
-		String ret = "";
-		int count = 0;
-		while (st.hasMoreTokens()) {
-			count++;
-			if (count > last) break;
-			String token = st.nextToken();
-			
-			if (count >= first) {
-				ret += token;
-			}
-			if (count >= first && count < last && last > first && st.hasMoreTokens()) {
-				ret += delim;
-			}
-		}
-		return ret;
+		return $PIECE(null, str, delim, first, last);
+	}
+	
+	@M4JEntryPoint(name={"$P","$PIECE"})
+	public static final String $PIECE(M4JProcess proc, String str, String delim) {
+		return $PIECE(proc, str, delim, 1, 1);
+	}
+
+	@M4JEntryPoint(name={"$P","$PIECE"})
+	public static final String $PIECE(M4JProcess proc, String str, String delim, int first) {
+		return $PIECE(proc, str, delim, first, first);
+	}
+
+	/** Pieces first to last (with the delimiters between them), using the processes PieceIndex */
+	@M4JEntryPoint(name={"$P","$PIECE"})
+	public static final String $PIECE(M4JProcess proc, String str, String delim, int first, int last) {
+		if (str == null || delim == null || delim.isEmpty() || last < 1 || last < first) return "";
+		PieceIndex idx = PieceIndex.of(proc, str, delim);
+		if (first < 1) first = 1;
+		if (!idx.scan(first)) return "";
+		int start = idx.start(first);
+		return str.substring(start, idx.scan(last) ? idx.end(last) : str.length());
 	}
 	
 	/** 
 	 * This is the version of $P that can be used in SET commands:
 	 * <pre>S FOO="A,B,C",$P(FOO,",",2)="Z" => A,Z,C</pre>
-	 * TODO: Implment the TO parameter as well
 	 */
 	public static final String $PIECE(String str, String delim, int from, String val) {
-		if (from < 1) return str;
+		return $PIECE(null, str, delim, from, from, val);
+	}
+	
+	/** 
+	 * SET $P(FOO,delim,first,last)=val, pieces first to last are replaced by val, delimiters are 
+	 * appended if there are fewer pieces than first.
+	 */
+	public static final String $PIECE(M4JProcess proc, String str, String delim, int first, int last, String val) {
+		if (str == null) str = "";
+		if (delim == null || delim.isEmpty() || last < 1 || last < first) return str;
+		PieceIndex idx = PieceIndex.of(proc, str, delim);
+		if (first < 1) first = 1;
 		
-		// find the location of the nth delimiter
-		StringBuffer sb = new StringBuffer(str);
-		int count=1, idx = sb.indexOf(delim);
-		while (idx > -1 && ++count < from) {
-			idx = sb.indexOf(delim, idx+1);
+		// not that many pieces, add empty ones
+		if (!idx.scan(first)) {
+			int missing = first - idx.count;
+			StringBuilder sb = new StringBuilder(str.length() + missing * delim.length() + val.length()).append(str);
+			for (int i=0; i < missing; i++) sb.append(delim);
+			return sb.append(val).toString();
 		}
 		
-		// then find the index of where the token ends
-		int nextIdx = (idx == -1) ? -1 : sb.indexOf(delim, idx+1);
+		int start = idx.start(first), end = idx.scan(last) ? idx.end(last) : str.length();
+		return new StringBuilder(str.length() - (end - start) + val.length())
+				.append(str, 0, start).append(val).append(str, end, str.length()).toString();
+	}
+	
+	/**
+	 * Where the pieces of a string are: the offsets of its delimiters, found with indexOf() as far as they
+	 * have been asked for.  A process keeps the one of the last string/delimiter it looked at, so
+	 * $P(X,"^",1) ... $P(X,"^",30) scans X once.
+	 */
+	static final class PieceIndex {
+		private String str, delim;
+		private int[] ends = new int[16];
+		private int count;
+		private boolean done;
 		
-		// if no start delim was found then treat the whole string as the first instance
-		if (idx == -1 && from == 1) return val;
-
-		// if no start delim was found, append some
-		for (int i=count; i < from; i++) sb.append(delim);
+		/** The processes index if it is for str/delim, otherwise resets it (a new index without a process) */
+		static PieceIndex of(M4JProcess proc, String str, String delim) {
+			PieceIndex ret = (proc == null) ? null : proc.getProcessCache(PIECES, PieceIndex.class);
+			if (ret == null) {
+				ret = new PieceIndex();
+				if (proc != null) proc.setProcessCache(PIECES, ret);
+			} else if (ret.str.equals(str) && ret.delim.equals(delim)) {
+				return ret;
+			}
+			ret.str = str;
+			ret.delim = delim;
+			ret.count = 0;
+			ret.done = false;
+			return ret;
+		}
 		
-		// replace the value with the new value, update the variable and return
-		sb.replace((idx==-1) ? sb.length() : idx+1, (nextIdx==-1) ? sb.length() : nextIdx, val);
-		return sb.toString();
+		/** Finds the end of pieces up to n, @return false if there are fewer than n pieces */
+		boolean scan(int n) {
+			while (this.count < n && !this.done) {
+				int from = (this.count == 0) ? 0 : this.ends[this.count-1] + this.delim.length();
+				int idx = this.str.indexOf(this.delim, from);
+				if (idx < 0) {
+					idx = this.str.length();
+					this.done = true;
+				}
+				if (this.count == this.ends.length) this.ends = Arrays.copyOf(this.ends, this.count * 2);
+				this.ends[this.count++] = idx;
+			}
+			return n <= this.count;
+		}
+		
+		/** Offset of piece n (after scan(n)) */
+		int start(int n) {
+			return (n == 1) ? 0 : this.ends[n-2] + this.delim.length();
+		}
+		
+		/** Offset just past piece n (after scan(n)) */
+		int end(int n) {
+			return this.ends[n-1];
+		}
 	}
 	
 	// $Random function ------------------------------------------------------- 
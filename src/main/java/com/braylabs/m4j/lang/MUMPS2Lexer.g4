@@ -20,6 +20,7 @@ COLIN: ':';
 DD: '$$';
 D: '$';
 UP: '^';
+PPG: '^||'; // process-private global
 EXCL: '!';
 AT1: '@' -> type(AT);
 DOT: '.';
@@ -53,3 +54,14 @@ PAT_INDR: '@' ->popMode,type(AT);
 PAT_INT: [0-9]+;
 PAT_LITERAL : '"' ('""'|~'"')* '"';
 PAT_CODES : ([Aa] | [Cc] | [Ee] | [Ll] | [Nn] | [Pp] | [Uu])+;
+PAT_LP: '(' -> pushMode(PATTERN_ALT);
+
+// alternation inside a pattern, X?1(1"Y",1"N"): ',' and ')' do not end the pattern here
+mode PATTERN_ALT;
+PAT_RP: ')' -> popMode;
+PAT_COMMA: ',';
+PAT_ALT_LP: '(' -> type(PAT_LP), pushMode(PATTERN_ALT);
+PAT_ALT_DOT: '.' -> type(PAT_DOT);
+PAT_ALT_INT: [0-9]+ -> type(PAT_INT);
+PAT_ALT_LITERAL : '"' ('""'|~'"')* '"' -> type(PAT_LITERAL);
+PAT_ALT_CODES : ([Aa] | [Cc] | [Ee] | [Ll] | [Nn] | [Pp] | [Uu])+ -> type(PAT_CODES);
@@ -38,7 +38,7 @@ expr
 	| AT var (AT LP args? RP)? #ExprIndrVar
 	| OPER expr     #ExprUnary
 	| expr OPER expr #ExprBinary
-	| expr (MATCH | NOT_MATCH) exprPatternItem+ #ExprMatch
+	| expr (MATCH | NOT_MATCH) matchPattern #ExprMatch
 	| LP expr RP #ExprGroup
 	| LP expr (COMMA expr)* RP #ExprList // for S (A,B,C)=1 style commands
 	| lineRef cmdPostCond?    #ExprLineRef
@@ -56,8 +56,8 @@ func: flags='$' name=ID LP args? RP;
 
 // variable reference (global or local) or special system variables
 var
-	: flags=(DOT | '^')? ID LP args RP // variable reference (local or global) w/ subscripts
-	| flags=(DOT | '^')? ID            // variable reference (local or global) wo/ subscripts
+	: flags=(DOT | '^' | '^||')? ID LP args RP // variable reference (local, global or process-private global) w/ subscripts
+	| flags=(DOT | '^' | '^||')? ID            // variable reference (local, global or process-private global) wo/ subscripts
 	| flags='^' LP args RP             // naked global reference
 	| flags='$' ID  // special variable ($H, etc.)
 ;
@@ -75,12 +75,19 @@ args
 	| expr ':' expr (COMMA expr ':' expr)* // GO style args
 ;
 
+// pattern of the ? operator, compiled the first time it is evaluated (see MPattern)
+matchPattern locals [MPattern compiled]: exprPatternItem+;
+
 exprPatternItem
-	: PAT_INT (PAT_CODES | PAT_LITERAL)      // X?1"FOO"
-	| PAT_INT DOT (PAT_CODES | PAT_LITERAL)  // X?1."F"
-	| PAT_DOT (PAT_CODES | PAT_LITERAL)      // X?.N
-	| PAT_DOT PAT_INT (PAT_CODES | PAT_LITERAL)   // X?.1"-" 
+	: PAT_INT patternAtom                 // X?1"FOO"
+	| PAT_INT PAT_DOT PAT_INT? patternAtom // X?1."F", X?1.3N
+	| PAT_DOT PAT_INT? patternAtom         // X?.N, X?.1"-"
 	| PAT_INT // W ?10,"INDENTED WRITE"
 	| AT expr // pattern indirection (S zipPat="5N1""-""4N"	I zip'?@zipPat W "invalid zip")
 ;
+patternAtom
+	: PAT_CODES
+	| PAT_LITERAL
+	| PAT_LP exprPatternItem+ (PAT_COMMA exprPatternItem+)* PAT_RP // alternation: X?1(1"Y",1"N")
+;
 
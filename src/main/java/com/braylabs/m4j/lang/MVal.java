@@ -1,5 +1,6 @@
 package com.braylabs.m4j.lang;
 
+import java.math.BigDecimal;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -11,8 +12,20 @@ public class MVal {
 	
 	public static Map<String,BinaryOp> BINARY_OPS = new HashMap<>();
 	public static Map<String,UnaryOp> UNARY_OPS = new HashMap<>();
-	public static MVal TRUE = new MVal(1);
-	public static MVal FALSE = new MVal(0);
+	
+	// values are immutable, so the common ones are shared (loop counters, flags, $LENGTH, etc.)
+	private static final int SMALL_MIN = -128, SMALL_MAX = 1024;
+	private static final MVal[] SMALL = new MVal[SMALL_MAX - SMALL_MIN + 1];
+	static {
+		for (int i=SMALL_MIN; i <= SMALL_MAX; i++) {
+			SMALL[i - SMALL_MIN] = new MVal(Integer.valueOf(i));
+		}
+	}
+	public static final MVal EMPTY = new MVal("");
+	public static MVal TRUE = SMALL[1 - SMALL_MIN];
+	public static MVal FALSE = SMALL[0 - SMALL_MIN];
+	
+	// the numeric and string forms are computed on first use, most values only ever need one of them
 	private Number numVal;
 	private String strVal;
 	private Object objVal;
@@ -31,70 +44,91 @@ public class MVal {
 	public MVal(Object obj) {
 		if (obj == null) obj = "";
 		objVal = obj;
-		numVal = MParserUtils.evalNumericValue(obj);
-		strVal = obj.toString();
+		if (obj instanceof String) {
+			strVal = (String) obj;
+		} else if (obj instanceof Number) {
+			numVal = (Number) obj;
+		}
+	}
+	
+	private Number num() {
+		if (numVal == null) numVal = MParserUtils.evalNumericValue(objVal);
+		return numVal;
+	}
+	
+	private String str() {
+		if (strVal == null) strVal = (objVal instanceof Number) ? MNumber.toString((Number) objVal) : objVal.toString();
+		return strVal;
+	}
+	
+	/** @return the shared value for small integers, a new one otherwise */
+	private static MVal valueOf(int val) {
+		if (val >= SMALL_MIN && val <= SMALL_MAX) return SMALL[val - SMALL_MIN];
+		return new MVal(Integer.valueOf(val));
+	}
+	
+	private static MVal valueOf(boolean val) {
+		return val ? TRUE : FALSE;
+	}
+	
+	/** Result of arithmetic (see MNumber), decimals are kept as their canonic string so that is what gets stored */
+	private static MVal valueOf(Number num) {
+		if (num instanceof Integer) return valueOf(num.intValue());
+		MVal ret = new MVal(num);
+		if (num instanceof BigDecimal) ret.objVal = ret.str();
+		return ret;
 	}
 	
 	public MVal apply(UnaryOp op) {
 		switch(op) {
 			// string to number
-			case POS: return new MVal(this.numVal);
-			case NEG: return new MVal(this.numVal.intValue()*-1);
-			case NOT: return new MVal((this.numVal.equals(0)) ? 1 : 0);
+			case POS: return valueOf(MNumber.normalize(num()));
+			case NEG: return valueOf(MNumber.negate(num()));
+			case NOT: return valueOf(MNumber.isZero(num()));
 			default:
 				throw new RuntimeException("Operator not implemented: "  + op);
 		}
 	}
 	
 	public MVal apply(BinaryOp op, MVal val) {
-		Double numval = 0d, n1 = this.numVal.doubleValue(), n2 = val.numVal.doubleValue();
-		String strval = null;
+		// string operators, no need for the numeric values
+		switch (op) {
+			case CONCAT: return new MVal(this.str().concat(val.str()));
+			case CONTAINS: return valueOf(this.str().contains(val.str()));
+			case NOT_CONTAINS: return valueOf(!this.str().contains(val.str()));
+			
+			case MATCH: return valueOf(matches(val));
+			case NOT_MATCH: return valueOf(!matches(val));
+			
+			// If the two operands are of different types, both operands are converted to strings 
+			// and those strings are compared.
+			case EQ: return valueOf(this.equals(val));
+			default: break;
+		}
 		
+		Number n1 = this.num(), n2 = val.num();
 		switch (op) {
 			// Arithmetic operators
-			case ADD: numval = n1 + n2; break;
-			case SUB: numval = n1 - n2; break;
-			case MULT: numval = n1 * n2; break;
-			case DIV: numval = n1 / n2; break;
-			case INT_DIV: numval = Math.floor(n1 / n2); break;
-			case MOD: numval = n1 % n2; break;
+			case ADD: return valueOf(MNumber.add(n1, n2));
+			case SUB: return valueOf(MNumber.subtract(n1, n2));
+			case MULT: return valueOf(MNumber.multiply(n1, n2));
+			case DIV: return valueOf(MNumber.divide(n1, n2));
+			case INT_DIV: return valueOf(MNumber.intDivide(n1, n2));
+			case MOD: return valueOf(MNumber.mod(n1, n2));
 			// TODO: 0**$DOUBLE(0) is 1 not 0 (the regular Math.pow() response)
-			case EXP: numval = (n1==0 && n2 == 0) ? 0 : Math.pow(n1, n2); break;
+			case EXP: return valueOf(MNumber.power(n1, n2));
 			
 			// logical comparison
-			case GT: numval = (n1 > n2) ? 1d : 0d; break;
+			case GT: return valueOf(MNumber.compare(n1, n2) > 0);
 			case GTE: 
-			case NLT: numval = (n1 >= n2) ? 1d : 0d; break;
-			case LT: numval = (n1 < n2) ? 1d : 0d; break;
+			case NLT: return valueOf(MNumber.compare(n1, n2) >= 0);
+			case LT: return valueOf(MNumber.compare(n1, n2) < 0);
 			case LTE: 
-			case NGT: numval = (n1 <= n2) ? 1d : 0d; break;
-			
-			// If the two operands are of different types, both operands are converted to strings 
-			// and those strings are compared.
-			case EQ: numval = (this.equals(val)) ? 1d : 0d; break;
-			case NEQ: numval = (!n1.equals(n2)) ? 1d : 0d; break;
-
-			// string operators
-			case CONCAT: strval = this.strVal + val.strVal; break; 
-			case CONTAINS: numval = (this.strVal.contains(val.strVal)) ? 1d : 0d; break;
-			case NOT_CONTAINS: numval = (!this.strVal.contains(val.strVal)) ? 1d : 0d; break;
-			
-			case MATCH: numval = matches(val) ? 1d : 0d; break;
-			case NOT_MATCH: numval = !matches(val) ? 1d : 0d; break;
+			case NGT: return valueOf(MNumber.compare(n1, n2) <= 0);
+			case NEQ: return valueOf(MNumber.compare(n1, n2) != 0);
 			
 			default:
 				throw new RuntimeException("Operator not implemented: "  + op);
-			
-		}
-		
-		// if string return value
-		if (strval != null) return new MVal(strval);
-		
-		// if floating point but with no decimal, return integer
-		if (numval % 1 == 0) {
-			return new MVal(numval.intValue());
-		} else {
-			return new MVal(numval);
 		}
 	}
 	
@@ -114,32 +148,15 @@ public class MVal {
 		// validate
 		if (offset < 0 || repeat == 0) return false;
 		
+		String strVal = str();
 		for (int i=0; i < repeat; i++) {
 			if (offset + i >= strVal.length()) return false;
 			char c = strVal.charAt(offset + i);
 			
 			boolean val = false;
 			for (int j=0; j < codes.length; j++) {
-				MatchOp code = codes[j];
-				if (code == MatchOp.A && Character.isAlphabetic(c)) {
-					val = true; break; // alpha
-				} else if (code == MatchOp.C && ((c >= 0 && c <= 31) || (c >= 127 && c <= 159))) {
-					val = true; break; // control character
-				} else if (code == MatchOp.L && Character.isLowerCase(c)) {
-					val = true; break; // lowercase
-				} else if (code == MatchOp.U && Character.isUpperCase(c)) {
-					val = true; break; // uppercase
-				} else if (code == MatchOp.N && Character.isDigit(c)) {
-					val = true; break; // numeric digit
-				} else if (code == MatchOp.E) {
-					val = true; break; // any characters
-				} else if (code == MatchOp.P && (
-						(c >= 32 && c <= 47) || (c >= 58 && c <= 64) ||
-						(c >= 91 && c <= 96) || (c >= 123 && c <= 126) ||
-						(c >= 160 && c <= 169) || (c >= 171 && c <= 177) ||
-						(c >= 182 && c <= 184) || c == 180 || c == 187 || 
-						c == 191 || c == 215 || c == 247)) {
-					val = true; break; // punctuation
+				if (codes[j].matches(c)) {
+					val = true; break;
 				}
 			}
 			
@@ -151,6 +168,7 @@ public class MVal {
 	
 	public boolean matches(int offset, int repeat, String literal) {
 		int idx = 0;
+		String strVal = str();
 
 		// bad arguments
 		if (repeat == 0) return false;
@@ -175,16 +193,16 @@ public class MVal {
 	
 	@Override
 	public boolean equals(Object obj) {
-		return this.strVal.equals(obj.toString());
+		return this.str().equals(obj.toString());
 	}
 	
 	@Override
 	public String toString() {
-		return strVal;
+		return str();
 	}
 	
 	public Number toNumber() {
-		return numVal;
+		return num();
 	}
 	
 	public Object getOrigVal() {
@@ -192,7 +210,7 @@ public class MVal {
 	}
 	
 	public boolean isTruthy() {
-		return !numVal.equals(0);
+		return !MNumber.isZero(num());
 	}
 	
 	public static final MVal valueOf(Object obj) {
@@ -200,10 +218,12 @@ public class MVal {
 		if (obj instanceof MVar) { 
 			MVar var = (MVar) obj;
 			if (!var.isDefined()) throw new IllegalArgumentException("<UNDEFINED> " + obj.toString());
-			return new MVal(var.val());
+			obj = var.val();
 		} else if (obj instanceof Boolean) {
 			return (((Boolean) obj).booleanValue()) ? MVal.TRUE : MVal.FALSE;
 		}
+		if (obj instanceof Integer) return valueOf(((Integer) obj).intValue());
+		if (obj == null || "".equals(obj)) return EMPTY;
 		return new MVal(obj);
 	}
 	
@@ -262,5 +282,22 @@ public class MVal {
 		P,
 		/** U = Any upper case alphabetic character */
 		U;
+		
+		public boolean matches(char c) {
+			switch (this) {
+				case A: return Character.isAlphabetic(c);
+				case C: return (c >= 0 && c <= 31) || (c >= 127 && c <= 159);
+				case E: return true;
+				case L: return Character.isLowerCase(c);
+				case N: return Character.isDigit(c);
+				case P: return (c >= 32 && c <= 47) || (c >= 58 && c <= 64) ||
+						(c >= 91 && c <= 96) || (c >= 123 && c <= 126) ||
+						(c >= 160 && c <= 169) || (c >= 171 && c <= 177) ||
+						(c >= 182 && c <= 184) || c == 180 || c == 187 || 
+						c == 191 || c == 215 || c == 247;
+				case U: return Character.isUpperCase(c);
+				default: return false;
+			}
+		}
 	}
 }
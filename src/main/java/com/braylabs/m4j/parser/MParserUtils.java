@@ -6,7 +6,9 @@ import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.regex.Pattern;
+
+import com.braylabs.m4j.lang.MNumber;
+import com.braylabs.m4j.lang.MPattern;
 
 public abstract class MParserUtils {
 	private static Set<String> DEFAULT_DELIMS = new HashSet<String>(Arrays.asList(" "));
@@ -186,57 +188,31 @@ public abstract class MParserUtils {
 	}
 	
 	/**
-	 * Try to derive a numeric value from the string/value, M has some strange rules about this
+	 * Try to derive a numeric value from the string/value, M has some strange rules about this (see MNumber.parse())
 	 */
 	public static final Number evalNumericValue(Object obj) {
 		if (obj == null) return 0;
 		if (obj instanceof Number) return (Number) obj;
 		if (obj instanceof Boolean) return ((Boolean) obj) == Boolean.TRUE ? 1 : 0;
-		String str = obj.toString();
-		if (str.isEmpty()) return 0;
-		
-		boolean isFloat = false;
-		float mult = 1f;
-		if (str.startsWith("-")) {
-			str = str.substring(1);
-			mult = -1f;
-		} else if (str.startsWith("+")) {
-			str = str.substring(1);
-		}
-		if (str.indexOf('E') > 0 || str.indexOf('e') > 0) {
-			String[] split = str.split("[eE]");
-			if (split.length == 2 && split[0].matches("[0-9\\.]+") && split[1].matches("[0-9\\-]+")) {
-				str = split[0];
-				if (split[1].indexOf('.') > 0) isFloat = true;
-				mult *= Math.pow(10, Float.parseFloat(split[1]));
-			}
-		}
-		
-		// now go through the characters, when we encounter the first non-numeric character, ignore the rest
-		for (int i=0; i < str.length(); i++) {
-			char c = str.charAt(i);
-			if (c == '.') {
-				isFloat = true;
-			} else if (!Character.isDigit(c)) {
-				// done
-				str = str.substring(0, i);
-				break;
-			}
-		}
-		
-		// empty then not a string
-		if (str.isEmpty() || str.equals(".")) return new Integer(0);
-		
-		// should be a parsable number now
-		if (isFloat) {
-			return Double.parseDouble(str)*mult;
-		} 
-		
-		// parse and return as integer
-		return Integer.parseInt(str)*Math.round(mult);
-		
+		return MNumber.parse((obj instanceof CharSequence) ? (CharSequence) obj : obj.toString());
+	}
+	
+	/**
+	 * Adds two numeric values (see evalNumericValue() and MNumber.add()), whole results are returned as
+	 * an Integer (or Long if they don't fit), anything else as an exact decimal.
+	 */
+	public static final Number addNumeric(Number a, Number b) {
+		return MNumber.add(a, b);
 	}
 	
+	/**
+	 * Is this string a number in canonic form (no leading/trailing zeros, no '+', no exponent, etc.)?
+	 * Canonic numbers collate as numbers when used as subscripts, see MNumber.isCanonic().
+	 */
+	public static final boolean isCanonicNumber(CharSequence str) {
+		return MNumber.isCanonic(str);
+	}
+
 	/**
 	 * Using a regex, returns all the components of a global or routine reference
 	 * @return ret[0] = prefix ($,$$,@,etc.); ret[1] = entrypoint name (if any); ret[2] = routine or global name; ret[3] = args list (if any)
@@ -380,13 +356,9 @@ public abstract class MParserUtils {
 		return false;
 	}
 
-	/** does this specified string match the specified pattern? */
-	private static Pattern PAT1 = Pattern.compile("[0-9]+[ACELNPU]+");
+	/** does this specified string match the specified pattern? (see MPattern) */
 	public static boolean matches(String str, String pat) {
-		if (pat.equals("1L") && str.matches("[a-z]{1}")) {
-			return true; // this is a horrible hack.
-		}
-		return false;
+		return MPattern.compile(pat).matches(str);
 	}
 
 	
@@ -0,0 +1,91 @@
+package com.braylabs.m4j.global;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+
+import org.h2.mvstore.MVStore;
+import org.junit.Test;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.MVar.MVarKeyType;
+
+public class GlobalCacheTest {
+
+	private static byte[] key(Comparable... keys) {
+		return MVarKeyType.encode(keys);
+	}
+
+	@Test
+	public void testGetPut() {
+		GlobalCache cache = new GlobalCache(1 << 20, 1);
+		assertSame(GlobalCache.MISS, cache.get("^X", key(1)));
+
+		cache.put("^X", key(1), "A", cache.stamp("^X", key(1)));
+		cache.put("^X", key(2), null, cache.stamp("^X", key(2)));
+		assertEquals("A", cache.get("^X", key(1)));
+		assertNull(cache.get("^X", key(2))); // cached as not defined
+		assertSame(GlobalCache.MISS, cache.get("^Y", key(1)));
+		assertEquals(2, cache.getHits());
+		assertEquals(2, cache.getMisses());
+		assertEquals(2, cache.size());
+
+		// stale read is not cached
+		long stamp = cache.stamp("^X", key(3));
+		cache.invalidate("^X", key(3));
+		cache.put("^X", key(3), "old", stamp);
+		assertSame(GlobalCache.MISS, cache.get("^X", key(3)));
+
+		cache.invalidate("^X");
+		assertEquals(0, cache.size());
+		assertEquals(0, cache.getBytes());
+	}
+
+	@Test
+	public void testEviction() {
+		GlobalCache cache = new GlobalCache(2000, 1);
+		for (int i=0; i < 100; i++) {
+			cache.put("^X", key(i), "value" + i, cache.stamp("^X", key(i)));
+			cache.get("^X", key(0)); // keep 0 hot
+		}
+		assertTrue(cache.getBytes() <= 2000);
+		assertTrue(cache.getEvictions() > 0);
+		assertEquals("value0", cache.get("^X", key(0)));
+		assertSame(GlobalCache.MISS, cache.get("^X", key(1)));
+	}
+
+	@Test
+	public void testMVGlobalStore() {
+		String tmpdir = System.getProperty("java.io.tmpdir");
+		File tmpfile = new File(tmpdir, "GlobalCacheTest.data");
+		tmpfile.delete();
+		tmpfile.deleteOnExit();
+		MVGlobalStore store = new MVGlobalStore(new MVStore.Builder().fileName(tmpfile.getAbsolutePath()).open());
+		GlobalCache cache = new GlobalCache(1 << 20);
+		store.setCache(cache);
+		try {
+			MVar x = store.get("^X");
+			x.get(1).set("A");
+			assertEquals("A", x.val(1));
+			assertEquals("A", x.val(1));
+			assertTrue(x.get(1).isDefined());
+			assertFalse(x.get(2).isDefined());
+			assertFalse(x.get(2).isDefined());
+			assertEquals(2, cache.getMisses());
+			assertEquals(3, cache.getHits());
+
+			// writes (through any MVar of the store) invalidate
+			store.get("^X").get(1).set("B");
+			store.get("^X").get(2).set("C");
+			assertEquals("B", x.val(1));
+			assertTrue(x.get(2).isDefined());
+			x.get(2).unset();
+			assertFalse(x.get(2).isDefined());
+
+			store.kill("^X");
+			assertNull(store.get("^X").val(1));
+		} finally {
+			store.close();
+		}
+	}
+}
@@ -0,0 +1,132 @@
+package com.braylabs.m4j.global;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.channels.Channels;
+
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.braylabs.m4j.global.GlobalExport.Format;
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+
+public class GlobalExportTest {
+
+	private File tmpfile;
+	private MVGlobalStore store;
+
+	@Before
+	public void before() {
+        String tmpdir = System.getProperty("java.io.tmpdir");
+        if (!tmpdir.endsWith(File.separator)) tmpdir += File.separator;
+        tmpfile = new File(tmpdir, "GlobalExportTest.data");
+        tmpfile.delete();
+        tmpfile.deleteOnExit();
+        store = new MVGlobalStore(new MVStore.Builder().fileName(tmpfile.getAbsolutePath()).cacheSize(20).open());
+
+        MVar foo = store.get("^FOO");
+        foo.set("root");
+        foo.get(1).set("A");
+        foo.get(1, "x").set("he said \"hi\"");
+        foo.get(2.5).set("tab\there");
+        foo.get("b").set(42);
+        store.get("^BAR").get(1).set("B");
+	}
+
+	@After
+	public void after() {
+		store.close();
+	}
+
+	private String export(Format fmt, int threads, MVar... vars) throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		GlobalExport exp = new GlobalExport(fmt);
+		exp.setThreads(threads);
+		exp.export(Channels.newChannel(out), vars);
+		return out.toString("UTF-8");
+	}
+
+	@Test
+	public void testFormatLiteral() {
+		assertEquals("1", GlobalExport.formatLiteral(1));
+		assertEquals("-.5", GlobalExport.formatLiteral(-0.5));
+		assertEquals("2.5", GlobalExport.formatLiteral(2.50));
+		assertEquals("12", GlobalExport.formatLiteral("12"));
+		assertEquals("\"012\"", GlobalExport.formatLiteral("012"));
+		assertEquals("\"\"", GlobalExport.formatLiteral(""));
+		assertEquals("\"a\"\"b\"", GlobalExport.formatLiteral("a\"b"));
+		assertEquals("\"x\"_$C(1,2)_\"y\"", GlobalExport.formatLiteral("x\u0001\u0002y"));
+		assertEquals("$C(9)", GlobalExport.formatLiteral("\t"));
+	}
+
+	@Test
+	public void testExportZWR() throws IOException {
+		String[] lines = export(Format.ZWR, 1, store.get("^FOO")).split("\n");
+		assertTrue(lines[1].endsWith("ZWR"));
+		assertEquals("^FOO=\"root\"", lines[2]);
+		assertEquals("^FOO(1)=\"A\"", lines[3]);
+		assertEquals("^FOO(1,\"x\")=\"he said \"\"hi\"\"\"", lines[4]);
+		assertEquals("^FOO(2.5)=\"tab\"_$C(9)_\"here\"", lines[5]);
+		assertEquals("^FOO(\"b\")=42", lines[6]);
+		assertEquals(7, lines.length);
+
+		// subtree only
+		lines = export(Format.ZWR, 1, store.get("^FOO").get(1)).split("\n");
+		assertEquals(4, lines.length);
+		assertEquals("^FOO(1)=\"A\"", lines[2]);
+	}
+
+	@Test
+	public void testExportGOF() throws IOException {
+		String[] lines = export(Format.GOF, 1, store.get("^BAR")).split("\n");
+		assertEquals(4, lines.length);
+		assertEquals("^BAR(1)", lines[2]);
+		assertEquals("B", lines[3]);
+	}
+
+	@Test
+	public void testExportJSON() throws IOException {
+		String[] lines = export(Format.JSON, 1, store.get("^FOO").get(1), store.get("^BAR")).split("\n");
+		assertEquals(3, lines.length);
+		assertEquals("{\"name\":\"^FOO\",\"subs\":[1],\"value\":\"A\"}", lines[0]);
+		assertEquals("{\"name\":\"^FOO\",\"subs\":[1,\"x\"],\"value\":\"he said \\\"hi\\\"\"}", lines[1]);
+		assertEquals("{\"name\":\"^BAR\",\"subs\":[1],\"value\":\"B\"}", lines[2]);
+	}
+
+	@Test
+	public void testParallelExport() throws IOException {
+		MVar big = store.get("^BIG");
+		for (int i=0; i < 1000; i++) {
+			big.get(i % 10, i).set("val" + i);
+		}
+
+		// same output regardless of how the keyspace is split
+		String serial = export(Format.JSON, 1, big);
+		assertEquals(1000, serial.split("\n").length);
+		assertEquals(serial, export(Format.JSON, 4, big));
+		assertEquals(serial, export(Format.JSON, 7, big));
+		assertEquals(3, big.splitKeys(4).size());
+	}
+
+	@Test
+	public void testRoundTrip() throws IOException {
+		String zwr = export(Format.ZWR, 2, store.get("^FOO"), store.get("^BAR"));
+		store.kill("^FOO");
+		store.kill("^BAR");
+		assertNull(store.get("^FOO").val(1));
+
+		assertEquals(6, new GlobalImport(store).load(new StringReader(zwr), GlobalImport.Format.ZWR));
+		assertEquals("root", store.get("^FOO").valStr());
+		assertEquals("he said \"hi\"", store.get("^FOO").val(1, "x"));
+		assertEquals("tab\there", store.get("^FOO").val(2.5));
+		assertEquals("42", store.get("^FOO").val("b"));
+		assertEquals("B", store.get("^BAR").val(1));
+	}
+
+}
@@ -0,0 +1,138 @@
+package com.braylabs.m4j.global;
+
+import static org.junit.Assert.*;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.braylabs.m4j.global.GlobalImport.Format;
+import com.braylabs.m4j.global.GlobalImport.Node;
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore.CommitPolicy;
+
+public class GlobalImportTest {
+
+	private File tmpfile;
+	private MVGlobalStore store;
+
+	@Before
+	public void before() {
+        String tmpdir = System.getProperty("java.io.tmpdir");
+        if (!tmpdir.endsWith(File.separator)) tmpdir += File.separator;
+        tmpfile = new File(tmpdir, "GlobalImportTest.data");
+        tmpfile.delete();
+        tmpfile.deleteOnExit();
+        store = new MVGlobalStore(new MVStore.Builder().fileName(tmpfile.getAbsolutePath()).cacheSize(20).open());
+	}
+
+	@After
+	public void after() {
+		store.close();
+	}
+
+	@Test
+	public void testParseRef() {
+		Node node = new Node();
+		int[] pos = {0};
+		GlobalImport.parseRef("^FOO(1,\"a\"\"b\",-2.5,\"x\"_$C(1,2)_\"y\")=\"val\"", pos, node);
+		assertEquals("^FOO", node.global);
+		// subscripts collate the same as the equivalent numbers
+		assertArrayEquals(MVar.MVarKey.valueOf(1, "a\"b", -2.5, "x\u0001\u0002y").getEncoded(), node.key.getEncoded());
+		assertEquals('=', "^FOO(1,\"a\"\"b\",-2.5,\"x\"_$C(1,2)_\"y\")=\"val\"".charAt(pos[0]));
+
+		// unsubscripted
+		pos[0] = 0;
+		GlobalImport.parseRef("^%BAR=1", pos, node);
+		assertEquals("^%BAR", node.global);
+		assertEquals(0, node.key.size());
+		assertEquals(5, pos[0]);
+	}
+
+	@Test
+	public void testLoadGOF() throws IOException {
+		String gof = "Header line\r\n17 Jan 2015 10:00 AM\r\n"
+				+ "^FOO(1)\nA\n^FOO(2,\"x\")\nB,C\n^BAR\nroot\n^FOO(1)\nA2\n";
+
+		GlobalImport imp = new GlobalImport(store);
+		imp.setThreads(2);
+		imp.setBatchSize(2);
+		assertEquals(4, imp.load(new StringReader(gof), Format.GOF));
+
+		// last value wins, even across batches
+		assertEquals("A2", store.get("^FOO").val(1));
+		assertEquals("B,C", store.get("^FOO").val(2, "x"));
+		assertEquals("root", store.get("^BAR").valStr());
+
+		// original commit policy is restored
+		assertEquals(CommitPolicy.EVERY_WRITE, store.getCommitPolicy());
+	}
+
+	@Test
+	public void testLoadZWR() throws IOException {
+		String zwr = "Export\nZWR\n"
+				+ "^FOO(1)=\"A\"\n^FOO(\"a\",\"b\")=\"he said \"\"hi\"\"\"\n^FOO(3)=42\n^FOO(4)=\"tab\"_$C(9)\n";
+
+		GlobalImport imp = new GlobalImport(store);
+		imp.setLimit(3);
+		assertEquals(3, imp.load(new StringReader(zwr), Format.ZWR));
+
+		assertEquals("A", store.get("^FOO").val(1));
+		assertEquals("he said \"hi\"", store.get("^FOO").val("a", "b"));
+		assertEquals("42", store.get("^FOO").val(3));
+		assertNull(store.get("^FOO").val(4));
+	}
+
+	@Test
+	public void testLoadError() {
+		GlobalImport imp = new GlobalImport(store);
+		imp.setBatchSize(1);
+		try {
+			imp.load(new StringReader("^FOO(1)=1\n^FOO(2)\n^FOO(3)=3\n"), Format.ZWR);
+			fail("Expected IOException");
+		} catch (IOException ex) {
+			assertTrue(ex.getCause() instanceof IllegalArgumentException);
+		}
+	}
+
+	/** A read error part way through the file ends the writer thread too */
+	@Test
+	public void testLoadTruncated() throws InterruptedException {
+		StringBuilder zwr = new StringBuilder();
+		for (int i=0; i < 1000; i++) zwr.append("^FOO(").append(i).append(")=").append(i).append('\n');
+		final int available = zwr.length() / 2;
+		Reader truncated = new FilterReader(new StringReader(zwr.toString())) {
+			private int read;
+			@Override
+			public int read(char[] cbuf, int off, int len) throws IOException {
+				if (this.read >= available) throw new EOFException("truncated");
+				int ret = super.read(cbuf, off, Math.min(len, available - this.read));
+				this.read += ret;
+				return ret;
+			}
+		};
+
+		GlobalImport imp = new GlobalImport(store);
+		imp.setBatchSize(10);
+		try {
+			imp.load(truncated, Format.ZWR);
+			fail("Expected IOException");
+		} catch (IOException ex) {
+			assertEquals("truncated", ex.getMessage());
+		}
+		for (Thread t : Thread.getAllStackTraces().keySet()) {
+			if (t.getName().equals("M4J-IMPORT-WRITER")) t.join(5000);
+			assertFalse(t.getName().equals("M4J-IMPORT-WRITER") && t.isAlive());
+		}
+		assertEquals(CommitPolicy.EVERY_WRITE, store.getCommitPolicy());
+	}
+
+}
@@ -0,0 +1,267 @@
+package com.braylabs.m4j.global;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore.CommitPolicy;
+import com.braylabs.m4j.global.GlobalStore.PrivateGlobalStore;
+
+public class GlobalStoreTest {
+
+	private File tmpfile;
+	private MVGlobalStore store;
+
+	@Before
+	public void before() {
+        String tmpdir = System.getProperty("java.io.tmpdir");
+        if (!tmpdir.endsWith(File.separator)) tmpdir += File.separator;
+        tmpfile = new File(tmpdir, "GlobalStoreTest.data");
+        tmpfile.delete();
+        tmpfile.deleteOnExit();
+        store = open();
+	}
+
+	@After
+	public void after() {
+		store.close();
+	}
+
+	private MVGlobalStore open() {
+		return new MVGlobalStore(new MVStore.Builder().fileName(tmpfile.getAbsolutePath()).cacheSize(20).open());
+	}
+
+	@Test
+	public void testCommitEveryWrite() {
+		MVar x = store.get("FOO");
+		long version = store.getStore().getCommittedVersion();
+		x.get(1).set("A");
+		x.get(2).set("B");
+		assertEquals(version + 2, store.getStore().getCommittedVersion());
+	}
+
+	@Test
+	public void testCommitBatch() {
+		store.setCommitPolicy(CommitPolicy.BATCH, 3);
+		MVar x = store.get("FOO");
+		long version = store.getStore().getCommittedVersion();
+
+		// nothing committed until the 3rd write
+		x.get(1).set("A");
+		x.get(2).set("B");
+		assertEquals(version, store.getStore().getCommittedVersion());
+		x.get(3).set("C");
+		assertEquals(version + 1, store.getStore().getCommittedVersion());
+
+		// pending writes are committed on close
+		x.get(4).set("D");
+		store.close();
+		store = open();
+		assertEquals("D", store.get("FOO").val(4));
+	}
+
+	@Test
+	public void testCommitInterval() throws InterruptedException {
+		store.setCommitPolicy(CommitPolicy.INTERVAL, 10);
+		MVar x = store.get("FOO");
+		long version = store.getStore().getCommittedVersion();
+		x.get(1).set("A");
+		x.get(2).set("B");
+
+		// background thread should pick it up
+		for (int i=0; i < 100 && store.getStore().getCommittedVersion() == version; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(version + 1, store.getStore().getCommittedVersion());
+	}
+
+	@Test
+	public void testCommitExplicit() {
+		store.setCommitPolicy(CommitPolicy.EXPLICIT, 0);
+		MVar x = store.get("FOO");
+		x.get(1).set("A");
+		store.commit();
+		x.get(2).set("B");
+
+		// uncommitted write is rolled back on close
+		store.close();
+		store = open();
+		assertEquals("A", store.get("FOO").val(1));
+		assertNull(store.get("FOO").val(2));
+	}
+
+	/** more uncommitted writes than the MVStore write buffer holds, so some of them are written out */
+	@Test
+	public void testCommitExplicitLarge() {
+		store.close();
+		store = new MVGlobalStore(new MVStore.Builder().fileName(tmpfile.getAbsolutePath()).cacheSize(20)
+				.writeBufferSize(1).open(), CommitPolicy.EXPLICIT, 0);
+		MVar x = store.get("FOO");
+		x.get(1).set("A");
+		store.commit();
+		for (int i=2; i <= 50000; i++) x.get(i).set("uncommitted");
+		store.close();
+		store = open();
+		assertEquals("A", store.get("FOO").val(1));
+		assertNull(store.get("FOO").val(2));
+		assertNull(store.get("FOO").val(50000));
+		
+		// same after a crash
+		store.setCommitPolicy(CommitPolicy.EXPLICIT, 0);
+		x = store.get("FOO");
+		x.get(1).set("B");
+		store.commit();
+		for (int i=2; i <= 50000; i++) x.get(i).set("uncommitted");
+		store.getStore().closeImmediately();
+		store = open();
+		assertEquals("B", store.get("FOO").val(1));
+		assertNull(store.get("FOO").val(2));
+		assertNull(store.get("FOO").val(50000));
+	}
+
+	@Test
+	public void testCommitOnExit() {
+		store.setCommitPolicy(CommitPolicy.ON_EXIT, 0);
+		long version = store.getStore().getCommittedVersion();
+		store.get("FOO").get(1).set("A");
+		assertEquals(version, store.getStore().getCommittedVersion());
+
+		store.close();
+		store = open();
+		assertEquals("A", store.get("FOO").val(1));
+	}
+
+	@Test
+	public void testTransaction() {
+		MVar x = store.get("FOO");
+		x.get(1).set("A");
+		long version = store.getStore().getCommittedVersion();
+
+		// one commit for the whole transaction
+		assertEquals(1, store.startTransaction());
+		x.get(1).set("B");
+		x.get(2).set("C");
+		x.get(3).increment(5);
+		assertEquals(version, store.getStore().getCommittedVersion());
+		assertEquals("B", x.val(1)); // visible before TCOMMIT
+		assertEquals(0, store.commitTransaction());
+		assertEquals(version + 1, store.getStore().getCommittedVersion());
+		assertEquals(0, store.getTransactionLevel());
+
+		// rollback restores the old values, including undefined ones
+		store.startTransaction();
+		x.get(1).set("X");
+		x.get(1).set("Y");
+		x.get(2).unset();
+		x.get(3).increment(1);
+		x.get(4).set("Z");
+		assertEquals(0, store.rollbackTransaction(0));
+		assertEquals("B", x.val(1));
+		assertEquals("C", x.val(2));
+		assertEquals(5, x.val(3));
+		assertFalse(x.get(4).isDefined());
+
+		// kill inside a transaction
+		store.startTransaction();
+		store.kill("FOO");
+		assertNull(x.val(1));
+		store.rollbackTransaction(0);
+		assertEquals("B", x.val(1));
+		assertEquals("C", x.val(2));
+	}
+
+	@Test
+	public void testNestedTransaction() {
+		MVar x = store.get("FOO");
+		store.startTransaction();
+		x.get(1).set("A");
+		assertEquals(2, store.startTransaction());
+		x.get(1).set("B");
+		x.get(2).set("B");
+
+		// only the inner level is rolled back
+		assertEquals(1, store.rollbackTransaction(1));
+		assertEquals("A", x.val(1));
+		assertNull(x.val(2));
+
+		// inner commit keeps the changes, but they are undone with the outer level
+		store.startTransaction();
+		x.get(1).set("C");
+		assertEquals(1, store.commitTransaction());
+		assertEquals("C", x.val(1));
+		assertEquals(0, store.rollbackTransaction(0));
+		assertNull(x.val(1));
+	}
+
+	@Test
+	public void testTransactionPerThread() throws InterruptedException {
+		store.startTransaction();
+		final int[] level = new int[1];
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				level[0] = store.getTransactionLevel();
+				store.get("FOO").get(2).set("B");
+			}
+		};
+		t.start();
+		t.join();
+		assertEquals(0, level[0]);
+		store.rollbackTransaction(0);
+		assertEquals("B", store.get("FOO").val(2));
+	}
+
+	@Test
+	public void testTransactionRecovery() {
+		store.get("FOO").get(1).set("A");
+
+		// changes of a transaction that never commits are undone when the store is reopened
+		store.startTransaction();
+		store.get("FOO").get(1).set("B");
+		store.get("FOO").get(2).set("C");
+		store.close();
+		store = open();
+		assertEquals("A", store.get("FOO").val(1));
+		assertNull(store.get("FOO").val(2));
+
+		// the undo log is not a global
+		Iterator<String> itr = store.list();
+		while (itr.hasNext()) assertEquals("^FOO", itr.next());
+	}
+
+	@Test
+	public void testPrivateGlobalStore() {
+		PrivateGlobalStore ppg = new PrivateGlobalStore(10000);
+		MVar x = ppg.get("^||X");
+		x.set("root");
+		for (int i=0; i < 50; i++) x.get(i).set("value " + i);
+		assertFalse(ppg.isSpilled());
+
+		// past the threshold it moves to a temp file, MVars handed out before still work
+		for (int i=50; i < 200; i++) x.get(i).set("value " + i);
+		assertTrue(ppg.isSpilled());
+		assertEquals("root", x.val());
+		assertEquals("value 10", x.val(10));
+		assertEquals("value 199", ppg.get("^||X").val(199));
+		assertEquals(2, x.get(1).nextKey().getLastKey());
+		x.get(1000).set("after");
+		assertEquals("after", ppg.get("^||X").val(1000));
+
+		ppg.kill("^||X");
+		assertFalse(x.hasDescendents());
+		x.get(1).set("A");
+
+		// dropped all at once
+		ppg.close();
+		assertNull(ppg.get("^||X").val(1));
+		assertFalse(ppg.isSpilled());
+	}
+
+}
@@ -0,0 +1,85 @@
+package com.braylabs.m4j.global;
+
+import java.util.LinkedHashSet;
+import java.util.Random;
+import java.util.Set;
+
+import com.braylabs.m4j.global.MVar.LocalMVar;
+import com.braylabs.m4j.global.MVar.MVarCursor;
+import com.braylabs.m4j.global.MVar.MVarKey;
+import com.braylabs.m4j.global.MVar.TreeMVar;
+
+/**
+ * Heap retained by a local array and the time to build, read and $ORDER through it, for the old
+ * TreeMap layout (TreeMVar) versus LocalMVar.  Subscripts are strings, like the interpreter passes
+ * them: X(i), X(name) in random order and X(i,j).  Values are one shared object so only the
+ * structure is measured.
+ *
+ * Usage: LocalArrayBenchmark [nodes]
+ */
+public class LocalArrayBenchmark {
+
+	private static final Object VALUE = "value";
+
+	public static void main(String[] args) {
+		int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		Set<String> names = new LinkedHashSet<>();
+		Random rnd = new Random(1);
+		while (names.size() < nodes) names.add("NAME" + Integer.toString(rnd.nextInt(Integer.MAX_VALUE), 36));
+
+		String[] random = names.toArray(new String[nodes]);
+		System.out.printf("%-14s %-8s %10s %10s %10s %10s%n", nodes + " nodes", "", "bytes/node", "set", "get", "$ORDER");
+		for (int shape=0; shape < 3; shape++) {
+			for (int impl=0; impl < 2; impl++) {
+				long bytes = 0, set = Long.MAX_VALUE, get = Long.MAX_VALUE, order = Long.MAX_VALUE;
+				for (int r=0; r < 3; r++) {
+					long before = usedMemory();
+					long t = System.nanoTime();
+					MVar x = (impl == 0) ? new TreeMVar("X") : new LocalMVar("X");
+					for (int i=0; i < nodes; i++) key(x, shape, i, random).set(VALUE);
+					set = Math.min(set, System.nanoTime() - t);
+					bytes = usedMemory() - before;
+
+					t = System.nanoTime();
+					for (int i=0; i < nodes; i++) {
+						if (key(x, shape, i, random).val() != VALUE) throw new IllegalStateException();
+					}
+					get = Math.min(get, System.nanoTime() - t);
+
+					for (int j=0; j < 10; j++) {
+						t = System.nanoTime();
+						int count = walk(x.get(""));
+						order = Math.min(order, System.nanoTime() - t);
+						if (count != ((shape == 2) ? nodes / 10 : nodes)) throw new IllegalStateException("walked " + count);
+					}
+				}
+				System.out.printf("%-14s %-8s %10d %8.1fms %8.1fms %8.1fms%n", (impl == 0) ? SHAPES[shape] : "",
+						(impl == 0) ? "TreeMap" : "Local", bytes / nodes, set / 1e6, get / 1e6, order / 1e6);
+			}
+		}
+	}
+
+	private static final String[] SHAPES = {"X(i)", "X(name)", "X(i,j)"};
+
+	private static MVar key(MVar x, int shape, int i, String[] names) {
+		switch (shape) {
+			case 0: return x.get(MVarKey.valueOf(Integer.toString(i + 1)));
+			case 1: return x.get(MVarKey.valueOf(names[i]));
+			default: return x.get(MVarKey.valueOf(Integer.toString(i / 10 + 1), Integer.toString(i % 10)));
+		}
+	}
+
+	/** $ORDER through the first subscript level, @return the number of nodes visited */
+	private static int walk(MVar start) {
+		int ret = 0;
+		MVarCursor cursor = start.cursor(false);
+		while (cursor.next()) ret++;
+		return ret;
+	}
+
+	private static long usedMemory() {
+		Runtime rt = Runtime.getRuntime();
+		for (int i=0; i < 3; i++) System.gc();
+		return rt.totalMemory() - rt.freeMemory();
+	}
+}
@@ -0,0 +1,53 @@
+package com.braylabs.m4j.global;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import com.braylabs.m4j.global.LockManager.LockRef;
+
+/**
+ * Lock/unlock throughput of LockManager with N threads on a configurable number of keys.
+ * Fewer keys means more contention.
+ *
+ * Usage: LockManagerBenchmark [threads] [keys] [opsPerThread]
+ */
+public class LockManagerBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		final int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		final int keys = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+		final int ops = (args.length > 2) ? Integer.parseInt(args[2]) : 200000;
+
+		// warmup then measure
+		run(new LockManager(), threads, keys, ops / 10);
+		LockManager mgr = new LockManager();
+		long start = System.nanoTime();
+		run(mgr, threads, keys, ops);
+		long elapsed = System.nanoTime() - start;
+
+		long total = (long) threads * ops;
+		System.out.printf("threads=%d keys=%d: %d lock/unlock pairs in %dms (%.0f ops/sec)%n",
+				threads, keys, total, elapsed / 1000000, total / (elapsed / 1e9));
+		System.out.println(mgr);
+	}
+
+	private static void run(final LockManager mgr, int threads, final int keys, final int ops) throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i=0; i < threads; i++) {
+			final Object owner = "P" + i;
+			final Random rand = new Random(i);
+			new Thread() {
+				@Override
+				public void run() {
+					for (int j=0; j < ops; j++) {
+						LockRef ref = new LockRef("^X", rand.nextInt(keys));
+						mgr.lock(owner, ref, -1);
+						mgr.unlock(owner, ref);
+					}
+					done.countDown();
+				}
+			}.start();
+		}
+		done.await();
+	}
+}
@@ -0,0 +1,132 @@
+package com.braylabs.m4j.global;
+
+import static org.junit.Assert.*;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+import com.braylabs.m4j.global.LockManager.DeadlockException;
+import com.braylabs.m4j.global.LockManager.LockRef;
+
+public class LockManagerTest {
+
+	private LockManager mgr = new LockManager();
+	private Object p1 = "P1", p2 = "P2";
+
+	@Test
+	public void testSubscriptConflicts() {
+		assertTrue(mgr.lock(p1, new LockRef("^X", 1), 0));
+
+		// ancestors, descendants and the node itself conflict
+		assertFalse(mgr.lock(p2, new LockRef("^X"), 0));
+		assertFalse(mgr.lock(p2, new LockRef("^X", 1), 0));
+		assertFalse(mgr.lock(p2, new LockRef("^X", 1, "A"), 0));
+
+		// siblings and other names don't
+		assertTrue(mgr.lock(p2, new LockRef("^X", 2), 0));
+		assertTrue(mgr.lock(p2, new LockRef("^X", 11), 0));
+		assertTrue(mgr.lock(p2, new LockRef("^Y", 1), 0));
+		assertTrue(mgr.lock(p2, new LockRef("X", 1), 0));
+
+		// the owner itself can lock around its own locks
+		assertTrue(mgr.lock(p1, new LockRef("^X", 1, "A"), 0));
+		assertFalse(mgr.lock(p1, new LockRef("^X"), 0)); // held by P2 at ^X(2)
+		assertEquals(Arrays.asList(new LockRef("^X", 1), new LockRef("^X", 1, "A")).toString(), mgr.getLocks(p1).toString());
+	}
+
+	@Test
+	public void testIncremental() {
+		LockRef ref = new LockRef("^X", 1);
+		assertTrue(mgr.lock(p1, ref, 0));
+		assertTrue(mgr.lock(p1, ref, 0));
+		assertEquals(2, mgr.getLockCount(p1, ref));
+
+		assertTrue(mgr.unlock(p1, ref));
+		assertFalse(mgr.lock(p2, ref, 0));
+		assertTrue(mgr.unlock(p1, ref));
+		assertEquals(0, mgr.getLockCount(p1, ref));
+		assertTrue(mgr.lock(p2, ref, 0));
+
+		// can't unlock what you don't own
+		assertFalse(mgr.unlock(p1, ref));
+		mgr.unlockAll(p2);
+		assertTrue(mgr.getLocks(p2).isEmpty());
+		assertTrue(mgr.lock(p1, ref, 0));
+	}
+
+	@Test
+	public void testAllOrNothing() {
+		assertTrue(mgr.lock(p2, new LockRef("^B"), 0));
+		assertFalse(mgr.lock(p1, Arrays.asList(new LockRef("^A"), new LockRef("^B")), 0));
+		assertTrue(mgr.getLocks(p1).isEmpty());
+		assertTrue(mgr.lock(p2, new LockRef("^A"), 0));
+	}
+
+	@Test
+	public void testTimeout() throws InterruptedException {
+		final LockRef ref = new LockRef("^X", 1);
+		assertTrue(mgr.lock(p1, ref, 0));
+
+		long start = System.currentTimeMillis();
+		assertFalse(mgr.lock(p2, ref, 200));
+		assertTrue(System.currentTimeMillis() - start >= 190);
+		assertEquals(1, mgr.getTimeoutCount());
+
+		// a waiter is woken up by the release
+		final CountDownLatch locked = new CountDownLatch(1);
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				if (mgr.lock(p2, ref, 10000)) locked.countDown();
+			}
+		};
+		t.start();
+		Thread.sleep(50);
+		mgr.unlock(p1, ref);
+		assertTrue(locked.await(5, TimeUnit.SECONDS));
+	}
+
+	@Test
+	public void testDeadlock() throws InterruptedException {
+		final LockRef a = new LockRef("^A"), b = new LockRef("^B");
+		assertTrue(mgr.lock(p1, a, 0));
+		assertTrue(mgr.lock(p2, b, 0));
+
+		// P1 waits for B (held by P2)
+		final AtomicBoolean p1Result = new AtomicBoolean();
+		final AtomicReference<Throwable> p1Error = new AtomicReference<>();
+		Thread t = new Thread() {
+			@Override
+			public void run() {
+				try {
+					p1Result.set(mgr.lock(p1, b, -1));
+				} catch (Throwable e) {
+					p1Error.set(e);
+				}
+			}
+		};
+		t.start();
+		Thread.sleep(100);
+
+		// P2 waiting for A would be a deadlock
+		try {
+			mgr.lock(p2, a, -1);
+			fail("Expected deadlock");
+		} catch (DeadlockException ex) {
+			// expected
+		}
+		assertFalse(mgr.lock(p2, a, 1000)); // timed, just fails
+		assertEquals(2, mgr.getDeadlockCount());
+
+		// once P2 backs off, P1 gets its lock
+		mgr.unlockAll(p2);
+		t.join(5000);
+		assertTrue(p1Result.get());
+		assertNull(p1Error.get());
+	}
+}
@@ -109,4 +109,13 @@ public class MMapTest {
 		System.out.println(map);
 	}
 
+	@Test
+	public void testToJSON() {
+		LocalMVar map = new LocalMVar("X");
+		map.setValue("foo");
+		map.getNode("A","B").setValue("bar");
+		assertEquals("{\"name\":\"X\",\"subs\":[],\"value\":\"foo\"}\n"
+				+ "{\"name\":\"X\",\"subs\":[\"A\",\"B\"],\"value\":\"bar\"}", map.toJSON());
+	}
+
 }
@@ -3,7 +3,15 @@ package com.braylabs.m4j.global;
 import static org.junit.Assert.*;
 
 import java.io.File;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
 
 import org.h2.mvstore.MVStore;
 import org.junit.After;
@@ -11,7 +19,11 @@ import org.junit.Before;
 import org.junit.Test;
 
 import com.braylabs.m4j.global.MVar;
+import com.braylabs.m4j.global.MVar.MVarCursor;
 import com.braylabs.m4j.global.MVar.MVarKey;
+import com.braylabs.m4j.global.MVar.MVarKeyType;
+import com.braylabs.m4j.lang.MNumber;
+import com.intersys.globals.NodeReference;
 
 public class MVarTest {
 	
@@ -99,6 +111,83 @@ public class MVarTest {
 		assertEquals(MVarKey.valueOf("A",1,null), MVarKey.valueOf("A",1,null));
 	}
 	
+	@Test
+	public void testMVarKeyType() {
+		// expected MUMPS collation: canonic numbers (numerically) then strings, shorter before longer
+		MVarKey[] keys = new MVarKey[] {
+				MVarKey.valueOf(-1000.5),
+				MVarKey.valueOf(-100),
+				MVarKey.valueOf("-99"),
+				MVarKey.valueOf(-1.25),
+				MVarKey.valueOf(-1),
+				MVarKey.valueOf(-.001),
+				MVarKey.valueOf(0),
+				MVarKey.valueOf(.001),
+				MVarKey.valueOf(1),
+				MVarKey.valueOf(1, "A"),
+				MVarKey.valueOf(1, null),
+				MVarKey.valueOf("1.05"),
+				MVarKey.valueOf(1.1),
+				MVarKey.valueOf("2"),
+				MVarKey.valueOf(10),
+				MVarKey.valueOf(141.01),
+				MVarKey.valueOf(12345678901L),
+				MVarKey.valueOf(""),
+				MVarKey.valueOf('\0'),
+				MVarKey.valueOf("-0"),
+				MVarKey.valueOf("01"),
+				MVarKey.valueOf("1.0"),
+				MVarKey.valueOf("A"),
+				MVarKey.valueOf("A", 1),
+				MVarKey.valueOf("AB"),
+				MVarKey.valueOf("a"),
+				MVarKey.valueOf("\u00e9"),
+				MVarKey.valueOf("\u4e2d"),
+				MVarKey.valueOf("\uffff"),
+				MVarKey.valueOf((Comparable) null),
+		};
+		
+		for (int i=0; i < keys.length; i++) {
+			// round trip
+			byte[] bytes = keys[i].getEncoded();
+			assertArrayEquals(bytes, MVarKey.valueOf(MVarKeyType.decode(bytes)).getEncoded());
+			assertEquals(0, MVarKeyType.INSTANCE.compare(keys[i], MVarKey.valueOf(MVarKeyType.decode(bytes))));
+			
+			// sorted
+			if (i > 0) assertTrue(keys[i] + " after " + keys[i-1], MVarKeyType.compare(keys[i-1].getEncoded(), bytes) < 0);
+		}
+		
+		// canonic numeric strings are the same subscript as the number, and decode as the simplest number
+		assertArrayEquals(MVarKey.valueOf(2).getEncoded(), MVarKey.valueOf("2").getEncoded());
+		assertArrayEquals(MVarKey.valueOf(1.5).getEncoded(), MVarKey.valueOf("1.5").getEncoded());
+		assertEquals(2, MVarKeyType.decode(MVarKey.valueOf("2").getEncoded())[0]);
+		assertEquals(new BigDecimal("141.01"), MVarKeyType.decode(MVarKey.valueOf("141.01").getEncoded())[0]);
+		assertEquals(12345678901L, MVarKeyType.decode(MVarKey.valueOf(12345678901L).getEncoded())[0]);
+		assertEquals("01", MVarKeyType.decode(MVarKey.valueOf("01").getEncoded())[0]);
+		
+		// prefixes
+		assertTrue(MVarKey.valueOf("A", 1, "B").startsWith(MVarKey.valueOf("A", "1")));
+		assertTrue(MVarKey.valueOf("A", 1).startsWith(MVarKey.valueOf("A", 1)));
+		assertFalse(MVarKey.valueOf("AB", 1).startsWith(MVarKey.valueOf("A")));
+		assertFalse(MVarKey.valueOf(10).startsWith(MVarKey.valueOf(1)));
+	}
+	
+	@Test
+	public void testNumericCollation() {
+		MVar x = new MVar.MVStoreMVar(mvstore, "COLL");
+		x.get("10").set(1);
+		x.get("9").set(1);
+		x.get("2","A").set(1);
+		x.get("B").set(1);
+		
+		assertEquals(MVarKey.valueOf(9), x.get(2).nextKey());
+		assertEquals(MVarKey.valueOf(10), x.get("9").nextKey());
+		assertEquals(MVarKey.valueOf("B"), x.get(10).nextKey());
+		assertNull(x.get("2","A").nextKey());
+		assertTrue(x.get(2).hasDescendents());
+		assertFalse(x.get(9).hasDescendents());
+	}
+	
 	@Test
 	public void testMVarKeyAppend() {
 		MVarKey k = MVarKey.valueOf("A",1,"Z");
@@ -128,6 +217,478 @@ public class MVarTest {
 		
 	}
 	
+	/** Concurrent $INCREMENTs through separate MVar instances of the same global must not lose updates */
+	@Test
+	public void testIncrement() throws InterruptedException {
+		final int threads = 8, incs = 500;
+		final MVar counter = new MVar.MVStoreMVar(mvstore, "INC");
+		counter.get("ID").unset();
+		
+		Thread[] workers = new Thread[threads];
+		for (int i=0; i < threads; i++) {
+			final MVar mine = new MVar.MVStoreMVar(mvstore, "INC");
+			workers[i] = new Thread() {
+				@Override
+				public void run() {
+					for (int j=0; j < incs; j++) mine.get("ID").increment(1);
+				}
+			};
+			workers[i].start();
+		}
+		for (Thread t : workers) t.join();
+		assertEquals(threads * incs, counter.get("ID").val());
+		
+		// types are preserved
+		assertEquals(threads * incs + 1, counter.get("ID").increment(1));
+		assertEquals(new BigDecimal(".5"), counter.get("X").increment(.5));
+		assertEquals(1, counter.get("X").increment(.5));
+		assertEquals(Integer.MAX_VALUE + 1L, new MVar.TreeMVar("X", Integer.MAX_VALUE).increment(1));
+	}
+	
+	/** KILL removes the node and all its descendants, but not its siblings or ancestors */
+	@Test
+	public void testKill() {
+		validateKill(new MVar.TreeMVar("KILL"));
+		validateKill(new MVar.ConcurrentMVar("KILL"));
+		validateKill(new MVar.MVStoreMVar(mvstore, "KILL"));
+	}
+	
+	private void validateKill(MVar x) {
+		x.set("root");
+		for (int i=0; i < 10000; i++) x.get(i % 3, i).set(i);
+		x.get(1).set("one");
+		x.get("1A").set("sibling"); // same prefix as a string, not a descendant
+		
+		x.get(1).kill();
+		assertFalse(x.get(1).isDefined());
+		assertFalse(x.get(1).hasDescendents());
+		assertNull(x.val(1, 1));
+		assertEquals(0, x.val(0, 0));
+		assertEquals(2, x.val(2, 2));
+		assertEquals("sibling", x.val("1A"));
+		assertEquals("root", x.val());
+		
+		// nothing there, still fine
+		x.get(1).kill();
+		x.get(5, 5).kill();
+		
+		x.kill();
+		assertFalse(x.isDefined());
+		assertFalse(x.hasDescendents());
+		x.get(1).set("again");
+		assertEquals("again", x.val(1));
+	}
+	
+	@Test
+	public void testCursor() {
+		validateCursor(new MVar.TreeMVar("CURSOR"));
+		validateCursor(new MVar.ConcurrentMVar("CURSOR"));
+		validateCursor(new MVar.MVStoreMVar(mvstore, "CURSOR"));
+	}
+	
+	private static String walk(MVarCursor cursor) {
+		StringBuilder sb = new StringBuilder();
+		while (cursor.next()) {
+			if (sb.length() > 0) sb.append(",");
+			Object key = cursor.getKey().getLastKey();
+			sb.append((key instanceof Number) ? MNumber.toString((Number) key) : key);
+		}
+		return sb.toString();
+	}
+	
+	private void validateCursor(MVar x) {
+		x.kill();
+		for (int i=1; i <= 5; i++) {
+			x.get(i).set(i);
+			// more descendants than the cursor skips over before seeking
+			for (int j=0; j < 40 && i % 2 == 0; j++) x.get(i, j).set(j);
+		}
+		x.get(9, "A").set("only descendants");
+		
+		// $ORDER both ways, from the start/end and from a node that does not exist
+		assertEquals("1,2,3,4,5,9", walk(x.get("").cursor(false)));
+		assertEquals("9,5,4,3,2,1", walk(x.get("").cursor(true)));
+		assertEquals("3,4,5,9", walk(x.get(2.5).cursor(false)));
+		assertEquals("2,1", walk(x.get(2.5).cursor(true)));
+		assertEquals("37,38,39", walk(x.get(2, 36).cursor(false)));
+		assertEquals("", walk(x.get(9, "A").cursor(false)));
+		
+		// nodes added and removed while walking
+		MVarCursor cursor = x.get(1).cursor(false);
+		assertTrue(cursor.next());
+		assertEquals(2, cursor.getKey().getLastKey());
+		assertTrue(cursor.isAt(x.get(2), false, false));
+		assertFalse(cursor.isAt(x.get(2), true, false));
+		assertFalse(cursor.isAt(x.get(3), false, false));
+		x.get(2.5).set("new");
+		x.get(3).kill();
+		assertEquals("2.5,4,5,9", walk(cursor));
+		assertNull(cursor.getKey());
+		
+		// $QUERY both ways
+		cursor = x.get(4, 38).queryCursor(false);
+		assertTrue(cursor.next());
+		assertEquals(MVarKey.valueOf(4, 39), cursor.getKey());
+		assertTrue(cursor.next());
+		assertEquals(MVarKey.valueOf(5), cursor.getKey());
+		assertEquals(5, cursor.getNode().val());
+		cursor = x.get(4).queryCursor(true);
+		assertTrue(cursor.next());
+		assertEquals(MVarKey.valueOf(2.5), cursor.getKey());
+		assertEquals("new", cursor.getNode().val());
+		cursor = x.queryCursor(false);
+		assertTrue(cursor.next());
+		assertEquals(MVarKey.valueOf(1), cursor.getKey());
+	}
+	
+	/** CacheMVar walks a NodeReference one subscript at a time, here a stand-in backed by a ConcurrentMVar */
+	@Test
+	public void testCacheMVar() {
+		MVar x = new MVar.CacheMVar(nodeReference("CX"));
+		x.set("root");
+		for (int i=1; i <= 5; i++) {
+			x.get(i).set(i);
+			for (int j=0; j < 40 && i % 2 == 0; j++) x.get(i, j).set(j);
+		}
+		x.get(2.5).set("decimal");
+		x.get(9, "A").set("only descendants");
+		x.get("B").set("string");
+		assertTrue(x.hasDescendents());
+		assertTrue(x.get(9).hasDescendents());
+		assertFalse(x.get(9).isDefined());
+		assertFalse(x.get(5).hasDescendents());
+		
+		// $ORDER both ways, from the start/end and from a node that does not exist
+		assertEquals("1,2,2.5,3,4,5,9,B", walk(x.get("").cursor(false)));
+		assertEquals("B,9,5,4,3,2.5,2,1", walk(x.get("").cursor(true)));
+		assertEquals("3,4,5,9,B", walk(x.get(2.7).cursor(false)));
+		assertEquals("2.5,2,1", walk(x.get(2.7).cursor(true)));
+		assertEquals("37,38,39", walk(x.get(2, 36).cursor(false)));
+		assertEquals(MVarKey.valueOf(2, 39), x.get(2, "").prevKey());
+		assertEquals(MVarKey.valueOf(2.5), x.get(2).nextKey());
+		assertNull(x.get(1).prevKey());
+		assertNull(x.prevKey());
+		
+		// $QUERY both ways visits every node except the root
+		List<String> forward = new ArrayList<>(), reverse = new ArrayList<>();
+		MVarCursor cursor = x.queryCursor(false);
+		while (cursor.next()) forward.add(cursor.getNode().getFullName());
+		cursor = x.get("C").queryCursor(true);
+		while (cursor.next()) reverse.add(cursor.getNode().getFullName());
+		assertEquals(88, forward.size());
+		assertEquals("CX(2,0)", forward.get(2));
+		assertEquals("CX(9,\"A\")", forward.get(86));
+		Collections.reverse(reverse);
+		assertEquals(forward, reverse);
+		
+		// MERGE streams the descendants of the source
+		x.get("M").merge(x.get(4));
+		assertEquals("4", x.val("M"));
+		assertEquals(MVarKey.valueOf("M", 0), x.get("M", "").nextKey());
+		assertEquals(MVarKey.valueOf("M", 39), x.get("M", "").prevKey());
+		assertEquals("39", x.val("M", 39));
+		x.get(2).kill();
+		assertEquals("1,2.5,3,4,5,9,B,M", walk(x.get("").cursor(false)));
+	}
+	
+	/** The NodeReference calls CacheMVar makes, on a ConcurrentMVar */
+	private static NodeReference nodeReference(String name) {
+		final MVar data = new MVar.ConcurrentMVar(name);
+		InvocationHandler handler = new InvocationHandler() {
+			@Override
+			public Object invoke(Object proxy, Method method, Object[] args) {
+				String op = method.getName();
+				if (op.equals("getName")) return data.getName();
+				Object[] subs = (args == null) ? new Object[0] : (Object[]) args[args.length-1];
+				MVar node = data.get(MVarKey.valueOf(Arrays.copyOf(subs, subs.length, Comparable[].class)));
+				if (op.equals("getObject")) {
+					return node.val();
+				} else if (op.equals("set")) {
+					node.set(args[0]);
+					return null;
+				} else if (op.equals("kill")) {
+					node.kill();
+					return null;
+				} else if (op.equals("exists")) {
+					return node.isDefined() || node.hasDescendents();
+				} else if (op.equals("nextSubscript") || op.equals("previousSubscript")) {
+					MVarKey key = op.equals("nextSubscript") ? node.nextKey() : node.prevKey();
+					if (key == null) return "";
+					Object sub = key.getLastKey();
+					return (sub instanceof Number) ? MNumber.toString((Number) sub) : sub.toString();
+				}
+				throw new UnsupportedOperationException(op);
+			}
+		};
+		return (NodeReference) Proxy.newProxyInstance(NodeReference.class.getClassLoader(), new Class<?>[] {NodeReference.class}, handler);
+	}
+	
+	/** Decimal subscripts come back exactly and print as M numbers, whatever the backend */
+	@Test
+	public void testDecimalSubscripts() {
+		BigDecimal big = new BigDecimal("1234567.89012345678");
+		assertEquals(big, MVarKeyType.decode(MVarKey.valueOf(big).getEncoded())[0]);
+		assertEquals(big, MVarKeyType.decode(MVarKey.valueOf("1234567.89012345678").getEncoded())[0]);
+		for (MVar x : new MVar[] {new MVar.TreeMVar("D"), new MVar.ConcurrentMVar("D"),
+				new MVar.MVStoreMVar(mvstore, "D"), new MVar.LocalMVar("D")}) {
+			x.kill();
+			x.get("A", 0.5).set(1);
+			x.get("A", big).set(2);
+			x.get("A", new BigDecimal("1234567.89012345679")).set(3);
+			List<String> names = new ArrayList<>();
+			MVarCursor cursor = x.queryCursor(false);
+			while (cursor.next()) names.add(cursor.getNode().getFullName());
+			assertEquals(Arrays.asList("D(\"A\",.5)", "D(\"A\",1234567.89012345678)", "D(\"A\",1234567.89012345679)"), names);
+			assertEquals(2, x.val("A", new BigDecimal("1234567.890123456780")));
+			assertEquals(0, new BigDecimal("1234567.89012345678").compareTo((BigDecimal) x.get("A", 0.5).nextKey().getLastKey()));
+		}
+	}
+	
+	/** numeric strings the encoding can't hold as numbers (too many digits, too big or small) are strings */
+	@Test
+	public void testLongNumericSubscripts() {
+		StringBuilder digits = new StringBuilder(), big = new StringBuilder("1"), tiny = new StringBuilder(".");
+		for (int i=0; i < 200; i++) {
+			digits.append((char) ('1' + i % 9));
+			big.append('0');
+			if (i < 130) tiny.append('0');
+		}
+		tiny.append('1');
+		for (MVar x : new MVar[] {new MVar.MVStoreMVar(mvstore, "LONG"), new MVar.ConcurrentMVar("LONG")}) {
+			x.kill();
+			x.get(digits.toString()).set(1);
+			x.get(big.toString()).set(2);
+			x.get(tiny.toString()).set(3);
+			x.get(5).set(4);
+			x.get("A").set(5);
+			assertEquals(1, x.val(digits.toString()));
+			assertEquals(2, x.val(new BigDecimal(big.toString())));
+			
+			List<String> order = new ArrayList<>();
+			for (MVarKey key = x.get(0).nextKey(); key != null; key = x.get(key.getLastKey()).nextKey()) {
+				order.add(key.getLastKey().toString());
+			}
+			assertEquals(Arrays.asList("5", tiny.toString(), big.toString(), digits.toString(), "A"), order);
+		}
+	}
+	
+	/** $QUERY references with a subscript repeated (the same boxed/interned object) */
+	@Test
+	public void testQueryName() {
+		for (MVar x : new MVar[] {new MVar.TreeMVar("G"), new MVar.ConcurrentMVar("G"),
+				new MVar.MVStoreMVar(mvstore, "G"), new MVar.LocalMVar("G")}) {
+			x.kill();
+			x.get(1, 1).set(1);
+			x.get(2, 2, "x").set(2);
+			x.get("x", "x").set(3);
+			List<String> names = new ArrayList<>();
+			MVarCursor cursor = x.queryCursor(false);
+			while (cursor.next()) names.add(cursor.getNode().getFullName());
+			assertEquals(Arrays.asList("G(1,1)", "G(2,2,\"x\")", "G(\"x\",\"x\")"), names);
+		}
+	}
+	
+	@Test
+	public void testReverse() {
+		validateReverse(new MVar.TreeMVar("REVERSE"));
+		validateReverse(new MVar.ConcurrentMVar("REVERSE"));
+		validateReverse(new MVar.MVStoreMVar(mvstore, "REVERSE"));
+	}
+	
+	private void validateReverse(MVar x) {
+		x.kill();
+		x.set("root");
+		for (int i=0; i < 5000; i++) x.get(i % 100, i).set(i); // many b-tree pages
+		x.get("A", "B", "C").set("deep");
+		x.get("Q\"", 1).set("quoted");
+		
+		// $ORDER(,-1) is the reverse of $ORDER
+		List<String> forward = new ArrayList<>(), reverse = new ArrayList<>();
+		MVarCursor cursor = x.get(50, "").cursor(false);
+		while (cursor.next()) forward.add(cursor.getKey().toString());
+		cursor = x.get(50, "").cursor(true);
+		while (cursor.next()) reverse.add(cursor.getKey().toString());
+		assertEquals(50, forward.size());
+		Collections.reverse(reverse);
+		assertEquals(forward, reverse);
+		
+		// prevKey()/nextKey() are the same, "" gives the first/last
+		assertEquals(MVarKey.valueOf(7, 4807), x.get(7, 4907).prevKey());
+		assertNull(x.get(7, 7).prevKey());
+		assertEquals(MVarKey.valueOf(7, 7), x.get(7, "").nextKey());
+		assertEquals(MVarKey.valueOf(7, 4907), x.get(7, "").prevKey());
+		assertEquals(MVarKey.valueOf("Q\""), x.get("").prevKey());
+		assertEquals(MVarKey.valueOf(99), x.get("A").prevKey());
+		assertEquals(MVarKey.valueOf("A"), x.get(99).nextKey());
+		assertNull(x.get(0).prevKey());
+		assertNull(x.prevKey());
+		
+		// $QUERY both ways visits every node except the root
+		forward.clear();
+		reverse.clear();
+		cursor = x.queryCursor(false);
+		while (cursor.next()) forward.add(cursor.getNode().getFullName());
+		cursor = x.get("Q\"", 2).queryCursor(true);
+		while (cursor.next()) reverse.add(cursor.getNode().getFullName());
+		assertEquals(5002, forward.size());
+		assertEquals("REVERSE(\"A\",\"B\",\"C\")", forward.get(5000));
+		assertEquals("REVERSE(\"Q\"\"\",1)", forward.get(5001));
+		Collections.reverse(reverse);
+		assertEquals(forward, reverse);
+	}
+	
+	/** Locals collate like the globals, through chunk splits/removals and in both directions */
+	@Test
+	public void testLocalMVar() {
+		validateKill(new MVar.LocalMVar("KILL"));
+		validateReverse(new MVar.LocalMVar("REVERSE"));
+		
+		// canonic numeric strings are numbers, other numbers come back as their canonic string
+		MVar x = new MVar.LocalMVar("X");
+		for (String sub : new String[] {"10", "9", ".5", "1.50", "-3", "B"}) x.get(sub).set(sub);
+		x.get(2, "A").set(1);
+		assertEquals("10", x.val(10));
+		assertEquals(".5", x.val(0.5));
+		assertEquals("-3,.5,2,9,10,1.50,B", walk(x.get("").cursor(false)));
+		assertEquals("B,1.50,10,9,2,.5,-3", walk(x.get("").cursor(true)));
+		assertEquals(MVarKey.valueOf(9), x.get("2").nextKey());
+		MVarCursor cursor = x.get(".5").queryCursor(false);
+		assertTrue(cursor.next());
+		assertEquals(MVarKey.valueOf(2, "A"), cursor.getKey());
+		assertTrue(cursor.isAt(x.get("2", "A"), false, true));
+		
+		// random writes, unsets and kills give the same nodes as the encoded key order
+		Random rnd = new Random(42);
+		MVar local = new MVar.LocalMVar("R"), model = new MVar.ConcurrentMVar("R");
+		for (int i=0; i < 50000; i++) {
+			Comparable[] key = rnd.nextBoolean() ? new Comparable[] {rnd.nextInt(5000)} : new Comparable[] {"K" + rnd.nextInt(500), rnd.nextInt(100) - 50};
+			int op = rnd.nextInt(10);
+			if (op < 7) {
+				local.get(key).set(i);
+				model.get(key).set(i);
+			} else if (op < 9) {
+				assertEquals(model.get(key).unset(), local.get(key).unset());
+			} else {
+				local.get(key[0]).kill();
+				model.get(key[0]).kill();
+			}
+		}
+		local.get("COPY").merge(local.get("K7"));
+		model.get("COPY").merge(model.get("K7"));
+		assertEquals(query(model, false), query(local, false));
+		assertEquals(query(model, true), query(local, true));
+	}
+	
+	/** A local over its node limit moves to a temp file, and back to memory when it is killed */
+	@Test
+	public void testLocalSpill() {
+		MVar.LocalMVar.Spill spill = new MVar.LocalMVar.Spill(1000);
+		try {
+			MVar.LocalMVar x = new MVar.LocalMVar("SPILL", spill);
+			x.set("root");
+			for (int i=0; i < 900; i++) x.get(1, i).set(i);
+			x.get(1).kill(); // counted out again
+			x.get(.5).set("half");
+			for (int i=0; i < 300; i++) x.get(i, "A").set(i);
+			MVarCursor cursor = x.get("").cursor(false);
+			assertTrue(cursor.next());
+			assertFalse(x.isSpilled());
+			
+			for (int i=300; i < 600; i++) x.get(i, "A").set(i);
+			assertTrue(x.isSpilled());
+			assertEquals(1, spill.getSpilledCount());
+			assertEquals("root", x.val());
+			assertEquals(599, x.val(599, "A"));
+			assertEquals("half", x.val(".5"));
+			
+			// the cursor continues on the spilled nodes, subscripts come back the same
+			assertTrue(cursor.next());
+			assertEquals(new BigDecimal(".5"), cursor.getKey().getLastKey());
+			assertEquals(MVarKey.valueOf(1), x.get(".5").nextKey());
+			x.get(5).kill();
+			assertFalse(x.get(5).hasDescendents());
+			assertEquals(MVarKey.valueOf(6), x.get(4).nextKey());
+			
+			x.kill();
+			assertFalse(x.isSpilled());
+			assertEquals(0, spill.getSpilledCount());
+			assertNull(x.val(1, "A"));
+			x.get(1).set(1);
+			assertEquals(1, x.val(1));
+			assertFalse(x.isSpilled());
+		} finally {
+			spill.close();
+		}
+	}
+	
+	private static List<String> query(MVar x, boolean reverse) {
+		List<String> ret = new ArrayList<>();
+		MVarCursor cursor = x.queryCursor(reverse);
+		while (cursor.next()) ret.add(cursor.getKey() + "=" + cursor.getNode().val());
+		return ret;
+	}
+	
+	/** MERGE between any combination of backends, and within one global */
+	@Test
+	public void testMerge() {
+		MVar local = new MVar.TreeMVar("L");
+		local.set("top");
+		for (int i=0; i < 100; i++) local.get(i, "A").set(i);
+		
+		MVar global = new MVar.MVStoreMVar(mvstore, "MERGE");
+		global.get(1).kill();
+		global.get(1, 0, "X").set("kept");
+		global.get(1, 5, "A").set("overwritten");
+		global.get(1).merge(local);
+		assertEquals("top", global.val(1));
+		assertEquals(5, global.val(1, 5, "A"));
+		assertEquals(99, global.val(1, 99, "A"));
+		assertEquals("kept", global.val(1, 0, "X"));
+		
+		// and back (from a MVStore iterator, which includes the node itself)
+		MVar mem = new MVar.ConcurrentMVar("C");
+		mem.get("X").merge(global.get(1));
+		assertEquals("top", mem.val("X"));
+		assertEquals(42, mem.val("X", 42, "A"));
+		assertEquals(MVarKey.valueOf("X", 1), mem.get("X", 0).nextKey());
+		
+		// siblings in the same local
+		local.get("copy").merge(local.get(5));
+		assertEquals(5, local.val("copy", "A"));
+		
+		// siblings in the same global, overlapping subtrees are an error
+		global.get(2).merge(global.get(1));
+		assertEquals(7, global.val(2, 7, "A"));
+		
+		// more than one batch, in front of and after the source
+		for (int i=0; i < 10000; i++) global.get(5, i).set(i);
+		global.get(9).merge(global.get(5));
+		global.get(0).merge(global.get(5));
+		for (int i=0; i < 10000; i++) {
+			assertEquals(i, global.val(9, i));
+			assertEquals(i, global.val(0, i));
+		}
+		assertNull(global.get(9, 9999).nextKey());
+		try {
+			global.get(1, 5).merge(global.get(1));
+			fail("Expected overlap error");
+		} catch (IllegalArgumentException ex) {
+			// expected
+		}
+		
+		// numeric subscripts given as strings are stored (and come back) as numbers
+		MVar src = new MVar.TreeMVar("S");
+		src.set("top");
+		src.get("b").set("child");
+		global.get("10").kill();
+		global.get("10").merge(src);
+		global.get(10, "c").merge(global.get("10", "b"));
+		List<String> names = new ArrayList<>();
+		MVarCursor cursor = global.get(9, "").queryCursor(false);
+		while (cursor.next() && names.size() < 3) names.add(cursor.getNode().getFullName());
+		assertEquals(Arrays.asList("MERGE(10)", "MERGE(10,\"b\")", "MERGE(10,\"c\")"), names);
+	}
+	
 	public void validate(MVar x) {
 		assertNull(x.val());
 		assertFalse(x.hasDescendents());
@@ -0,0 +1,85 @@
+package com.braylabs.m4j.global;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+
+import org.h2.mvstore.MVStore;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore.CommitPolicy;
+import com.braylabs.m4j.global.GlobalStore.MemoryGlobalStore;
+
+/**
+ * Throughput of N threads doing SET/GET/$INCREMENT on a shared scratch global (^TMP), 
+ * MemoryGlobalStore versus MVGlobalStore (committing in batches, so this is not just fsync speed).
+ *
+ * Usage: MemoryGlobalStoreBenchmark [threads] [opsPerThread]
+ */
+public class MemoryGlobalStoreBenchmark {
+
+	public static void main(String[] args) throws InterruptedException {
+		int threads = (args.length > 0) ? Integer.parseInt(args[0]) : 8;
+		int ops = (args.length > 1) ? Integer.parseInt(args[1]) : 100000;
+
+		// warmup, then alternate the stores and keep the best of each (GC makes single runs noisy)
+		run(new MemoryGlobalStore(), threads, ops / 10);
+		runMVStore(threads, ops / 10);
+		long mem = Long.MAX_VALUE, mv = Long.MAX_VALUE;
+		for (int i=0; i < 3; i++) {
+			mem = Math.min(mem, run(new MemoryGlobalStore(), threads, ops));
+			mv = Math.min(mv, runMVStore(threads, ops));
+		}
+
+		long total = (long) threads * ops;
+		System.out.printf("MEMORY:  %d ops in %dms (%.0f/sec)%n", total, mem / 1000000, total / (mem / 1e9));
+		System.out.printf("MVSTORE: %d ops in %dms (%.0f/sec)%n", total, mv / 1000000, total / (mv / 1e9));
+		System.out.printf("speedup: %.1fx with %d threads%n", (double) mv / mem, threads);
+	}
+
+	private static long runMVStore(int threads, int ops) throws InterruptedException {
+		File file = new File(System.getProperty("java.io.tmpdir"), "MemoryGlobalStoreBenchmark.data");
+		file.delete();
+		try {
+			return run(new MVGlobalStore(new MVStore.Builder().fileName(file.getAbsolutePath()).open(), CommitPolicy.BATCH, 1000), threads, ops);
+		} finally {
+			file.delete();
+		}
+	}
+
+	/** @return elapsed nanos */
+	private static long run(GlobalStore store, int threads, final int ops) throws InterruptedException {
+		final MVar tmp = store.get("^TMP");
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(threads);
+		for (int i=0; i < threads; i++) {
+			final int id = i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j=0; j < ops; j++) {
+							// 1 SET, 2 GETs and an $INCREMENT in every 4 ops
+							switch (j & 3) {
+							case 0: tmp.get(id, j).set("value " + j); break;
+							case 1: tmp.val(id, j - 1); break;
+							case 2: tmp.get(id, j - 2).isDefined(); break;
+							default: tmp.get("SEQ").increment(1);
+							}
+						}
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+		long begin = System.nanoTime();
+		start.countDown();
+		done.await();
+		long ret = System.nanoTime() - begin;
+		store.close();
+		return ret;
+	}
+}
@@ -0,0 +1,125 @@
+package com.braylabs.m4j.global;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.braylabs.m4j.global.GlobalStore.MemoryGlobalStore;
+import com.braylabs.m4j.global.MVar.MVarKey;
+
+public class MemoryGlobalStoreTest {
+
+	private static final int THREADS = 8;
+	private static final int NODES = 1000;
+
+	private MemoryGlobalStore store = new MemoryGlobalStore();
+
+	@After
+	public void after() {
+		store.close();
+	}
+
+	@Test
+	public void testOrder() {
+		MVar tmp = store.get("^TMP");
+		assertSame(tmp, store.get("^TMP"));
+		tmp.get("B").set(3);
+		tmp.get(10).set(2);
+		tmp.get(2).set(1);
+		tmp.get("A", 1).set(4);
+		tmp.get("1").set(0); // canonic number, same node as 1
+
+		// numbers before strings, numerically ordered
+		List<Object> keys = new ArrayList<>();
+		MVarKey key = tmp.get(-1).nextKey(); // "" collates after numbers
+		while (key != null) {
+			keys.add(key.get(0));
+			key = tmp.get(key).nextKey();
+		}
+		assertEquals("[1, 2, 10, A, B]", keys.toString());
+		assertEquals(0, ((Number) tmp.val(1)).intValue());
+		assertTrue(tmp.get("A").hasDescendents());
+		assertFalse(tmp.get("A").isDefined());
+		assertFalse(tmp.get("B").hasDescendents());
+
+		// other globals are separate
+		assertFalse(store.get("^OTHER").hasDescendents());
+		Iterator<String> itr = store.list();
+		assertEquals("^TMP", itr.next());
+		assertFalse(itr.hasNext());
+
+		// killed globals are cleared in place (the runtime caches the MVar)
+		store.kill("^TMP");
+		assertFalse(tmp.hasDescendents());
+		assertNull(tmp.val(2));
+		assertFalse(store.list().hasNext());
+		tmp.get(1).set("X");
+		assertEquals("X", store.get("^TMP").val(1));
+	}
+
+	@Test
+	public void testConcurrentWriters() throws InterruptedException {
+		final MVar tmp = store.get("^TMP");
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+
+		for (int i=0; i < THREADS; i++) {
+			final int id = i;
+			new Thread() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						for (int j=0; j < NODES; j++) {
+							tmp.get(id, j).set(j);
+							tmp.get("COUNT").increment(1);
+							assertEquals(j, ((Number) tmp.val(id, j)).intValue());
+						}
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+		}
+
+		start.countDown();
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		if (error.get() != null) throw new AssertionError(error.get());
+
+		// no lost increments or writes
+		assertEquals(THREADS * NODES, ((Number) tmp.val("COUNT")).intValue());
+		for (int i=0; i < THREADS; i++) {
+			int count = 0;
+			MVarKey key = tmp.get(i, -1).nextKey();
+			while (key != null) {
+				count++;
+				key = tmp.get(key).nextKey();
+			}
+			assertEquals(NODES, count);
+		}
+	}
+
+	@Test
+	public void testTransactionLevel() {
+		assertEquals(0, store.getTransactionLevel());
+		assertEquals(1, store.startTransaction());
+		assertEquals(2, store.startTransaction());
+		store.get("^TMP").get(1).set("A");
+		assertEquals(1, store.commitTransaction());
+
+		// not journaled, rollback keeps the changes
+		assertEquals(0, store.rollbackTransaction(0));
+		assertEquals("A", store.get("^TMP").val(1));
+	}
+}
@@ -0,0 +1,82 @@
+package com.braylabs.m4j.global;
+
+import java.io.File;
+import java.util.Iterator;
+
+import org.h2.mvstore.MVStore;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.MVar.MVarKey;
+
+/**
+ * MERGE of a large subtree with MVar.merge() versus copying it node by node through the MVar API 
+ * (decoding each key and SETting it), between globals of the same MVStore and from a local.
+ *
+ * Usage: MergeBenchmark [nodes]
+ */
+public class MergeBenchmark {
+
+	public static void main(String[] args) {
+		int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		File file = new File(System.getProperty("java.io.tmpdir"), "MergeBenchmark.data");
+		file.delete();
+		MVGlobalStore store = new MVGlobalStore(new MVStore.Builder().fileName(file.getAbsolutePath()).cacheSize(64).open(), 
+				MVGlobalStore.CommitPolicy.EXPLICIT, 0);
+		try {
+			MVar src = store.get("^SRC");
+			MVar local = new MVar.TreeMVar("SRC");
+			for (int i=0; i < nodes; i++) {
+				src.get(1, i / 1000, i % 1000).set("value " + i);
+				local.get(1, i / 1000, i % 1000).set("value " + i);
+			}
+			store.commit();
+			
+			// warmup, then alternate and keep the best of each (the heap fills up, so later runs are slower)
+			copy(src.get(1), store.get("^WARM").get(1));
+			store.kill("^WARM");
+			long copied = Long.MAX_VALUE, merged = Long.MAX_VALUE, localCopied = Long.MAX_VALUE, localMerged = Long.MAX_VALUE;
+			for (int i=0; i < 3; i++) {
+				copied = Math.min(copied, time(store, src, true));
+				merged = Math.min(merged, time(store, src, false));
+				localMerged = Math.min(localMerged, time(store, local, false));
+				localCopied = Math.min(localCopied, time(store, local, true));
+			}
+
+			System.out.printf("global to global, node by node: %d nodes in %dms%n", nodes, copied / 1000000);
+			System.out.printf("global to global, MERGE:        %d nodes in %dms (%.1fx)%n", nodes, merged / 1000000, (double) copied / merged);
+			System.out.printf("local to global, node by node:  %d nodes in %dms%n", nodes, localCopied / 1000000);
+			System.out.printf("local to global, MERGE:         %d nodes in %dms (%.1fx)%n", nodes, localMerged / 1000000, (double) localCopied / localMerged);
+		} finally {
+			store.close();
+			file.delete();
+		}
+	}
+	
+	/** @return elapsed nanos to copy src(1) to a new global and commit */
+	private static long time(MVGlobalStore store, MVar src, boolean nodeByNode) {
+		MVar dest = store.get("^DEST");
+		System.gc();
+		long start = System.nanoTime();
+		if (nodeByNode) {
+			copy(src.get(1), dest.get(2));
+		} else {
+			dest.get(2).merge(src.get(1));
+		}
+		store.commit();
+		long ret = System.nanoTime() - start;
+		store.kill("^DEST");
+		return ret;
+	}
+	
+	/** what MERGE used to take: decode every key, build the target node and SET it */
+	private static void copy(MVar src, MVar dest) {
+		int size = src.getPath().size();
+		Iterator<MVarKey> itr = src.iterator(null, null);
+		while (itr.hasNext()) {
+			MVarKey key = itr.next();
+			Comparable[] subs = new Comparable[key.size() - size];
+			for (int i=0; i < subs.length; i++) subs[i] = key.get(size + i);
+			dest.get(subs).set(src.doGetValue(key));
+		}
+	}
+}
@@ -0,0 +1,141 @@
+package com.braylabs.m4j.global;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.GlobalStore.PrivateGlobalStore;
+import com.braylabs.m4j.global.GlobalStore.RoutingGlobalStore;
+import com.braylabs.m4j.global.MVar.MVarCursor;
+import com.braylabs.m4j.global.MVar.MVarKey;
+
+public class RoutingGlobalStoreTest {
+
+	private MVGlobalStore main, temp, archive;
+	private RoutingGlobalStore store;
+
+	@Before
+	public void before() {
+		main = new MVGlobalStore(new MVStore.Builder().open());
+		temp = new MVGlobalStore(new MVStore.Builder().open());
+		archive = new MVGlobalStore(new MVStore.Builder().open());
+		store = new RoutingGlobalStore(main);
+		store.map("TMP*", temp);
+		store.map("^ORD(:2000)", archive);
+		store.map("ORD(\"X\":)", temp);
+	}
+
+	@After
+	public void after() {
+		store.close();
+	}
+
+	@Test
+	public void testNameMapping() {
+		store.get("^TMPX").get(1).set("A");
+		store.get("^FOO").get(1).set("B");
+		assertEquals("A", temp.get("^TMPX").val(1));
+		assertNull(main.get("^TMPX").val(1));
+		assertEquals("B", main.get("^FOO").val(1));
+		assertSame(temp, store.getStore("^TMP"));
+		assertSame(main, store.getStore("^FOO"));
+
+		List<String> names = new ArrayList<>();
+		Iterator<String> itr = store.list();
+		while (itr.hasNext()) names.add(itr.next());
+		assertEquals(Arrays.asList("^FOO", "^TMPX"), names);
+	}
+
+	@Test
+	public void testSubscriptRanges() {
+		MVar ord = store.get("^ORD");
+		ord.set("root");
+		ord.get(1999, "A").set(1);
+		ord.get(2000).set(2);
+		ord.get(2001).set(3);
+		ord.get("X").set(4);
+		ord.get("Y", 1).set(5);
+
+		// each node lands in its range's store, the unsubscripted node in the default one
+		assertEquals("root", main.get("^ORD").val());
+		assertEquals(1, archive.get("^ORD").val(1999, "A"));
+		assertEquals(2, main.get("^ORD").val(2000));
+		assertEquals(4, temp.get("^ORD").val("X"));
+		assertEquals(5, temp.get("^ORD").val("Y", 1));
+		assertEquals(3, ord.val(2001));
+		assertEquals(2, ord.get(1999, "A").increment(1));
+		assertEquals(2, archive.get("^ORD").val(1999, "A"));
+
+		// $ORDER and iteration cross the stores in collation order
+		ord.unset();
+		assertEquals(MVarKey.valueOf(2000), ord.get(1999).nextKey());
+		assertEquals(MVarKey.valueOf("X"), ord.get(2001).nextKey());
+		assertNull(ord.get("Y").nextKey());
+		assertEquals(MVarKey.valueOf(2001), ord.get("X").prevKey());
+		assertEquals(MVarKey.valueOf(1999), ord.get(2000).prevKey());
+		assertEquals(MVarKey.valueOf("Y"), ord.get("").prevKey());
+		MVarCursor query = ord.get("Y", 1).queryCursor(true);
+		assertTrue(query.next());
+		assertEquals(MVarKey.valueOf("X"), query.getKey());
+		assertTrue(query.next());
+		assertEquals(MVarKey.valueOf(2001), query.getKey());
+		List<String> keys = new ArrayList<>();
+		Iterator<MVarKey> itr = ord.iterator();
+		while (itr.hasNext()) keys.add(itr.next().toString());
+		assertEquals(Arrays.asList("(1999,\"A\")", "(2000)", "(2001)", "(\"X\")", "(\"Y\",1)"), keys);
+		assertTrue(ord.hasDescendents());
+
+		store.kill("^ORD");
+		assertFalse(store.get("^ORD").hasDescendents());
+		assertNull(archive.get("^ORD").val(1999, "A"));
+	}
+
+	@Test
+	public void testTransactions() {
+		MVar ord = store.get("^ORD");
+		ord.get(1).set("A");
+		assertEquals(1, store.startTransaction());
+		ord.get(1).set("B");
+		ord.get(3000).set("C");
+		assertEquals(0, store.rollbackTransaction(0));
+		assertEquals("A", ord.val(1));
+		assertNull(ord.val(3000));
+	}
+
+	/** Stores without undo (process-private, memory) only track the level, they don't fail TSTART */
+	@Test
+	public void testTransactionsLevelOnly() {
+		PrivateGlobalStore priv = new PrivateGlobalStore();
+		store.map("SCRATCH", priv);
+		MVar ord = store.get("^ORD"), scratch = store.get("^SCRATCH");
+		ord.get(1).set("A");
+		assertEquals(1, store.startTransaction());
+		assertEquals(2, store.startTransaction());
+		assertEquals(2, priv.getTransactionLevel());
+		ord.get(1).set("B");
+		scratch.set("kept");
+		assertEquals(1, store.commitTransaction());
+		assertEquals(0, store.rollbackTransaction(0));
+		assertEquals(0, priv.getTransactionLevel());
+		assertEquals("A", ord.val(1));
+		assertEquals("kept", scratch.val());
+
+		assertEquals(1, priv.startTransaction());
+		assertEquals(0, priv.commitTransaction());
+		try {
+			priv.commitTransaction();
+			fail("TCOMMIT without TSTART");
+		} catch (IllegalStateException ex) {
+			// expected
+		}
+	}
+}
@@ -0,0 +1,51 @@
+package com.braylabs.m4j.global;
+
+import java.io.File;
+
+import org.h2.mvstore.MVStore;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+
+/**
+ * SET throughput of the MVStore backend committing every write (the default) versus grouping
+ * the writes into transactions (TSTART/TCOMMIT) of a given size.
+ *
+ * Usage: TransactionBenchmark [sets] [setsPerTransaction]
+ */
+public class TransactionBenchmark {
+
+	public static void main(String[] args) {
+		int sets = (args.length > 0) ? Integer.parseInt(args[0]) : 100000;
+		int batch = (args.length > 1) ? Integer.parseInt(args[1]) : 1000;
+
+		// warmup then measure
+		run(sets / 10, 0);
+		run(sets / 10, batch);
+		long auto = run(sets, 0);
+		long tx = run(sets, batch);
+
+		System.out.printf("autocommit:      %d SETs in %dms (%.0f/sec)%n", sets, auto / 1000000, sets / (auto / 1e9));
+		System.out.printf("TSTART/TCOMMIT:  %d SETs in %dms (%.0f/sec), %d per transaction%n", sets, tx / 1000000, sets / (tx / 1e9), batch);
+		System.out.printf("speedup: %.1fx%n", (double) auto / tx);
+	}
+
+	/** @return elapsed nanos, batch 0 means autocommit */
+	private static long run(int sets, int batch) {
+		File file = new File(System.getProperty("java.io.tmpdir"), "TransactionBenchmark.data");
+		file.delete();
+		MVGlobalStore store = new MVGlobalStore(new MVStore.Builder().fileName(file.getAbsolutePath()).open());
+		try {
+			MVar x = store.get("^BENCH");
+			long start = System.nanoTime();
+			for (int i=0; i < sets; i++) {
+				if (batch > 0 && i % batch == 0) store.startTransaction();
+				x.get(i / 100, i % 100).set("value " + i);
+				if (batch > 0 && (i % batch == batch - 1 || i == sets - 1)) store.commitTransaction();
+			}
+			return System.nanoTime() - start;
+		} finally {
+			store.close();
+			file.delete();
+		}
+	}
+}
@@ -0,0 +1,103 @@
+package com.braylabs.m4j.global;
+
+import java.io.File;
+
+import org.h2.mvstore.MVStore;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.MVar.MVarCursor;
+import com.braylabs.m4j.global.MVar.MVarKey;
+
+/**
+ * $ORDER (both directions) and $QUERY loops over a wide global (^WIDE(i)) and a deep one
+ * (^DEEP(i,j,k)) in an MVStore, seeking for every step (a new cursor per call, like nextKey())
+ * versus continuing one MVarCursor.  Also the "latest 10 entries" of an index, in reverse.
+ *
+ * Usage: TraversalBenchmark [nodes]
+ */
+public class TraversalBenchmark {
+
+	public static void main(String[] args) {
+		int nodes = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		File file = new File(System.getProperty("java.io.tmpdir"), "TraversalBenchmark.data");
+		file.delete();
+		MVGlobalStore store = new MVGlobalStore(new MVStore.Builder().fileName(file.getAbsolutePath()).cacheSize(64).open(),
+				MVGlobalStore.CommitPolicy.EXPLICIT, 0);
+		try {
+			MVar wide = store.get("^WIDE"), deep = store.get("^DEEP");
+			int width = (int) Math.round(Math.cbrt(nodes));
+			for (int i=0; i < nodes; i++) {
+				wide.get(i).set("value " + i);
+				deep.get(i / (width * width), (i / width) % width, i % width).set("value " + i);
+			}
+			store.commit();
+
+			System.out.printf("%-28s %12s %12s%n", nodes + " nodes", "seek/step", "cursor");
+			run("$ORDER ^WIDE(i)", wide.get(""), false, false);
+			run("$ORDER ^WIDE(i),-1", wide.get(""), true, false);
+			run("$ORDER ^DEEP(i)", deep.get(""), false, false);
+			run("$ORDER ^DEEP(i),-1", deep.get(""), true, false);
+			run("$ORDER ^DEEP(1,2,k),-1", deep.get(1, 2, ""), true, false);
+			run("$QUERY ^DEEP", deep, false, true);
+			run("$QUERY ^DEEP,-1", deep, true, true);
+
+			// latest 10 entries, many times
+			long seek = Long.MAX_VALUE, cursor = Long.MAX_VALUE;
+			for (int r=0; r < 3; r++) {
+				seek = Math.min(seek, latest(wide, 10000, false));
+				cursor = Math.min(cursor, latest(wide, 10000, true));
+			}
+			System.out.printf("%-28s %10.1fms %10.1fms (%.1fx)%n", "latest 10 of ^WIDE x10000", seek / 1e6, cursor / 1e6, (double) seek / cursor);
+		} finally {
+			store.close();
+			file.delete();
+		}
+	}
+
+	private static void run(String label, MVar start, boolean reverse, boolean query) {
+		long seek = Long.MAX_VALUE, cursor = Long.MAX_VALUE;
+		int count = 0;
+		for (int r=0; r < 3; r++) {
+			long t = System.nanoTime();
+			int n = walk(start, reverse, query, false);
+			seek = Math.min(seek, System.nanoTime() - t);
+			t = System.nanoTime();
+			count = walk(start, reverse, query, true);
+			cursor = Math.min(cursor, System.nanoTime() - t);
+			if (n != count) throw new IllegalStateException(label + ": " + n + " != " + count);
+		}
+		System.out.printf("%-28s %10.1fms %10.1fms (%.1fx, %d nodes)%n", label, seek / 1e6, cursor / 1e6, (double) seek / cursor, count);
+	}
+
+	/** @return the number of nodes visited */
+	private static int walk(MVar start, boolean reverse, boolean query, boolean keep) {
+		int ret = 0;
+		MVarCursor cursor = query ? start.queryCursor(reverse) : start.cursor(reverse);
+		while (cursor.next()) {
+			ret++;
+			if (!keep) {
+				MVar node = cursor.getNode();
+				cursor = query ? node.queryCursor(reverse) : node.cursor(reverse);
+			}
+		}
+		return ret;
+	}
+
+	private static long latest(MVar index, int times, boolean keep) {
+		long start = System.nanoTime();
+		for (int i=0; i < times; i++) {
+			if (keep) {
+				MVarCursor cursor = index.get("").cursor(true);
+				for (int j=0; j < 10 && cursor.next(); j++);
+			} else {
+				MVar node = index.get("");
+				for (int j=0; j < 10; j++) {
+					MVarKey key = node.prevKey();
+					if (key == null) break;
+					node = index.get(key);
+				}
+			}
+		}
+		return System.nanoTime() - start;
+	}
+}
@@ -10,6 +10,7 @@ import static org.mockito.Mockito.verify;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
+import java.util.Iterator;
 
 import org.antlr.v4.runtime.ANTLRInputStream;
 import org.antlr.v4.runtime.CommonTokenStream;
@@ -17,7 +18,9 @@ import org.junit.Before;
 import org.junit.Test;
 import org.mockito.ArgumentCaptor;
 
+import com.braylabs.m4j.global.LockManager;
 import com.braylabs.m4j.global.MVar;
+import com.braylabs.m4j.global.MVar.MVarKey;
 import com.braylabs.m4j.lang.M4JInterpreter2;
 import com.braylabs.m4j.lang.M4JRuntime;
 import com.braylabs.m4j.lang.M4JRuntime.M4JProcess;
@@ -418,6 +421,19 @@ public class M4JInterpreter2Tests {
 		interp.evalLine("I 1>10 W \"truth\" W \"more truth\"");
 		assertEquals("", proc.toString());
 		
+		// IF sets $TEST, argumentless ELSE/IF on the next line use it
+		interp.evalLine("W $T");
+		assertEquals("0", proc.toString());
+		interp.evalLine("E  W \"else\"");
+		assertEquals("else", proc.toString());
+		interp.evalLine("I  W \"if\"");
+		assertEquals("", proc.toString());
+		interp.evalLine("I 1,2 W $TEST");
+		assertEquals("1", proc.toString());
+		interp.evalLine("E  W \"else\"");
+		assertEquals("", proc.toString());
+		interp.evalLine("I  W \"if\"");
+		assertEquals("if", proc.toString());
 	}
 	
 	@Test
@@ -505,6 +521,139 @@ public class M4JInterpreter2Tests {
 		// TODO: Test/implement setting special vars works sometimes, fails other times
 	}
 	
+	@Test
+	public void testCMDLock() {
+		TestM4JProcess proc2 = new TestM4JProcess();
+		M4JInterpreter2 interp2 = new M4JInterpreter2(proc2);
+		eval("L ^LOCKTEST(1)");
+		
+		// other process can't lock the same node or its descendants, timeout sets $TEST
+		interp2.evalLine("L +^LOCKTEST(1,2):0 W $T");
+		assertEquals("0", proc2.toString());
+		interp2.evalLine("L +^LOCKTEST(2):0 W $TEST");
+		assertEquals("1", proc2.toString());
+		interp2.evalLine("L +(^LOCKTEST(3),^LOCKTEST(1)):.1 W $T");
+		assertEquals("0", proc2.toString());
+		
+		// incremental lock/unlock
+		eval("L +^LOCKTEST(1),-^LOCKTEST(1)");
+		interp2.evalLine("L +^LOCKTEST(1):0 W $T");
+		assertEquals("0", proc2.toString());
+		
+		// non-incremental LOCK releases the previous locks first
+		eval("L ^LOCKTEST(4)");
+		interp2.evalLine("L +^LOCKTEST(1):0 W $T");
+		assertEquals("1", proc2.toString());
+		
+		// argumentless LOCK releases everything
+		interp2.evalLine("L");
+		eval("L +^LOCKTEST:0 W $T");
+		assertEquals("1", proc.toString());
+		eval("L");
+		
+		// locking a local does not define it
+		eval("L +(LOCKVAR(1,\"A\")):0 W $T");
+		assertEquals("1", proc.toString());
+		for (Iterator<String> itr = proc.listLocals(); itr.hasNext(); ) assertNotEquals("LOCKVAR", itr.next());
+		assertEquals(1, runtime.getLockManager().getLockCount(proc, new LockManager.LockRef("LOCKVAR", "1", "A")));
+		eval("L -LOCKVAR(1,\"A\")");
+		
+		// ^|| globals are private, each process locks its own and they stay out of the shared table
+		eval("L +^||LOCKTEST(1)");
+		interp2.evalLine("L +^||LOCKTEST(1):0 W $T");
+		assertEquals("1", proc2.toString());
+		assertTrue(runtime.getLockManager().getLocks(proc).isEmpty());
+		assertEquals(1, proc.getPrivateLockManager().getLockCount(proc, new LockManager.LockRef("^||LOCKTEST", "1")));
+		eval("L -^||LOCKTEST(1)");
+		assertEquals(0, proc.getPrivateLockManager().getLockCount(proc, new LockManager.LockRef("^||LOCKTEST", "1")));
+		eval("L +^||LOCKTEST(2),+^LOCKTEST(5)");
+		eval("L");
+		assertTrue(proc.getPrivateLockManager().getLocks(proc).isEmpty());
+		assertTrue(runtime.getLockManager().getLocks(proc).isEmpty());
+		interp2.evalLine("L");
+	}
+	
+	@Test
+	public void testCMDTransaction() {
+		// the parser needs argumentless commands on a line by themselves
+		eval("S ^TXTEST(1)=1,^TXTEST(2)=1 W $TL");
+		assertEquals("0", proc.toString());
+		
+		eval("TS");
+		eval("S ^TXTEST(1)=2");
+		eval("TSTART");
+		eval("S ^TXTEST(2)=2 W $TLEVEL");
+		assertEquals("2", proc.toString());
+		eval("TRO 1 W $TL,\",\",^TXTEST(2),\",\",^TXTEST(1)");
+		assertEquals("1,1,2", proc.toString());
+		eval("TROLLBACK");
+		eval("W $TL,\",\",^TXTEST(1)");
+		assertEquals("0,1", proc.toString());
+		
+		eval("TS");
+		eval("S ^TXTEST(1)=3");
+		eval("TC");
+		eval("W $TL,\",\",^TXTEST(1)");
+		assertEquals("0,3", proc.toString());
+	}
+	
+	@Test
+	public void testCMDKill() {
+		eval("S ^KTEST(1)=1,^KTEST(1,2)=2,^KTEST(2)=2,A=1,A(1)=1,B=2,C=3");
+		eval("K ^KTEST(1),A(1) W $D(^KTEST(1)),$D(^KTEST(1,2)),$D(^KTEST(2)),$D(A(1)),A");
+		assertEquals("00101", proc.toString());
+		eval("K ^KTEST W $D(^KTEST)");
+		assertEquals("0", proc.toString());
+		
+		// exclusive
+		eval("K (A,C) W $D(A),$D(B),$D(C)");
+		assertEquals("101", proc.toString());
+		
+		// argumentless, on a line by itself for the parser
+		eval("K");
+		eval("W $D(A),$D(C)");
+		assertEquals("00", proc.toString());
+	}
+	
+	@Test
+	public void testCMDMerge() {
+		eval("K ^MTEST,A S A=1,A(1)=2,A(1,2)=3,^MTEST(9)=9");
+		eval("M ^MTEST(1)=A,B=^MTEST(1,1) W ^MTEST(1),^MTEST(1,1),^MTEST(1,1,2),^MTEST(9),B,B(2)");
+		assertEquals("123923", proc.toString());
+		eval("M C(5)=A W C(5),C(5,1,2)");
+		assertEquals("13", proc.toString());
+	}
+	
+	@Test
+	public void testResolveVar() {
+		// all the subscripts resolve at once into a single node
+		MVar var = interp.resolveVar("X", new MVal[] {MVal.valueOf(1), MVal.valueOf("A"), MVal.valueOf(2.5)});
+		assertEquals("X", var.getName());
+		assertEquals(MVarKey.valueOf("1", "A", "2.5"), var.getPath());
+		assertSame(proc.getLocal("X"), interp.resolveVar("X", new MVal[0]));
+		
+		eval("S X(1,\"A\",2.5)=\"deep\" W X(1,\"A\",2.5),$D(X(1)),$D(X(1,\"A\",2.5,1))");
+		assertEquals("deep100", proc.toString());
+	}
+	
+	@Test
+	public void testPrivateGlobals() {
+		eval("S ^||PPG(1)=\"A\",^||PPG=0 W ^||PPG(1),^||PPG");
+		assertEquals("A0", proc.toString());
+		
+		// not shared with the global of the same name or other processes
+		eval("W $D(^PPG(1))");
+		assertEquals("0", proc.toString());
+		TestM4JProcess other = new TestM4JProcess();
+		new M4JInterpreter2(other).evalLine("W $D(^||PPG(1))");
+		assertEquals("0", other.toString());
+		
+		// gone when the process ends
+		proc.close();
+		eval("W $D(^||PPG(1))");
+		assertEquals("0", proc.toString());
+	}
+	
 	@Test
 	public void testCMDHang() {
 		long start = System.currentTimeMillis();
@@ -580,6 +729,20 @@ public class M4JInterpreter2Tests {
 		eval("W \"ABC1\"?1A.AN");
 		verify(interp).visitExprMatch(any(ExprMatchContext.class));
 		assertEquals("1", proc.toString());
+		
+		// ranges, alternation, not match
+		eval("W \"12-3456\"?1.3N1\"-\"4N,\"1234-5678\"?1.3N1\"-\"4N");
+		assertEquals("10", proc.toString());
+		eval("W \"N\"?1(1\"Y\",1\"N\"),\"ABCX\"?.E1\"X\",\"ABC\"'?3U");
+		assertEquals("110", proc.toString());
+		
+		// ends at the space
+		eval("I 100?1.2N1\"0\" W 1");
+		assertEquals("1", proc.toString());
+		
+		// indirection
+		eval("S PAT=\"3N.A\" W \"123AB\"?@PAT,\"12AB\"?@PAT");
+		assertEquals("10", proc.toString());
 	}
 	
 	@Test
@@ -623,6 +786,12 @@ public class M4JInterpreter2Tests {
 
 		interp.evalLine("W $P(\"FE FI FO FUM\",\" \")");
 		assertEquals("FE", proc.toString());
+		
+		// pieces of the same record one after another, and after it was changed by SET $P
+		interp.evalLine("S X=\"A^B^^D\" W $P(X,\"^\",4),$P(X,\"^\",3),$P(X,\"^\",1)");
+		assertEquals("DA", proc.toString());
+		interp.evalLine("S $P(X,\"^\",2,3)=\"Z\" W $P(X,\"^\",2),\",\",$P(X,\"^\",3),\",\",X");
+		assertEquals("Z,D,A^Z^D", proc.toString());
 	}
 	
 	@Test
@@ -640,6 +809,25 @@ public class M4JInterpreter2Tests {
 		// unsubscripted
 		interp.evalLine("W $O(FOO)");
 		assertEquals("", proc.toString());
+		
+		// nested loops (one step at a time) each continue their own cursor, both directions
+		var.get("B", "1").set(1);
+		var.get("B", "2").set(2);
+		interp.evalLine("S X=$O(FOO(\"\")) S Y=$O(FOO(X,\"\"),-1) W X,Y");
+		interp.evalLine("S X=$O(FOO(X)) S Y=$O(FOO(X,\"\"),-1) W X,Y");
+		interp.evalLine("S Y=$O(FOO(X,Y),-1) S X=$O(FOO(X)) W Y,X");
+		interp.evalLine("S Y=$O(FOO(\"B\",Y),-1) W Y,$O(FOO(X))");
+		assertEquals("AB21C", proc.toString());
+		
+		// $QUERY
+		interp.evalLine("W $Q(FOO(\"B\"))");
+		assertEquals("FOO(\"B\",1)", proc.toString());
+		interp.evalLine("S X(1,1)=1 W $Q(X)");
+		assertEquals("X(1,1)", proc.toString());
+		
+		// canonic numbers collate numerically, before strings
+		interp.evalLine("S FOO(9)=1,FOO(10)=1,FOO(.5)=1 W $O(FOO(9)),\",\",$O(FOO(\"\")),\",\",$O(FOO(10))");
+		assertEquals("10,.5,A", proc.toString());
 	}
 	@M4JRoutine(name="HELLO")
 	public static class MyFirstM4JRoutine {
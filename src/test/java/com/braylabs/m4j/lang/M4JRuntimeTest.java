@@ -0,0 +1,247 @@
+package com.braylabs.m4j.lang;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.h2.mvstore.MVStore;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore;
+import com.braylabs.m4j.global.GlobalStore.MVGlobalStore.CommitPolicy;
+import com.braylabs.m4j.global.MVar;
+import com.braylabs.m4j.global.MVar.LocalMVar;
+import com.braylabs.m4j.lang.M4JRuntime.M4JProcess;
+
+public class M4JRuntimeTest {
+
+	private static final int PROCS = 50;
+	private static final int NODES = 20;
+
+	private File tmpfile;
+	private M4JRuntime runtime;
+
+	@Before
+	public void before() {
+        String tmpdir = System.getProperty("java.io.tmpdir");
+        if (!tmpdir.endsWith(File.separator)) tmpdir += File.separator;
+        tmpfile = new File(tmpdir, "M4JRuntimeTest.data");
+        tmpfile.delete();
+        tmpfile.deleteOnExit();
+        // committing every write makes this test about MVStore commit speed, so batch them
+        runtime = new M4JRuntime(new MVGlobalStore(new MVStore.Builder().fileName(tmpfile.getAbsolutePath()).open(), CommitPolicy.BATCH, 1000));
+	}
+
+	@After
+	public void after() throws IOException {
+		runtime.close();
+	}
+
+	/** Many processes looking up and writing the same globals and routines at once */
+	@Test
+	public void testConcurrentProcesses() throws InterruptedException {
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(PROCS);
+		final Set<MVar> globals = Collections.newSetFromMap(new ConcurrentHashMap<MVar, Boolean>());
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+
+		for (int i=0; i < PROCS; i++) {
+			final int id = i;
+			runtime.spawnProcess(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						M4JProcess p = runtime.getProcess(id + 1);
+						p.setOutputStream(new ByteArrayOutputStream());
+						globals.add(p.getGlobal("^STRESS"));
+						assertNotNull(p.getRoutine("SYS"));
+
+						// through the interpreter and directly
+						for (int j=0; j < NODES; j++) {
+							p.getInterpreter().evalLine("S ^STRESS(" + id + "," + j + ")=" + j);
+							runtime.getGlobal("^STRESS" + (j % 5)).get(id).set(j);
+						}
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+
+		start.countDown();
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		if (error.get() != null) throw new AssertionError(error.get());
+
+		// every process saw the same global instance and all writes made it
+		assertEquals(1, globals.size());
+		MVar stress = runtime.getGlobal("^STRESS");
+		for (int i=0; i < PROCS; i++) {
+			assertEquals(NODES - 1, Integer.parseInt(stress.get(i, NODES - 1).valStr()));
+			assertNotNull(runtime.getGlobal("^STRESS4").val(i));
+		}
+
+		// processes unregister when done
+		for (int i=0; i < 100 && runtime.getProcessCount() > 0; i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, runtime.getProcessCount());
+	}
+
+	/** Locals over the node limit move to a temp file, NEWed ones are dropped with their stack level */
+	@Test
+	public void testLocalSpill() {
+		runtime.setMaxLocalNodes(100);
+		M4JProcess p = new M4JProcess(runtime, 1000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		p.setOutputStream(out);
+		try {
+			for (int i=0; i < 200; i++) p.getInterpreter().evalLine("S X(" + i + ")=" + i);
+			assertTrue(((LocalMVar) p.getLocal("X")).isSpilled());
+			p.getInterpreter().evalLine("W $O(X(150)),\",\",X(199)");
+			assertEquals("151,199", out.toString());
+			
+			p.push(false, "Y");
+			for (int i=0; i < 200; i++) p.getInterpreter().evalLine("S Y(" + i + ")=" + i);
+			LocalMVar y = (LocalMVar) p.getLocal("Y");
+			assertTrue(y.isSpilled());
+			p.reset(1);
+			assertFalse(y.isSpilled());
+			assertFalse(p.getLocal("Y").hasDescendents());
+		} finally {
+			p.close();
+		}
+	}
+	
+	/** NEW shadows a local until its stack level is popped, at any depth, exclusive levels hide everything below */
+	@Test
+	public void testNewShadowing() {
+		M4JProcess p = new M4JProcess(runtime, 1000);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		p.setOutputStream(out);
+		try {
+			p.getInterpreter().evalLine("S X=1,Y=1");
+			MVar x = p.getLocal("X");
+			for (int i=0; i < 100; i++) {
+				p.push(false, "X");
+				p.getInterpreter().evalLine("S X=" + (i + 2) + ",Y=" + (i + 2));
+			}
+			p.getInterpreter().evalLine("W X,\",\",Y");
+			assertEquals("101,101", out.toString());
+
+			p.reset(99);
+			assertEquals("2", p.getLocal("X").valStr());
+			assertEquals("101", p.getLocal("Y").valStr());
+			p.reset(1);
+			assertSame(x, p.getLocal("X"));
+			assertEquals("1", x.valStr());
+
+			// a variable first set inside a NEW level belongs to the level below
+			p.push(false, "A");
+			p.getInterpreter().evalLine("S A=1,B=2");
+			p.reset(1);
+			assertNull(p.getLocal("A").val());
+			assertEquals("2", p.getLocal("B").valStr());
+
+			// exclusive: nothing below is visible and what is set there goes away with it
+			p.push(true, "Z");
+			assertNull(p.getLocal("X").val());
+			p.getInterpreter().evalLine("S X=5,Z=6");
+			p.getInterpreter().evalLine("K (Z)");
+			assertNull(p.getLocal("X").val());
+			assertEquals("6", p.getLocal("Z").valStr());
+			p.reset(1);
+			assertSame(x, p.getLocal("X"));
+			assertEquals("1", x.valStr());
+			assertNull(p.getLocal("Z").val());
+		} finally {
+			p.close();
+		}
+	}
+
+	/** Routines registered while other processes are resolving them */
+	@Test
+	public void testConcurrentRegistration() throws InterruptedException {
+		final CountDownLatch done = new CountDownLatch(PROCS);
+		final AtomicReference<Throwable> error = new AtomicReference<>();
+		for (int i=0; i < PROCS; i++) {
+			runtime.spawnProcess(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						runtime.registerRoutine(MUMPS.class);
+						assertNotNull(runtime.getRoutine("SYS"));
+						assertNotNull(runtime.getRoutine("$PIECE^SYS"));
+					} catch (Throwable t) {
+						error.compareAndSet(null, t);
+					} finally {
+						done.countDown();
+					}
+				}
+			});
+		}
+		assertTrue(done.await(60, TimeUnit.SECONDS));
+		if (error.get() != null) throw new AssertionError(error.get());
+	}
+	
+	/** A transaction belongs to one process and stays on the thread that started it */
+	@Test
+	public void testTransactionPerProcess() throws InterruptedException {
+		final M4JProcess p1 = new M4JProcess(runtime, 1001);
+		M4JProcess p2 = new M4JProcess(runtime, 1002);
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		p2.setOutputStream(out);
+		try {
+			p1.getInterpreter().evalLine("TSTART");
+			assertEquals(1, p1.getTransactionLevel());
+			p2.getInterpreter().evalLine("W $TLEVEL");
+			assertEquals("0", out.toString());
+			
+			// this thread is taken by p1's transaction
+			try {
+				p2.startTransaction();
+				fail("expected the thread to be in use");
+			} catch (IllegalStateException ex) {
+				assertTrue(ex.getMessage().contains("process 1001"));
+			}
+			assertEquals(0, p2.rollbackTransaction(0));
+			
+			// and p1's transaction can't move to another thread
+			final AtomicReference<Throwable> error = new AtomicReference<>();
+			Thread t = new Thread() {
+				@Override
+				public void run() {
+					try {
+						p1.commitTransaction();
+					} catch (Throwable t) {
+						error.set(t);
+					}
+				}
+			};
+			t.start();
+			t.join();
+			assertTrue(error.get() instanceof IllegalStateException);
+			assertEquals(1, p1.getTransactionLevel());
+			
+			p1.getInterpreter().evalLine("TCOMMIT");
+			assertEquals(0, p1.getTransactionLevel());
+			assertEquals(1, p2.startTransaction());
+			assertEquals(0, p2.rollbackTransaction(0));
+		} finally {
+			p1.close();
+			p2.close();
+		}
+	}
+}
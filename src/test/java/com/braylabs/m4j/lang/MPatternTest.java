@@ -0,0 +1,142 @@
+package com.braylabs.m4j.lang;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public class MPatternTest {
+
+	@Test
+	public void testCounts() {
+		assertTrue(matches("123-12-1234", "3N1\"-\"2N1\"-\"4N"));
+		assertFalse(matches("123-12-123", "3N1\"-\"2N1\"-\"4N"));
+		assertTrue(matches("1-2345", "1.3N1\"-\"4N"));
+		assertTrue(matches("123-2345", "1.3N1\"-\"4N"));
+		assertFalse(matches("1234-2345", "1.3N1\"-\"4N"));
+		assertFalse(matches("-2345", "1.3N1\"-\"4N"));
+		assertTrue(matches("", ".N"));
+		assertTrue(matches("12345", ".N"));
+		assertFalse(matches("123A", ".N"));
+		assertTrue(matches("AB", "2.U"));
+		assertFalse(matches("A", "2.U"));
+		assertTrue(matches("ABC", ".3U"));
+		assertFalse(matches("ABCD", ".3U"));
+		assertTrue(matches("", "0N"));
+	}
+
+	@Test
+	public void testCodes() {
+		assertFalse(matches("FOO", "1L"));
+		assertTrue(matches("f", "1L"));
+		assertTrue(matches("ABC1", "1A.AN"));
+		assertTrue(matches("abc", "3a"));
+		assertTrue(matches("A,B", "1U1P1U"));
+		assertTrue(matches("\t", "1C"));
+		assertTrue(matches("anything at all!", ".E"));
+		assertTrue(matches("a1", "2LN"));
+	}
+
+	@Test
+	public void testLiterals() {
+		assertTrue(matches("FOO", "1\"FOO\""));
+		assertTrue(matches("FOOFOO", "2\"FOO\""));
+		assertTrue(matches("FOOFOO", ".\"FOO\""));
+		assertFalse(matches("FOOFO", ".\"FOO\""));
+		assertTrue(matches("A\"B", "1A1\"\"\"\"1A"));
+		assertTrue(matches("", "1\"\""));
+		assertTrue(matches("X", ".\"\"1\"X\""));
+	}
+
+	/** indefinite repeats give back what the rest of the pattern needs */
+	@Test
+	public void testBacktracking() {
+		assertTrue(matches("ABCX", ".E1\"X\""));
+		assertTrue(matches("XXX", ".E1\"X\".E"));
+		assertTrue(matches("12345", ".N3N"));
+		assertFalse(matches("12", ".N3N"));
+		assertTrue(matches("2015.10", "1.N1\".\"2N"));
+
+		// would take exponential time trying every split of the string
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i < 5000; i++) sb.append('A');
+		assertFalse(matches(sb + "!", ".A.A.A.A.A.A1\"B\""));
+		assertTrue(matches(sb.toString(), ".A.A.A.A.A.A"));
+	}
+
+	/** large counts go around a counted loop instead of copying the atom */
+	@Test
+	public void testLargeCounts() {
+		String digits = repeat("1234567890", 100);
+		assertTrue(matches(digits, "1000N"));
+		assertFalse(matches(digits.substring(1), "1000N"));
+		assertFalse(matches(digits + "1", "1000N"));
+		assertFalse(matches(digits.substring(1) + "A", "1000N"));
+		assertTrue(matches(digits, "17.1000N"));
+		assertFalse(matches("1234", "17.1000N"));
+		assertTrue(matches(digits, "1000.N"));
+		assertTrue(matches(digits + digits, "1000.N"));
+		assertFalse(matches(digits.substring(1), "1000.N"));
+		assertTrue(matches(digits, ".E1000N"));
+		assertTrue(matches("AB" + digits, ".E1000N"));
+		assertTrue(matches(digits, ".17N983N"));
+		assertFalse(matches("123", "1000000000N"));
+
+		// nested, alternation and atoms that can match nothing
+		assertTrue(matches(repeat("12345678901234567890-", 20), "20(20N1\"-\")"));
+		assertFalse(matches(repeat("12345678901234567890-", 19), "20(20N1\"-\")"));
+		assertTrue(matches(repeat("AB1", 30), "30(2A,1N)30(2A,1N)"));
+		assertFalse(matches(repeat("AB1", 30), "30(2A,1N)31(2A,1N)"));
+		assertTrue(matches("AAAAA", "20(1\"\",1\"A\")"));
+		assertFalse(matches(repeat("A", 21), "20(1\"\",1\"A\")"));
+		assertTrue(matches(repeat("A", 21), "20(.\"A\")"));
+	}
+
+	@Test
+	public void testAlternation() {
+		assertTrue(matches("Y", "1(1\"Y\",1\"N\")"));
+		assertTrue(matches("N", "1(1\"Y\",1\"N\")"));
+		assertFalse(matches("X", "1(1\"Y\",1\"N\")"));
+		assertTrue(matches("YES", "1(1\"Y\",1\"YES\")"));
+		assertTrue(matches("12AB3", ".(1N,2U)"));
+		assertFalse(matches("12A3", ".(1N,2U)"));
+		assertTrue(matches("555-1234", "3N1\"-\"4N"));
+		assertTrue(matches("(555)555-1234", "1(1\"(\"3N1\")\",3N1\"-\")3N1\"-\"4N"));
+		assertTrue(matches("555-555-1234", "1(1\"(\"3N1\")\",3N1\"-\")3N1\"-\"4N"));
+		assertTrue(matches("AB1", "1(1U1(1U,1N),1N).N"));
+	}
+
+	@Test
+	public void testCache() {
+		assertSame(MPattern.compile("3N1\"-\"4N"), MPattern.compile("3N1\"-\"4N"));
+		assertEquals("1.3A", MPattern.compile("1.3A").toString());
+
+		// a pattern in use stays cached while many others come and go
+		MPattern hot = MPattern.compile("3N1\"-\"4N");
+		for (int i=0; i < 5000; i++) {
+			MPattern.compile(i + "N");
+			assertSame(hot, MPattern.compile("3N1\"-\"4N"));
+		}
+	}
+
+	@Test
+	public void testInvalid() {
+		for (String pat : new String[] {"", "N", "1", "1X", "3.1N", "1\"A", "1(1N", "1(1N,)", "1(1(1N)", "1N)"}) {
+			try {
+				MPattern.compile(pat);
+				fail("expected an error for " + pat);
+			} catch (IllegalArgumentException ex) {
+				assertTrue(ex.getMessage().startsWith("<SYNTAX>"));
+			}
+		}
+	}
+
+	private static boolean matches(String str, String pat) {
+		return MPattern.compile(pat).matches(str);
+	}
+
+	private static String repeat(String str, int times) {
+		StringBuilder sb = new StringBuilder();
+		for (int i=0; i < times; i++) sb.append(str);
+		return sb.toString();
+	}
+}
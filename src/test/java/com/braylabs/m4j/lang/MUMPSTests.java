@@ -3,6 +3,8 @@ package com.braylabs.m4j.lang;
 import static com.braylabs.m4j.lang.MUMPS.*;
 import static org.junit.Assert.*;
 
+import java.math.BigDecimal;
+
 import org.junit.Test;
 
 import com.braylabs.m4j.global.MVar;
@@ -28,12 +30,12 @@ public class MUMPSTests {
 		// decrement back to 0
 		assertEquals(0, $INCREMENT(var,-1));
 		
-		// if either is a decimal, return a decimal
-		assertEquals(1.1, $INCREMENT(var, 1.1));
+		// if either is a decimal, return an exact decimal
+		assertEquals(new BigDecimal("1.1"), $INCREMENT(var, 1.1));
 		
 		// string values should work too!
 		var.set("1");
-		assertEquals(2.1, $INCREMENT(var, "1.1"));
+		assertEquals(new BigDecimal("2.1"), $INCREMENT(var, "1.1"));
 		
 		// and exponential values
 		var.set("1E3");
@@ -45,7 +47,7 @@ public class MUMPSTests {
 		
 		// non-canatonical numbers are ok too!
 		var.set("0123.2100");
-		assertEquals(123.21, $INCREMENT(var,"+000000"));
+		assertEquals(new BigDecimal("123.21"), $INCREMENT(var,"+000000"));
 		
 		
 	}
@@ -237,6 +239,14 @@ public class MUMPSTests {
 		
 		// other cases
 		assertEquals(str, $PIECE(str, "^", 1)); // ^ is not a valid delmiter, return full string
+		
+		// empty pieces count, delimiters can be more than one character
+		assertEquals("", $PIECE("A^^C", "^", 2));
+		assertEquals("C", $PIECE("A^^C", "^", 3));
+		assertEquals("B", $PIECE("A^^B^^C", "^^", 2));
+		assertEquals("B^^C", $PIECE("A^^B^^C", "^^", 2, 5));
+		assertEquals("^B", $PIECE("A^^^B", "^^", 2));
+		assertEquals("", $PIECE("", "^", 1));
 	}
 	
 	@Test
@@ -247,6 +257,12 @@ public class MUMPSTests {
 		assertEquals("A,B,C", $PIECE("A,B,C", " ", 0, "Z"));
 		assertEquals("A,B,C,Z", $PIECE("A,B,C", ",", 4, "Z"));
 		assertEquals("A,B,C,,Z", $PIECE("A,B,C", ",", 5, "Z"));
+		
+		// ranges, multi-character delimiters and undefined/empty strings
+		assertEquals("A^X^D", $PIECE(null, "A^B^C^D", "^", 2, 3, "X"));
+		assertEquals("A^^B^^Z", $PIECE("A^^B", "^^", 3, "Z"));
+		assertEquals("^^Z", $PIECE("", "^", 3, "Z"));
+		assertEquals("A,B,C", $PIECE(null, "A,B,C", ",", 3, 2, "Z"));
 	}
 	
 	@Test
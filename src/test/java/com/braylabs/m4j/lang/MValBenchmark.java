@@ -0,0 +1,66 @@
+package com.braylabs.m4j.lang;
+
+import com.braylabs.m4j.lang.MVal.BinaryOp;
+
+/**
+ * MVal operators on a string heavy workload (building records with _ and [, like $PIECE input) and an
+ * arithmetic one (a counting loop with a running total and a comparison per step).  "eager" copies
+ * every value into a new MVal and computes both its numeric and string form, which is what the MVal
+ * constructor used to do, "lazy" shares the common values and only computes what the operators ask for.
+ *
+ * Usage: MValBenchmark [iterations]
+ */
+public class MValBenchmark {
+
+	public static void main(String[] args) {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		System.out.printf("%-14s %10s %10s%n", iterations + " iter", "eager", "lazy");
+		for (int work=0; work < 2; work++) {
+			long eager = Long.MAX_VALUE, lazy = Long.MAX_VALUE;
+			for (int r=0; r < 5; r++) {
+				long t = System.nanoTime();
+				run(work, iterations, true);
+				eager = Math.min(eager, System.nanoTime() - t);
+				t = System.nanoTime();
+				run(work, iterations, false);
+				lazy = Math.min(lazy, System.nanoTime() - t);
+			}
+			System.out.printf("%-14s %8.1fms %8.1fms (%.1fx)%n", (work == 0) ? "strings" : "arithmetic",
+					eager / 1e6, lazy / 1e6, (double) eager / lazy);
+		}
+	}
+
+	private static final MVal DELIM = MVal.valueOf("^"), NAME = MVal.valueOf("PATIENT,TEST"),
+			ADDR = MVal.valueOf("123 MAIN ST"), SEARCH = MVal.valueOf("MAIN"), ONE = MVal.valueOf(1);
+
+	private static int run(int work, int iterations, boolean eager) {
+		int ret = 0;
+		if (work == 0) {
+			for (int i=0; i < iterations; i++) {
+				MVal rec = force(NAME.apply(BinaryOp.CONCAT, DELIM), eager);
+				rec = force(rec.apply(BinaryOp.CONCAT, ADDR), eager);
+				rec = force(rec.apply(BinaryOp.CONCAT, DELIM), eager);
+				if (force(rec.apply(BinaryOp.CONTAINS, SEARCH), eager).isTruthy()) ret++;
+			}
+		} else {
+			MVal total = MVal.valueOf(0), limit = MVal.valueOf(500);
+			for (int i=0; i < iterations; i++) {
+				MVal n = force(MVal.valueOf(i % 1000), eager);
+				if (force(n.apply(BinaryOp.LT, limit), eager).isTruthy()) {
+					total = force(total.apply(BinaryOp.ADD, ONE), eager);
+				}
+			}
+			ret = total.toNumber().intValue();
+		}
+		return ret;
+	}
+
+	private static MVal force(MVal val, boolean eager) {
+		if (eager) {
+			val = new MVal(val.getOrigVal());
+			val.toNumber();
+			val.toString();
+		}
+		return val;
+	}
+}
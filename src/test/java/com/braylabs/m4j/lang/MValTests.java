@@ -39,18 +39,67 @@ public class MValTests {
 		assertEquals(1, testNum(1, 10, BinaryOp.EXP));
 		assertEquals(1, testNum(1, -10, BinaryOp.EXP));
 		assertEquals(1, testNum(1, 0, BinaryOp.EXP));
+		
+		// fractional exponents are rounded to the digits a double gets right
+		assertEquals("1.4142135623731", testStr(2, ".5", BinaryOp.EXP));
+		assertEquals(3, testNum(9, ".5", BinaryOp.EXP));
+		assertEquals("2.5", testStr("6.25", ".5", BinaryOp.EXP));
+		
+		// 0 to a negative power is a division by 0
+		for (String exp : new String[] {"-1", "-.5"}) {
+			try {
+				testNum(0, exp, BinaryOp.EXP);
+				fail("expected <DIVIDE>");
+			} catch (ArithmeticException ex) {
+				assertTrue(ex.getMessage().startsWith("<DIVIDE>"));
+			}
+		}
 
 	}
 	
 	@Test
 	public void testMOD() {
-		assertEquals(.5, testNum(1.5, 1, BinaryOp.MOD));
+		assertEquals(".5", testStr(1.5, 1, BinaryOp.MOD));
+		
+		// the result has the sign of the divisor
+		assertEquals(2, testNum(-7, 3, BinaryOp.MOD));
+		assertEquals(-2, testNum(7, -3, BinaryOp.MOD));
+		assertEquals(1, testNum(7, 3, BinaryOp.MOD));
 	}
 	
 	@Test
 	public void testDIV() {
 		// evaluate this many places
-		assertEquals(.3333333333333333333, testNum(1, 3, BinaryOp.DIV));
+		assertEquals(".333333333333333333", testStr(1, 3, BinaryOp.DIV));
+		assertEquals(5, testNum(10, 2, BinaryOp.DIV));
+		assertEquals("2.5", testStr(5, 2, BinaryOp.DIV));
+	}
+	
+	@Test
+	public void testDecimals() {
+		// exact, 18 significant digits, canonic strings
+		assertEquals(".3", testStr(".1", ".2", BinaryOp.ADD));
+		assertEquals(1, testNum(testStr(".1", ".2", BinaryOp.ADD), ".3", BinaryOp.EQ));
+		assertEquals("-.5", testStr(".5", "1", BinaryOp.SUB));
+		assertEquals(3, testNum("1.5", "2", BinaryOp.MULT));
+		assertEquals("1.21", testStr("1.1", "1.1", BinaryOp.MULT));
+		assertEquals(".001", testStr("10", "-3", BinaryOp.EXP));
+		assertEquals("-.5", valueOf(".5").apply(UnaryOp.NEG).toString());
+		assertEquals("1.5", valueOf("+01.50").apply(UnaryOp.POS).toString());
+		assertEquals(0, valueOf(".5").apply(UnaryOp.NOT).toNumber());
+		
+		// longs don't overflow, they turn into decimals (of 18 digits)
+		assertEquals("9223372036854775810", testStr(Long.MAX_VALUE, 1, BinaryOp.ADD));
+		assertEquals(4000000000L, testNum(2000000000, 2, BinaryOp.MULT));
+		
+		// integer division truncates towards 0
+		assertEquals(-3, testNum(-7, 2, BinaryOp.INT_DIV));
+		assertEquals(1, testNum("3.9", "2", BinaryOp.INT_DIV));
+		
+		// comparisons are exact too
+		assertEquals(1, testNum(".3", testStr(".1", ".2", BinaryOp.ADD), BinaryOp.NLT));
+		assertEquals(1, testNum("1.00000000000000001", "1", BinaryOp.GT));
+		assertEquals(0, testNum("1.000000000000000001", "1", BinaryOp.GT));
 	}
 	
 	@Test
@@ -152,6 +201,21 @@ public class MValTests {
 		assertEquals("1", testStr("FOO", "FOOD", BinaryOp.NOT_CONTAINS));
 	}
 	
+	@Test
+	public void testShared() {
+		// small integers, booleans and "" are shared, results of operators too
+		assertSame(valueOf(5), valueOf(2).apply(BinaryOp.ADD, valueOf(3)));
+		assertSame(MVal.TRUE, valueOf(2).apply(BinaryOp.LT, valueOf(3)));
+		assertSame(MVal.FALSE, valueOf("A").apply(BinaryOp.EQ, valueOf("B")));
+		assertSame(MVal.EMPTY, valueOf(""));
+		assertNotSame(valueOf(100000), valueOf(100000));
+		
+		// either form is available whatever the value was created from
+		assertEquals("2.5", valueOf(2.5).toString());
+		assertEquals(12, valueOf("12 monkeys").toNumber());
+		assertEquals("-1", valueOf("1").apply(UnaryOp.NEG).toString());
+	}
+	
 	@Test
 	public void testPOS_NEG() {
 		// same as: +"007"="7"
@@ -0,0 +1,85 @@
+package com.braylabs.m4j.lang;
+
+/**
+ * Numeric interpretation of typical VistA data values (FileMan dates, IENs, vitals, names, ^ pieces,
+ * codes): MNumber.parse() versus the substring/split/regex/parseDouble version it replaced, and the
+ * isCanonic() check subscripts go through.
+ *
+ * Usage: NumberParseBenchmark [iterations]
+ */
+public class NumberParseBenchmark {
+
+	private static final String[] VALUES = {
+		"3110101.1230", "3150612", "123456", "1", "0", "", "-1", ".5", "98.6", "120/80",
+		"DOE,JOHN Q", "1^2^3", "LEXICON", "E", "000123456", "1E3", "2.50", "ICD-9-CM", "250.00", "A1C",
+		"5000001", "0.1", "12 monkeys", "PATIENT", "-3.25", "99999999999", "1.234567890123456789", "Y",
+	};
+
+	public static void main(String[] args) {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		System.out.printf("%-24s %10s%n", iterations + " x " + VALUES.length + " values", "time");
+		long legacy = Long.MAX_VALUE, parse = Long.MAX_VALUE, canonic = Long.MAX_VALUE;
+		int sink = 0;
+		for (int r=0; r < 5; r++) {
+			long t = System.nanoTime();
+			for (int i=0; i < iterations; i++) {
+				for (String str : VALUES) sink += legacyEval(str).intValue();
+			}
+			legacy = Math.min(legacy, System.nanoTime() - t);
+
+			t = System.nanoTime();
+			for (int i=0; i < iterations; i++) {
+				for (String str : VALUES) sink += MNumber.parse(str).intValue();
+			}
+			parse = Math.min(parse, System.nanoTime() - t);
+
+			t = System.nanoTime();
+			for (int i=0; i < iterations; i++) {
+				for (String str : VALUES) if (MNumber.isCanonic(str)) sink++;
+			}
+			canonic = Math.min(canonic, System.nanoTime() - t);
+		}
+		System.out.printf("%-24s %8.1fms%n", "old evalNumericValue", legacy / 1e6);
+		System.out.printf("%-24s %8.1fms (%.1fx)%n", "MNumber.parse", parse / 1e6, (double) legacy / parse);
+		System.out.printf("%-24s %8.1fms%n", "MNumber.isCanonic", canonic / 1e6);
+		if (sink == 42) System.out.println();
+	}
+
+	/** MParserUtils.evalNumericValue() as it was, for comparison (parseLong instead of parseInt, which threw on big values) */
+	private static Number legacyEval(String str) {
+		if (str.isEmpty()) return 0;
+
+		boolean isFloat = false;
+		float mult = 1f;
+		if (str.startsWith("-")) {
+			str = str.substring(1);
+			mult = -1f;
+		} else if (str.startsWith("+")) {
+			str = str.substring(1);
+		}
+		if (str.indexOf('E') > 0 || str.indexOf('e') > 0) {
+			String[] split = str.split("[eE]");
+			if (split.length == 2 && split[0].matches("[0-9\\.]+") && split[1].matches("[0-9\\-]+")) {
+				str = split[0];
+				if (split[1].indexOf('.') > 0) isFloat = true;
+				mult *= Math.pow(10, Float.parseFloat(split[1]));
+			}
+		}
+
+		for (int i=0; i < str.length(); i++) {
+			char c = str.charAt(i);
+			if (c == '.') {
+				isFloat = true;
+			} else if (!Character.isDigit(c)) {
+				str = str.substring(0, i);
+				break;
+			}
+		}
+
+		if (str.isEmpty() || str.equals(".")) return Integer.valueOf(0);
+		if (isFloat) {
+			return Double.parseDouble(str)*mult;
+		}
+		return Long.parseLong(str)*Math.round(mult);
+	}
+}
@@ -0,0 +1,56 @@
+package com.braylabs.m4j.lang;
+
+/**
+ * The ? operator on typical input checks (SSN, phone, ZIP, dates): the per item MVal.matches() calls
+ * the interpreter used to make on every evaluation (fixed counts only) versus a compiled MPattern,
+ * and looking the pattern up by its text on every evaluation (indirection, MParserUtils.matches()).
+ *
+ * Usage: PatternMatchBenchmark [iterations]
+ */
+public class PatternMatchBenchmark {
+
+	private static final String[] VALUES = {
+		"123-45-6789", "123-45-678", "555-1234", "12345", "1234A", "3150612", "DOE,JOHN", "",
+	};
+
+	public static void main(String[] args) {
+		int iterations = (args.length > 0) ? Integer.parseInt(args[0]) : 1000000;
+		System.out.printf("%-24s %10s%n", iterations + " x " + VALUES.length + " values", "time");
+		MVal[] vals = new MVal[VALUES.length];
+		for (int i=0; i < vals.length; i++) vals[i] = MVal.valueOf(VALUES[i]);
+		String ssn = "3N1\"-\"2N1\"-\"4N";
+
+		long items = Long.MAX_VALUE, compiled = Long.MAX_VALUE, lookup = Long.MAX_VALUE;
+		int sink = 0;
+		for (int r=0; r < 5; r++) {
+			long t = System.nanoTime();
+			for (int i=0; i < iterations; i++) {
+				for (MVal val : vals) if (itemMatch(val)) sink++;
+			}
+			items = Math.min(items, System.nanoTime() - t);
+
+			t = System.nanoTime();
+			MPattern pat = MPattern.compile(ssn);
+			for (int i=0; i < iterations; i++) {
+				for (String val : VALUES) if (pat.matches(val)) sink++;
+			}
+			compiled = Math.min(compiled, System.nanoTime() - t);
+
+			t = System.nanoTime();
+			for (int i=0; i < iterations; i++) {
+				for (String val : VALUES) if (MPattern.compile(ssn).matches(val)) sink++;
+			}
+			lookup = Math.min(lookup, System.nanoTime() - t);
+		}
+		System.out.printf("%-24s %8.1fms%n", "MVal.matches() per item", items / 1e6);
+		System.out.printf("%-24s %8.1fms (%.1fx)%n", "compiled MPattern", compiled / 1e6, (double) items / compiled);
+		System.out.printf("%-24s %8.1fms%n", "cached by text", lookup / 1e6);
+		if (sink == 42) System.out.println();
+	}
+
+	/** what visitExprMatch did for ?3N1"-"2N1"-"4N, plus the length check it was missing */
+	private static boolean itemMatch(MVal val) {
+		return val.matches(0, 3, 'N') && val.matches(3, 1, "-") && val.matches(4, 2, 'N')
+				&& val.matches(6, 1, "-") && val.matches(7, 4, 'N') && val.toString().length() == 11;
+	}
+}
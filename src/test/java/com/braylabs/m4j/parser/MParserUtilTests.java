@@ -10,6 +10,7 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.math.BigDecimal;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.List;
@@ -17,6 +18,8 @@ import java.util.Set;
 
 import org.junit.Test;
 
+import com.braylabs.m4j.lang.MNumber;
+
 public class MParserUtilTests {
 	String tokstr = "I $G(^VPRHTTP(0,\"listener\"))=\"stopped\" W !,\"Listener is already stopped.\",! Q";
 	Set<String> delims1 = new HashSet<String>(Arrays.asList(" "));
@@ -164,9 +167,9 @@ public class MParserUtilTests {
 		assertEquals(1, evalNumericValue("1"));
 		assertEquals(0, evalNumericValue("0"));
 		assertEquals(-1, evalNumericValue("-1"));
-		assertEquals(1.1, evalNumericValue("1.1"));
-		assertEquals(0.1, evalNumericValue("0.1"));
-		assertEquals(1d, evalNumericValue("1.0"));
+		assertEquals(new BigDecimal("1.1"), evalNumericValue("1.1"));
+		assertEquals(new BigDecimal(".1"), evalNumericValue("0.1"));
+		assertEquals(1, evalNumericValue("1.0"));
 		assertEquals(1, evalNumericValue("+1"));
 		
 		// leading digits will be the numeric value
@@ -180,7 +183,7 @@ public class MParserUtilTests {
 		// scientific notation
 		assertEquals(1000, evalNumericValue("1E3"));
 		assertEquals(1000, evalNumericValue("1e3"));
-		assertEquals(-0.0011d, (Double) evalNumericValue("-1.1e-3"), .01d);
+		assertEquals(new BigDecimal("-.0011"), evalNumericValue("-1.1e-3"));
 		assertEquals(21, evalNumericValue("21eee13"));
 		
 		// border cases
@@ -192,8 +195,8 @@ public class MParserUtilTests {
 		assertEquals(1, evalNumericValue(Boolean.TRUE));
 		
 		// non-canatonical
-		assertEquals(123.0, evalNumericValue("0000123.000"));
-		assertEquals(123.12, evalNumericValue("+00123.12000"));
+		assertEquals(123, evalNumericValue("0000123.000"));
+		assertEquals(new BigDecimal("123.12"), evalNumericValue("+00123.12000"));
 		
 		// these were crashing things
 		assertEquals(0, evalNumericValue("."));
@@ -201,6 +204,37 @@ public class MParserUtilTests {
 
 		// strange case of multiple prefix operators: "-+-++-7" does nothing here (only works on unary operator)
 		assertEquals(0, evalNumericValue("-+-++-7"));
+		
+		// exponents, 18 significant digits and a leading number in a longer string
+		assertEquals(150, evalNumericValue("1.50E2X"));
+		assertEquals(1, evalNumericValue("1E"));
+		assertEquals(1, evalNumericValue("1E-"));
+		assertEquals(new BigDecimal(".015"), evalNumericValue("1.5E-2"));
+		assertEquals(123456789012345678L, evalNumericValue("123456789012345678"));
+		assertEquals(new BigDecimal("1.23456789012345679E+19"), evalNumericValue("12345678901234567890"));
+		assertEquals(new BigDecimal("1.23456789012345679"), evalNumericValue("1.234567890123456789"));
+		assertEquals(new BigDecimal("1E+20"), evalNumericValue("1E20"));
+		assertEquals(new BigDecimal("-.5"), evalNumericValue(new StringBuilder("-00.500 mg")));
+	}
+	
+	@Test
+	public void testIsCanonicNumber() {
+		for (String str : new String[] {"0", "1", "-1", "12", ".5", "-.5", "-3.25", "141.01", "100"}) {
+			assertTrue(str, MParserUtils.isCanonicNumber(str));
+		}
+		for (String str : new String[] {null, "", "-", ".", "-0", "01", "1.0", "1.", "+1", "1E3", "1A", " 1", "0.5", "1..2", "--1", "-.", "1.5.", "\u0661"}) {
+			assertFalse(str, MParserUtils.isCanonicNumber(str));
+		}
+		
+		// at most 18 significant digits, as parse() and toString() round to
+		String[] limits = {"123456789012345678", "-123456789012345678", "1234567890123456789012", "1234567890123456789",
+				"1000000000000000000000", "1.23456789012345678", "1.234567890123456789", ".000123456789012345678",
+				".0001234567890123456789", "100000000000000000.5", "12345678901234567.5"};
+		for (String str : limits) {
+			assertEquals(str, str.equals(MNumber.toString(MNumber.parse(str))), MParserUtils.isCanonicNumber(str));
+		}
+		assertFalse(MParserUtils.isCanonicNumber("1234567890123456789012"));
+		assertTrue(MParserUtils.isCanonicNumber("1000000000000000000000"));
 	}
 	
 	@Test
@@ -396,7 +430,9 @@ public class MParserUtilTests {
 	@Test
 	public void testMatch() {
 		assertFalse(matches("FOO", "1L"));
-		assertTrue(matches("4", "1L"));
+		assertFalse(matches("4", "1L"));
+		assertTrue(matches("4", "1N"));
+		assertTrue(matches("foo", "3L"));
 	}
 	
 